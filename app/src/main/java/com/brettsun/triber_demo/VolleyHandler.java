@@ -9,6 +9,7 @@ import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.ImageLoader;
 import com.android.volley.toolbox.ImageLoader.ImageCache;
+import com.android.volley.toolbox.RefreshAheadScheduler;
 import com.android.volley.toolbox.Volley;
 
 /**
@@ -20,6 +21,7 @@ public final class VolleyHandler {
     private static Context mAppContext;
     private RequestQueue mRequestQueue;
     private ImageLoader mImageLoader;
+    private RefreshAheadScheduler mRefreshAheadScheduler;
 
     public static synchronized VolleyHandler getInstance(Context context) {
         if (mInstance == null) {
@@ -48,7 +50,17 @@ public final class VolleyHandler {
     }
 
     public <T> void addToRequestQueue(Request<T> req) {
-        getRequestQueue().add(req);
+        // Goes through the refresh-ahead scheduler so that frequently used API responses are
+        // revalidated before they go stale
+        getRefreshAheadScheduler().add(req);
+    }
+
+    private RefreshAheadScheduler getRefreshAheadScheduler() {
+        if (mRefreshAheadScheduler == null) {
+            mRefreshAheadScheduler = new RefreshAheadScheduler(getRequestQueue());
+            mRefreshAheadScheduler.start();
+        }
+        return mRefreshAheadScheduler;
     }
 
     private VolleyHandler(Context context) {
@@ -4,6 +4,8 @@ import android.content.Context;
 import android.net.Uri;
 
 import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.QueryCacheKeyNormalizer;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -32,6 +34,27 @@ public final class InstagramApi {
     private static final String USER_ID_PARAM_KEY = "USER_ID_PARAM";
     private static final String USER_QUERY_PARAM_KEY = "q";
 
+    /**
+     * Cache keys for API requests leave out the access parameter so that cached responses
+     * survive logging in or out and token changes. Responses about the authenticated user
+     * depend on whose token was sent, so their keys keep it.
+     */
+    static final RequestQueue.CacheKeyNormalizer CACHE_KEY_NORMALIZER =
+            new RequestQueue.CacheKeyNormalizer() {
+        private final QueryCacheKeyNormalizer mSharedNormalizer =
+                new QueryCacheKeyNormalizer(ACCESS_TOKEN_KEY, CLIENT_ID_KEY);
+        private final QueryCacheKeyNormalizer mUserSelfNormalizer =
+                new QueryCacheKeyNormalizer(CLIENT_ID_KEY);
+
+        @Override
+        public String normalize(final String url) {
+            if (url.startsWith(USER_SELF_DETAILS_ENDPOINT)) {
+                return mUserSelfNormalizer.normalize(url);
+            }
+            return mSharedNormalizer.normalize(url);
+        }
+    };
+
     /***** Send API requests *****/
     /**
      * Request a user search based on the query string given.
@@ -91,6 +91,7 @@ public abstract class InstagramRequest<T> implements Parcelable {
         JsonObjectRequest request = makeRequest(url, jsonPost, listener);
 
         request.setTag(context);       // Use the given context as the tag to allow for cancellation
+        request.setCacheKeyNormalizer(InstagramApi.CACHE_KEY_NORMALIZER);
         VolleyHandler volleyHandler = VolleyHandler.getInstance(context);
         volleyHandler.addToRequestQueue(request);
         Log.i(TAG, "Requesting API: " + url);
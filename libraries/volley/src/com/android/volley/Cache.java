@@ -16,6 +16,7 @@
 
 package com.android.volley;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 
@@ -50,6 +51,16 @@ public interface Cache {
      */
     public void invalidate(String key, boolean fullExpire);
 
+    /**
+     * Updates the freshness metadata of an entry without replacing its data, such as after
+     * the server confirmed with a 304 that the cached data is still current.
+     * @param key Cache key
+     * @param serverDate Date of the response as reported by the server
+     * @param ttl TTL for the entry
+     * @param softTtl Soft TTL for the entry
+     */
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl);
+
     /**
      * Removes an entry from the cache.
      * @param key Cache key
@@ -65,7 +76,10 @@ public interface Cache {
      * Data and metadata for an entry returned by the cache.
      */
     public static class Entry {
-        /** The data returned from cache. */
+        /**
+         * The data returned from cache. May be null for entries that keep their data outside
+         * the Java heap; use {@link #getData()} to read it.
+         */
         public byte[] data;
 
         /** ETag for cache coherency. */
@@ -80,14 +94,44 @@ public interface Cache {
         /** Soft TTL for this record. */
         public long softTtl;
 
+        /**
+         * Time until which this record may be served when refreshing it fails, as allowed by
+         * the stale-if-error Cache-Control directive; no later than {@link #softTtl} if not.
+         */
+        public long staleIfErrorTtl;
+
         /** Immutable response headers as received from server; must be non-null. */
         public Map<String, String> responseHeaders = Collections.emptyMap();
 
+        /**
+         * Returns the data, loading it into {@link #data} first if this entry keeps it
+         * outside the Java heap.
+         * @return the data, or null if it could not be loaded, such as when the entry was
+         * removed from the cache after being returned
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Returns the data as a read-only buffer if this entry keeps it outside the Java heap,
+         * such as in a memory-mapped file, or null if it is only available from
+         * {@link #getData()}.
+         */
+        public ByteBuffer getDataBuffer() {
+            return null;
+        }
+
         /** True if the entry is expired. */
         public boolean isExpired() {
             return this.ttl < System.currentTimeMillis();
         }
 
+        /** True if the entry may be served in place of an error from the original data source. */
+        public boolean isUsableOnError() {
+            return this.staleIfErrorTtl >= System.currentTimeMillis();
+        }
+
         /** True if a refresh is needed from the original data source. */
         public boolean refreshNeeded() {
             return this.softTtl < System.currentTimeMillis();
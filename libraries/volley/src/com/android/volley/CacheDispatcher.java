@@ -18,6 +18,7 @@ package com.android.volley;
 
 import android.os.Process;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.BlockingQueue;
 
 /**
@@ -45,6 +46,9 @@ public class CacheDispatcher extends Thread {
     /** For posting responses. */
     private final ResponseDelivery mDelivery;
 
+    /** For counting cache lookups. */
+    private final CacheMetrics mMetrics;
+
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
@@ -56,14 +60,31 @@ public class CacheDispatcher extends Thread {
      * @param networkQueue Queue to post requests that require network to
      * @param cache Cache interface to use for resolution
      * @param delivery Delivery interface to use for posting responses
+     * @param metrics Metrics to count cache lookups in
      */
     public CacheDispatcher(
             BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
-            Cache cache, ResponseDelivery delivery) {
+            Cache cache, ResponseDelivery delivery, CacheMetrics metrics) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Creates a new cache triage dispatcher thread that counts lookups in metrics of its own.
+     * You must call {@link #start()} in order to begin processing.
+     *
+     * @param cacheQueue Queue of incoming requests for triage
+     * @param networkQueue Queue to post requests that require network to
+     * @param cache Cache interface to use for resolution
+     * @param delivery Delivery interface to use for posting responses
+     */
+    public CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
+            Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, new CacheMetrics());
     }
 
     /**
@@ -96,17 +117,41 @@ public class CacheDispatcher extends Thread {
                     continue;
                 }
 
+                Request.CachePolicy policy = request.getCachePolicy();
+                if (policy == Request.CachePolicy.NETWORK_ONLY) {
+                    request.addMarker("cache-skipped");
+                    mNetworkQueue.put(request);
+                    continue;
+                }
+
                 // Attempt to retrieve this item from cache.
                 Cache.Entry entry = mCache.get(request.getCacheKey());
+                if (entry != null) {
+                    entry = getVariant(request, entry);
+                }
                 if (entry == null) {
                     request.addMarker("cache-miss");
+                    mMetrics.recordMiss();
+                    if (policy == Request.CachePolicy.CACHE_ONLY
+                            || policy == Request.CachePolicy.FAIL_IF_NOT_CACHED) {
+                        mDelivery.postError(request, new CacheMissError());
+                        continue;
+                    }
                     // Cache miss; send off to the network dispatcher.
                     mNetworkQueue.put(request);
                     continue;
                 }
 
-                // If it is completely expired, just send it to the network.
                 if (entry.isExpired()) {
+                    mMetrics.recordExpiredHit();
+                } else {
+                    mMetrics.recordHit(entry.refreshNeeded());
+                }
+
+                // If it is completely expired, just send it to the network, unless the policy
+                // allows expired entries to be delivered.
+                if (entry.isExpired() && policy != Request.CachePolicy.CACHE_ONLY
+                        && policy != Request.CachePolicy.STALE_WHILE_REVALIDATE) {
                     request.addMarker("cache-hit-expired");
                     request.setCacheEntry(entry);
                     mNetworkQueue.put(request);
@@ -115,17 +160,33 @@ public class CacheDispatcher extends Thread {
 
                 // We have a cache hit; parse its data for delivery back to the request.
                 request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
+                ByteBuffer dataBuffer = request.acceptsDataBuffer()
+                        ? entry.getDataBuffer() : null;
+                byte[] data = dataBuffer == null ? entry.getData() : null;
+                if (dataBuffer == null && data == null) {
+                    // The entry went away before its data was loaded.
+                    request.addMarker("cache-hit-data-unavailable");
+                    if (policy == Request.CachePolicy.CACHE_ONLY) {
+                        mDelivery.postError(request, new CacheMissError());
+                    } else {
+                        mNetworkQueue.put(request);
+                    }
+                    continue;
+                }
+                Response<?> response = request.parseNetworkResponse(dataBuffer != null
+                        ? new NetworkResponse(dataBuffer, entry.responseHeaders)
+                        : new NetworkResponse(data, entry.responseHeaders));
                 request.addMarker("cache-hit-parsed");
 
-                if (!entry.refreshNeeded()) {
+                boolean refreshNeeded = policy == Request.CachePolicy.STALE_WHILE_REVALIDATE
+                        || (policy != Request.CachePolicy.CACHE_ONLY && entry.refreshNeeded());
+                if (!refreshNeeded) {
                     // Completely unexpired cache hit. Just deliver the response.
                     mDelivery.postResponse(request, response);
                 } else {
-                    // Soft-expired cache hit. We can deliver the cached response,
-                    // but we need to also send the request to the network for
-                    // refreshing.
+                    // Soft-expired cache hit, such as within a stale-while-revalidate
+                    // window. We can deliver the cached response, but we need to also
+                    // send the request to the network for refreshing.
                     request.addMarker("cache-hit-refresh-needed");
                     request.setCacheEntry(entry);
 
@@ -155,4 +216,26 @@ public class CacheDispatcher extends Thread {
             }
         }
     }
+
+    /**
+     * Returns the cached variant selected by the request if the entry found under its cache
+     * key only records the Vary header of the response, or else the entry itself.
+     *
+     * @return the entry to serve, or null if there is none
+     */
+    private Cache.Entry getVariant(Request<?> request, Cache.Entry entry) {
+        String variantKey;
+        try {
+            variantKey = request.getVariantCacheKey(entry.responseHeaders);
+        } catch (AuthFailureError e) {
+            // Let the network dispatcher fail the request.
+            request.addMarker("cache-variant-headers-failed");
+            return null;
+        }
+        if (variantKey == null) {
+            return entry;
+        }
+        request.addMarker("cache-variant");
+        return mCache.get(variantKey);
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of how requests use the cache, for measuring hit ratios and cache traffic.
+ *
+ * <p>Lookups and network outcomes are counted by the {@link CacheDispatcher} and
+ * {@link NetworkDispatcher}s of a {@link RequestQueue}, and evictions and bytes by caches that
+ * are given the same instance, such as {@link com.android.volley.toolbox.DiskBasedCache}.
+ * Counters are updated without locking; {@link #snapshot()} reads them all at once for
+ * sampling, though not atomically with respect to each other.</p>
+ */
+public class CacheMetrics {
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mExpiredHits = new AtomicLong();
+    private final AtomicLong mSoftExpiredHits = new AtomicLong();
+    private final AtomicLong mNotModified = new AtomicLong();
+    private final AtomicLong mPuts = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    /** Counts a lookup that found an entry that had not expired, soft-expired or not. */
+    public void recordHit(boolean softExpired) {
+        mHits.incrementAndGet();
+        if (softExpired) {
+            mSoftExpiredHits.incrementAndGet();
+        }
+    }
+
+    /** Counts a lookup that found no entry. */
+    public void recordMiss() {
+        mMisses.incrementAndGet();
+    }
+
+    /** Counts a lookup that found an expired entry, which had to be revalidated. */
+    public void recordExpiredHit() {
+        mExpiredHits.incrementAndGet();
+    }
+
+    /** Counts a revalidation the server answered with a 304. */
+    public void recordNotModified() {
+        mNotModified.incrementAndGet();
+    }
+
+    /** Counts a response written to the cache. */
+    public void recordPut() {
+        mPuts.incrementAndGet();
+    }
+
+    /** Counts entries evicted from the cache. */
+    public void recordEvictions(int count) {
+        mEvictions.addAndGet(count);
+    }
+
+    /** Counts bytes read from the cache's storage. */
+    public void recordBytesRead(long bytes) {
+        mBytesRead.addAndGet(bytes);
+    }
+
+    /** Counts bytes written to the cache's storage. */
+    public void recordBytesWritten(long bytes) {
+        mBytesWritten.addAndGet(bytes);
+    }
+
+    /** Returns the current values of all counters. */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /** Values of the counters at one point in time. */
+    public static class Snapshot {
+        /** Lookups that found an entry that had not expired, including soft-expired ones. */
+        public final long hits;
+
+        /** Lookups that found no entry. */
+        public final long misses;
+
+        /** Lookups that found an expired entry. */
+        public final long expiredHits;
+
+        /** Hits on entries that were soft-expired, and so were served and refreshed. */
+        public final long softExpiredHits;
+
+        /** Revalidations answered with a 304. */
+        public final long notModified;
+
+        /** Responses written to the cache. */
+        public final long puts;
+
+        /** Entries evicted. */
+        public final long evictions;
+
+        /** Bytes read from storage. */
+        public final long bytesRead;
+
+        /** Bytes written to storage. */
+        public final long bytesWritten;
+
+        private Snapshot(CacheMetrics metrics) {
+            hits = metrics.mHits.get();
+            misses = metrics.mMisses.get();
+            expiredHits = metrics.mExpiredHits.get();
+            softExpiredHits = metrics.mSoftExpiredHits.get();
+            notModified = metrics.mNotModified.get();
+            puts = metrics.mPuts.get();
+            evictions = metrics.mEvictions.get();
+            bytesRead = metrics.mBytesRead.get();
+            bytesWritten = metrics.mBytesWritten.get();
+        }
+
+        /**
+         * Returns the fraction of lookups served from the cache without waiting for the
+         * network, or 0 if there were none.
+         */
+        public double getHitRatio() {
+            long lookups = hits + misses + expiredHits;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d (%d soft-expired) misses=%d expired=%d 304s=%d "
+                    + "puts=%d evictions=%d read=%d written=%d",
+                    hits, softExpiredHits, misses, expiredHits, notModified, puts, evictions,
+                    bytesRead, bytesWritten);
+        }
+    }
+}
@@ -22,6 +22,8 @@ import android.os.Build;
 import android.os.Process;
 import android.os.SystemClock;
 
+import com.android.volley.toolbox.HttpHeaderParser;
+
 import java.util.concurrent.BlockingQueue;
 
 /**
@@ -41,6 +43,8 @@ public class NetworkDispatcher extends Thread {
     private final Cache mCache;
     /** For posting responses and errors. */
     private final ResponseDelivery mDelivery;
+    /** For counting revalidations and cache writes. */
+    private final CacheMetrics mMetrics;
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
@@ -52,14 +56,31 @@ public class NetworkDispatcher extends Thread {
      * @param network Network interface to use for performing requests
      * @param cache Cache interface to use for writing responses to cache
      * @param delivery Delivery interface to use for posting responses
+     * @param metrics Metrics to count revalidations and cache writes in
      */
     public NetworkDispatcher(BlockingQueue<Request<?>> queue,
             Network network, Cache cache,
-            ResponseDelivery delivery) {
+            ResponseDelivery delivery, CacheMetrics metrics) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Creates a new network dispatcher thread that counts in metrics of its own.  You must
+     * call {@link #start()} in order to begin processing.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     */
+    public NetworkDispatcher(BlockingQueue<Request<?>> queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, new CacheMetrics());
     }
 
     /**
@@ -106,28 +127,72 @@ public class NetworkDispatcher extends Thread {
                     continue;
                 }
 
+                // A cache-only request can get here if it should not be cached at all.
+                if (request.getCachePolicy() == Request.CachePolicy.CACHE_ONLY) {
+                    request.addMarker("network-skipped-cache-only");
+                    mDelivery.postError(request, new CacheMissError());
+                    continue;
+                }
+
                 addTrafficStatsTag(request);
 
                 // Perform the network request.
                 NetworkResponse networkResponse = mNetwork.performRequest(request);
                 request.addMarker("network-http-complete");
+                if (networkResponse.notModified) {
+                    mMetrics.recordNotModified();
+                }
 
                 // If the server returned 304 AND we delivered a response already,
-                // we're done -- don't deliver a second identical response.
+                // we're done -- don't deliver a second identical response. The cached
+                // entry still takes the freshness the 304 grants.
                 if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+                    if (request.shouldCache()) {
+                        refreshMetadata(request, networkResponse);
+                    }
                     request.finish("not-modified");
                     continue;
                 }
 
+                // The cache may have left the data of the revalidated entry on disk; load it
+                // now that it has to be parsed, or fetch it again if it went away meanwhile.
+                Cache.Entry cacheEntry = request.getCacheEntry();
+                if (networkResponse.notModified && networkResponse.data == null
+                        && cacheEntry != null && request.needsCachedDataOnNotModified()) {
+                    byte[] data = cacheEntry.getData();
+                    if (data != null) {
+                        networkResponse = new NetworkResponse(networkResponse.statusCode, data,
+                                networkResponse.headers, true, networkResponse.networkTimeMs);
+                    } else {
+                        request.addMarker("network-cache-data-unavailable");
+                        request.setCacheEntry(null);
+                        networkResponse = mNetwork.performRequest(request);
+                    }
+                }
+
                 // Parse the response here on the worker thread.
                 Response<?> response = request.parseNetworkResponse(networkResponse);
                 request.addMarker("network-parse-complete");
 
-                // Write to cache if applicable.
-                // TODO: Only update cache metadata instead of entire record for 304s.
+                // Write to cache if applicable. A 304 only refreshes the cached metadata.
+                // Responses that vary by request headers are cached per variant.
                 if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
+                    Cache.Entry entry = response.cacheEntry;
+                    String variantKey = request.getVariantCacheKey(entry.responseHeaders);
+                    String cacheKey = variantKey != null ? variantKey : request.getCacheKey();
+                    if (networkResponse.notModified) {
+                        mCache.updateMetadata(cacheKey, entry.serverDate,
+                                entry.ttl, entry.softTtl);
+                        request.addMarker("network-cache-refreshed");
+                    } else {
+                        if (variantKey != null && request.getCacheEntry() == null) {
+                            // No variant was cached, so the Vary header may not be either.
+                            putInCache(request, request.getCacheKey(), makeVaryEntry(entry));
+                        }
+                        putInCache(request, cacheKey, entry);
+                        mMetrics.recordPut();
+                        request.addMarker("network-cache-written");
+                    }
                 }
 
                 // Post the response back.
@@ -135,7 +200,15 @@ public class NetworkDispatcher extends Thread {
                 mDelivery.postResponse(request, response);
             } catch (VolleyError volleyError) {
                 volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                parseAndDeliverNetworkError(request, volleyError);
+                boolean servedStale = false;
+                try {
+                    servedStale = deliverStaleOnError(request, volleyError);
+                } catch (Exception e) {
+                    VolleyLog.e(e, "Unhandled exception serving stale entry %s", e.toString());
+                }
+                if (!servedStale) {
+                    parseAndDeliverNetworkError(request, volleyError);
+                }
             } catch (Exception e) {
                 VolleyLog.e(e, "Unhandled exception %s", e.toString());
                 VolleyError volleyError = new VolleyError(e);
@@ -145,6 +218,90 @@ public class NetworkDispatcher extends Thread {
         }
     }
 
+    /**
+     * Refreshes the metadata of the cached entry a 304 revalidated, parsed from the headers
+     * of the 304 without parsing the cached data again.
+     */
+    private void refreshMetadata(Request<?> request, NetworkResponse networkResponse)
+            throws AuthFailureError {
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(networkResponse);
+        if (entry == null) {
+            return;
+        }
+        String variantKey = request.getVariantCacheKey(entry.responseHeaders);
+        String cacheKey = variantKey != null ? variantKey : request.getCacheKey();
+        mCache.updateMetadata(cacheKey, entry.serverDate, entry.ttl, entry.softTtl);
+        request.addMarker("network-cache-refreshed");
+    }
+
+    /**
+     * Puts an entry into the cache, in the request's partition if it declares one and the
+     * cache is partitioned.
+     */
+    private void putInCache(Request<?> request, String key, Cache.Entry entry) {
+        String partition = request.getCachePartition();
+        if (partition != null && mCache instanceof PartitionedCache) {
+            ((PartitionedCache) mCache).put(partition, key, entry);
+        } else {
+            mCache.put(key, entry);
+        }
+    }
+
+    /**
+     * Creates the entry recorded under the plain cache key of a response that varies by
+     * request headers: it has no data and keeps the response headers, which include Vary.
+     * It never expires, so that the variants stay reachable for as long as it is cached.
+     */
+    private static Cache.Entry makeVaryEntry(Cache.Entry variant) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[0];
+        entry.serverDate = variant.serverDate;
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.responseHeaders = variant.responseHeaders;
+        return entry;
+    }
+
+    /**
+     * Serves the cache entry being refreshed in place of a network or server error, if its
+     * stale-if-error window allows it.
+     *
+     * @return true if the error was handled and should not be delivered
+     */
+    private boolean deliverStaleOnError(Request<?> request, VolleyError error) {
+        Cache.Entry entry = request.getCacheEntry();
+        if (entry == null || !entry.isUsableOnError() || !isServerOrNetworkError(error)) {
+            return false;
+        }
+        if (request.hasHadResponseDelivered()) {
+            // The stale data was already delivered as an intermediate response.
+            request.finish("network-error-stale-kept");
+            return true;
+        }
+        byte[] data = entry.getData();
+        if (data == null) {
+            return false;
+        }
+        Response<?> response =
+                request.parseNetworkResponse(new NetworkResponse(data, entry.responseHeaders));
+        if (!response.isSuccess()) {
+            return false;
+        }
+        request.addMarker("network-error-served-stale");
+        request.markDelivered();
+        mDelivery.postResponse(request, response);
+        return true;
+    }
+
+    /** Returns true for the errors stale-if-error applies to: 5xx responses and no response. */
+    private static boolean isServerOrNetworkError(VolleyError error) {
+        if (error instanceof NetworkError || error instanceof TimeoutError) {
+            return true;
+        }
+        return error instanceof ServerError
+                && (error.networkResponse == null || error.networkResponse.statusCode >= 500);
+    }
+
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
         error = request.parseNetworkError(error);
         mDelivery.postError(request, error);
@@ -18,6 +18,7 @@ package com.android.volley;
 
 import org.apache.http.HttpStatus;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 
@@ -37,6 +38,7 @@ public class NetworkResponse {
             boolean notModified, long networkTimeMs) {
         this.statusCode = statusCode;
         this.data = data;
+        this.dataBuffer = null;
         this.headers = headers;
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
@@ -55,12 +57,31 @@ public class NetworkResponse {
         this(HttpStatus.SC_OK, data, headers, false, 0);
     }
 
+    /**
+     * Creates a response whose data is only available as a buffer, such as a cache entry
+     * mapped from disk. Only handed to requests that return true from
+     * {@link Request#acceptsDataBuffer()}.
+     * @param dataBuffer Response body
+     * @param headers Headers returned with this response, or null for none
+     */
+    public NetworkResponse(ByteBuffer dataBuffer, Map<String, String> headers) {
+        this.statusCode = HttpStatus.SC_OK;
+        this.data = null;
+        this.dataBuffer = dataBuffer;
+        this.headers = headers;
+        this.notModified = false;
+        this.networkTimeMs = 0;
+    }
+
     /** The HTTP status code. */
     public final int statusCode;
 
-    /** Raw data from this response. */
+    /** Raw data from this response, or null if it is only available as {@link #dataBuffer}. */
     public final byte[] data;
 
+    /** Raw data from this response if it was not read into {@link #data}, or null. */
+    public final ByteBuffer dataBuffer;
+
     /** Response headers. */
     public final Map<String, String> headers;
 
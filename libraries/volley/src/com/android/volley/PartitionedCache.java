@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} divided into named partitions, such as one for images and one for API
+ * responses, each with its own share of the space. Responses to requests that declare a
+ * partition with {@link Request#setCachePartition(String)} are put into that partition; the
+ * cache chooses one for all other entries.
+ */
+public interface PartitionedCache extends Cache {
+    /**
+     * Adds or replaces an entry in the named partition, removing it from any other one.
+     * @param partition Partition name
+     * @param key Cache key
+     * @param entry Data to store and metadata for cache coherency, TTL, etc.
+     */
+    public void put(String partition, String key, Entry entry);
+}
@@ -28,7 +28,9 @@ import com.android.volley.VolleyLog.MarkerLog;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Collections;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * Base class for all network requests.
@@ -81,9 +83,18 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** The request queue this request is associated with. */
     private RequestQueue mRequestQueue;
 
+    /** Normalizer for this request's cache key, overriding the queue's. */
+    private RequestQueue.CacheKeyNormalizer mCacheKeyNormalizer;
+
     /** Whether or not responses to this request should be cached. */
     private boolean mShouldCache = true;
 
+    /** How the cache is consulted for this request. */
+    private CachePolicy mCachePolicy = CachePolicy.DEFAULT;
+
+    /** The cache partition responses to this request are put into, or null for any. */
+    private String mCachePartition;
+
     /** Whether or not this request has been canceled. */
     private boolean mCanceled = false;
 
@@ -288,10 +299,79 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * Returns the cache key for this request.  By default, this is the URL.
+     * Returns the cache key for this request.  By default, this is the URL, as normalized by
+     * this request's {@link RequestQueue.CacheKeyNormalizer} or else its queue's.
      */
     public String getCacheKey() {
-        return getUrl();
+        RequestQueue.CacheKeyNormalizer normalizer = mCacheKeyNormalizer;
+        if (normalizer == null && mRequestQueue != null) {
+            normalizer = mRequestQueue.getCacheKeyNormalizer();
+        }
+        return normalizer == null ? getUrl() : normalizer.normalize(getUrl());
+    }
+
+    /**
+     * Sets the normalizer for this request's cache key, in place of the one of the queue it
+     * is added to.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setCacheKeyNormalizer(RequestQueue.CacheKeyNormalizer normalizer) {
+        mCacheKeyNormalizer = normalizer;
+        return this;
+    }
+
+    /**
+     * Returns the cache key for the variant of a response that this request selects, if the
+     * response varies by request headers.
+     *
+     * <p>A response with a Vary header is cached under a key made of {@link #getCacheKey()}
+     * and the values this request has for the headers named in Vary, so that the variants of
+     * one URL are cached side by side. The entry under the plain cache key then only records
+     * the Vary header.</p>
+     *
+     * @param responseHeaders The headers of the response, or of the entry cached for it
+     * @return the variant's cache key, or null if the response has no Vary header
+     * @throws AuthFailureError if the request headers could not be built
+     */
+    public String getVariantCacheKey(Map<String, String> responseHeaders)
+            throws AuthFailureError {
+        String vary = findHeader(responseHeaders, "Vary");
+        if (vary == null) {
+            return null;
+        }
+        Map<String, String> requestHeaders = getHeaders();
+        TreeSet<String> names = new TreeSet<String>();
+        for (String name : vary.split(",")) {
+            name = name.trim().toLowerCase(Locale.US);
+            if (name.length() > 0) {
+                names.add(name);
+            }
+        }
+        // Header values can't contain newlines, and neither can URLs.
+        StringBuilder key = new StringBuilder(getCacheKey());
+        for (String name : names) {
+            String value = findHeader(requestHeaders, name);
+            key.append('\n').append(name).append(':');
+            if (value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /** Returns the value of the header with the given name, ignoring case, or null. */
+    private static String findHeader(Map<String, String> headers, String name) {
+        String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
     }
 
     /**
@@ -312,6 +392,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mCacheEntry;
     }
 
+    /**
+     * Returns true if a 304 for this request is parsed from the data of the cached entry, as
+     * it is by default. Requests that only look at the status and headers of a 304 return
+     * false, so that the cached data is not read from disk for them.
+     */
+    public boolean needsCachedDataOnNotModified() {
+        return true;
+    }
+
     /**
      * Mark this request as canceled.  No callback will be delivered.
      */
@@ -486,6 +575,71 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldCache;
     }
 
+    /**
+     * Ways of consulting the cache before going to the network. Whether the network response
+     * is written to the cache is still decided by {@link #shouldCache()}, and a request that
+     * should not be cached is never served from the cache either.
+     */
+    public enum CachePolicy {
+        /**
+         * Serve fresh cache hits, serve soft-expired ones and refresh them in the background,
+         * and go to the network on a miss or a hit that has completely expired.
+         */
+        DEFAULT,
+        /**
+         * Serve any cache hit, expired or not, and never go to the network. Misses are
+         * delivered as a {@link CacheMissError}. For showing what is there while offline.
+         */
+        CACHE_ONLY,
+        /** Skip reading the cache and always go to the network. */
+        NETWORK_ONLY,
+        /**
+         * Deliver any cache hit immediately, even if it has expired, then revalidate it over
+         * the network and deliver the result if it changed. Misses go to the network.
+         */
+        STALE_WHILE_REVALIDATE,
+        /**
+         * Like {@link #DEFAULT}, but deliver a {@link CacheMissError} on a miss instead of
+         * going to the network.
+         */
+        FAIL_IF_NOT_CACHED
+    }
+
+    /**
+     * Set how the cache is consulted for this request; {@link CachePolicy#DEFAULT} by default.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setCachePolicy(CachePolicy cachePolicy) {
+        mCachePolicy = cachePolicy;
+        return this;
+    }
+
+    /**
+     * Returns the {@link CachePolicy} of this request.
+     */
+    public final CachePolicy getCachePolicy() {
+        return mCachePolicy;
+    }
+
+    /**
+     * Set the partition responses to this request are cached in, if the queue's cache is a
+     * {@link PartitionedCache}. By default the cache chooses one.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setCachePartition(String partition) {
+        mCachePartition = partition;
+        return this;
+    }
+
+    /**
+     * Returns the cache partition of this request, or null if the cache chooses one.
+     */
+    public final String getCachePartition() {
+        return mCachePartition;
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
@@ -535,6 +689,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mResponseDelivered;
     }
 
+    /**
+     * Returns true if {@link #parseNetworkResponse(NetworkResponse)} can handle a response
+     * whose data is only available as {@link NetworkResponse#dataBuffer}. Cache hits on large
+     * entries can then be served without copying the data onto the heap. False by default.
+     */
+    protected boolean acceptsDataBuffer() {
+        return false;
+    }
+
     /**
      * Subclasses must implement this to parse the raw network response
      * and return an appropriate response type. This method will be
@@ -19,6 +19,8 @@ package com.android.volley;
 import android.os.Handler;
 import android.os.Looper;
 
+import java.io.Flushable;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -86,6 +88,12 @@ public class RequestQueue {
     /** The cache dispatcher. */
     private CacheDispatcher mCacheDispatcher;
 
+    /** Counters of cache use, updated by the dispatchers. */
+    private final CacheMetrics mCacheMetrics = new CacheMetrics();
+
+    /** Normalizer for the cache keys of requests that don't have their own, if any. */
+    private volatile CacheKeyNormalizer mCacheKeyNormalizer;
+
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
@@ -130,20 +138,22 @@ public class RequestQueue {
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
         // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
+        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery,
+                mCacheMetrics);
         mCacheDispatcher.start();
 
         // Create network dispatchers (and corresponding threads) up to the pool size.
         for (int i = 0; i < mDispatchers.length; i++) {
             NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
+                    mCache, mDelivery, mCacheMetrics);
             mDispatchers[i] = networkDispatcher;
             networkDispatcher.start();
         }
     }
 
     /**
-     * Stops the cache and network dispatchers.
+     * Stops the cache and network dispatchers. If the cache is {@link Flushable}, such as one
+     * that writes entries in the background, waits for it to be flushed.
      */
     public void stop() {
         if (mCacheDispatcher != null) {
@@ -154,6 +164,13 @@ public class RequestQueue {
                 mDispatchers[i].quit();
             }
         }
+        if (mCache instanceof Flushable) {
+            try {
+                ((Flushable) mCache).flush();
+            } catch (IOException e) {
+                VolleyLog.e(e, "Failed to flush cache");
+            }
+        }
     }
 
     /**
@@ -170,6 +187,39 @@ public class RequestQueue {
         return mCache;
     }
 
+    /**
+     * Gets the counters of cache use. Pass them to the cache, if it supports it, to also count
+     * its evictions and the bytes it reads and writes.
+     */
+    public CacheMetrics getCacheMetrics() {
+        return mCacheMetrics;
+    }
+
+    /**
+     * Maps the URL of a request to its cache key, so that URLs differing only in ways that
+     * don't change the response, such as a credential in the query string, share an entry.
+     * Must be thread safe and return the same key for the same URL every time.
+     */
+    public interface CacheKeyNormalizer {
+        public String normalize(String url);
+    }
+
+    /**
+     * Sets the normalizer used for the cache keys of requests added to this queue, unless
+     * they have their own. Should be set before any requests are added.
+     * @param normalizer The normalizer, or null to use URLs as cache keys
+     */
+    public void setCacheKeyNormalizer(CacheKeyNormalizer normalizer) {
+        mCacheKeyNormalizer = normalizer;
+    }
+
+    /**
+     * Returns the normalizer used for the cache keys of requests added to this queue, or null.
+     */
+    public CacheKeyNormalizer getCacheKeyNormalizer() {
+        return mCacheKeyNormalizer;
+    }
+
     /**
      * A simple predicate or filter interface for Requests, for use by
      * {@link RequestQueue#cancelAll(RequestFilter)}.
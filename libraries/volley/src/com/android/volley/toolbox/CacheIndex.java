@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Compact in-memory index of the entries of a {@link DiskBasedCache}.
+ *
+ * <p>Entries are identified by a 64-bit hash of their key and only hold what is needed for
+ * hit/miss and eviction decisions: size, TTLs, LRU position and whether the entry is pinned
+ * against eviction. Keys, ETags and response
+ * headers stay in the entry files and are read on demand. The index is an open-addressing
+ * hash table with linear probing, stored in parallel primitive arrays, with the LRU order
+ * kept as a doubly-linked list threaded through the slots, so there is no per-entry object
+ * allocation. Pinned entries are linked after all unpinned ones, so the least recently used
+ * slot is the next eviction candidate unless everything is pinned.</p>
+ *
+ * <p>A hash of 0 marks an empty slot and must not be used as a key. This class is not thread
+ * safe.</p>
+ */
+class CacheIndex {
+
+    /** Slot number used for "no slot" in the LRU links. */
+    static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] mHashes;
+    private int[] mSizes;
+    private long[] mTtls;
+    private long[] mSoftTtls;
+    private boolean[] mPinned;
+
+    /** Links towards the least recently used (prev) and most recently used (next) slot. */
+    private int[] mPrev;
+    private int[] mNext;
+
+    /** Least recently used slot. */
+    private int mHead = NONE;
+
+    /** Most recently used slot. */
+    private int mTail = NONE;
+
+    /** Most recently used unpinned slot, after which the pinned slots are linked. */
+    private int mUnpinnedTail = NONE;
+
+    private int mCount = 0;
+    private long mTotalSize = 0;
+    private long mPinnedSize = 0;
+    private int mMask;
+
+    CacheIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mHashes = new long[capacity];
+        mSizes = new int[capacity];
+        mTtls = new long[capacity];
+        mSoftTtls = new long[capacity];
+        mPinned = new boolean[capacity];
+        mPrev = new int[capacity];
+        mNext = new int[capacity];
+        mMask = capacity - 1;
+        mHead = NONE;
+        mTail = NONE;
+        mUnpinnedTail = NONE;
+        mCount = 0;
+        mTotalSize = 0;
+        mPinnedSize = 0;
+    }
+
+    /** Returns the number of entries. */
+    int size() {
+        return mCount;
+    }
+
+    /** Returns the sum of the sizes of all entries. */
+    long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /** Returns the sum of the sizes of the pinned entries. */
+    long getPinnedSize() {
+        return mPinnedSize;
+    }
+
+    /** Returns true if an entry with the given hash is present. */
+    boolean contains(long hash) {
+        return find(hash) != NONE;
+    }
+
+    /**
+     * Returns the slot holding the given hash, or {@link #NONE}. Slots are only valid until
+     * the next modification.
+     */
+    int find(long hash) {
+        int i = (int) hash & mMask;
+        long h;
+        while ((h = mHashes[i]) != 0) {
+            if (h == hash) {
+                return i;
+            }
+            i = (i + 1) & mMask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Marks an entry as most recently used, among the pinned or unpinned entries.
+     * @return false if there is no such entry
+     */
+    boolean touch(long hash) {
+        int i = find(hash);
+        if (i == NONE) {
+            return false;
+        }
+        moveToMostRecent(i);
+        return true;
+    }
+
+    /**
+     * Adds or replaces an entry and marks it as most recently used. A replaced entry stays
+     * pinned if it was.
+     */
+    void put(long hash, int size, long ttl, long softTtl) {
+        int i = find(hash);
+        if (i == NONE) {
+            if ((mCount + 1) * 4 > mHashes.length * 3) {
+                resize(mHashes.length * 2);
+            }
+            i = (int) hash & mMask;
+            while (mHashes[i] != 0) {
+                i = (i + 1) & mMask;
+            }
+            mHashes[i] = hash;
+            mSizes[i] = 0;
+            mPinned[i] = false;
+            link(i);
+            mCount++;
+        } else {
+            moveToMostRecent(i);
+        }
+        mTotalSize += size - mSizes[i];
+        if (mPinned[i]) {
+            mPinnedSize += size - mSizes[i];
+        }
+        mSizes[i] = size;
+        mTtls[i] = ttl;
+        mSoftTtls[i] = softTtl;
+    }
+
+    /**
+     * Replaces the TTLs of an entry without changing its LRU position.
+     * @return false if there is no such entry
+     */
+    boolean setTtls(long hash, long ttl, long softTtl) {
+        int i = find(hash);
+        if (i == NONE) {
+            return false;
+        }
+        mTtls[i] = ttl;
+        mSoftTtls[i] = softTtl;
+        return true;
+    }
+
+    /** Returns true if the entry with the given hash is present and pinned. */
+    boolean isPinned(long hash) {
+        int i = find(hash);
+        return i != NONE && mPinned[i];
+    }
+
+    /**
+     * Pins or unpins an entry, making it the most recently used of the pinned or unpinned
+     * entries.
+     * @return false if there is no such entry
+     */
+    boolean setPinned(long hash, boolean pinned) {
+        int i = find(hash);
+        if (i == NONE) {
+            return false;
+        }
+        if (mPinned[i] != pinned) {
+            unlink(i);
+            mPinned[i] = pinned;
+            mPinnedSize += pinned ? mSizes[i] : -mSizes[i];
+            link(i);
+        }
+        return true;
+    }
+
+    /**
+     * Removes an entry.
+     * @return false if there is no such entry
+     */
+    boolean remove(long hash) {
+        int gap = find(hash);
+        if (gap == NONE) {
+            return false;
+        }
+        unlink(gap);
+        mTotalSize -= mSizes[gap];
+        if (mPinned[gap]) {
+            mPinnedSize -= mSizes[gap];
+        }
+        mCount--;
+        mHashes[gap] = 0;
+
+        // Shift back any following entries that would no longer be reachable by probing.
+        int j = (gap + 1) & mMask;
+        long h;
+        while ((h = mHashes[j]) != 0) {
+            int ideal = (int) h & mMask;
+            if (((j - ideal) & mMask) >= ((j - gap) & mMask)) {
+                moveSlot(j, gap);
+                gap = j;
+            }
+            j = (j + 1) & mMask;
+        }
+        return true;
+    }
+
+    /** Removes all entries. */
+    void clear() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns the least recently used slot, or {@link #NONE} if empty. Pinned slots follow
+     * all unpinned ones.
+     */
+    int first() {
+        return mHead;
+    }
+
+    /** Returns the next more recently used slot, or {@link #NONE}. */
+    int next(int slot) {
+        return mNext[slot];
+    }
+
+    long hashAt(int slot) {
+        return mHashes[slot];
+    }
+
+    int sizeAt(int slot) {
+        return mSizes[slot];
+    }
+
+    long ttlAt(int slot) {
+        return mTtls[slot];
+    }
+
+    long softTtlAt(int slot) {
+        return mSoftTtls[slot];
+    }
+
+    boolean isPinnedAt(int slot) {
+        return mPinned[slot];
+    }
+
+    /**
+     * Returns the approximate heap footprint of the index's arrays, in bytes.
+     */
+    long getHeapSize() {
+        // Three long arrays, three int arrays and a boolean array per slot.
+        return (long) mHashes.length * (3 * 8 + 3 * 4 + 1);
+    }
+
+    private void resize(int capacity) {
+        long[] hashes = mHashes;
+        int[] sizes = mSizes;
+        long[] ttls = mTtls;
+        long[] softTtls = mSoftTtls;
+        boolean[] pinned = mPinned;
+        int[] next = mNext;
+        int slot = mHead;
+        allocate(capacity);
+        // Reinsert in LRU order to rebuild the list.
+        while (slot != NONE) {
+            put(hashes[slot], sizes[slot], ttls[slot], softTtls[slot]);
+            if (pinned[slot]) {
+                setPinned(hashes[slot], true);
+            }
+            slot = next[slot];
+        }
+    }
+
+    /** Links a slot as the most recently used of the pinned or unpinned slots. */
+    private void link(int i) {
+        if (mPinned[i]) {
+            linkAfter(i, mTail);
+        } else {
+            linkAfter(i, mUnpinnedTail);
+            mUnpinnedTail = i;
+        }
+    }
+
+    /** Links a slot after another, or at the head for {@link #NONE}. */
+    private void linkAfter(int i, int prev) {
+        int next = prev == NONE ? mHead : mNext[prev];
+        mPrev[i] = prev;
+        mNext[i] = next;
+        if (prev != NONE) {
+            mNext[prev] = i;
+        } else {
+            mHead = i;
+        }
+        if (next != NONE) {
+            mPrev[next] = i;
+        } else {
+            mTail = i;
+        }
+    }
+
+    private void unlink(int i) {
+        int prev = mPrev[i];
+        int next = mNext[i];
+        if (i == mUnpinnedTail) {
+            mUnpinnedTail = prev;
+        }
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+
+    private void moveToMostRecent(int i) {
+        if (i != (mPinned[i] ? mTail : mUnpinnedTail)) {
+            unlink(i);
+            link(i);
+        }
+    }
+
+    /** Moves the entry in slot {@code from} into the empty slot {@code to}. */
+    private void moveSlot(int from, int to) {
+        mHashes[to] = mHashes[from];
+        mSizes[to] = mSizes[from];
+        mTtls[to] = mTtls[from];
+        mSoftTtls[to] = mSoftTtls[from];
+        mPinned[to] = mPinned[from];
+        int prev = mPrev[from];
+        int next = mNext[from];
+        mPrev[to] = prev;
+        mNext[to] = next;
+        if (mUnpinnedTail == from) {
+            mUnpinnedTail = to;
+        }
+        if (prev != NONE) {
+            mNext[prev] = to;
+        } else {
+            mHead = to;
+        }
+        if (next != NONE) {
+            mPrev[next] = to;
+        } else {
+            mTail = to;
+        }
+        mHashes[from] = 0;
+    }
+}
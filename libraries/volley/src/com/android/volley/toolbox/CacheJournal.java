@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.VolleyLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Append-only log of the changes made to the index of a {@link DiskBasedCache}.
+ *
+ * <p>Replaying the journal rebuilds the index with a single sequential read, instead of opening
+ * and parsing the header of every entry file in the cache directory. Records are fixed-size
+ * and identify entries by key hash, as the {@link CacheIndex} does. Each record is one of:
+ * <ul>
+ *     <li>ADD: the hash, size and TTLs of an entry that was written.</li>
+ *     <li>REMOVE: the hash of an entry that was deleted.</li>
+ *     <li>ACCESS: the hash of an entry that was read, to preserve LRU order across restarts.</li>
+ *     <li>TTL: the hash and new TTLs of an entry whose metadata was updated in place.</li>
+ *     <li>PIN and UNPIN: the hash of an entry that was pinned against eviction or unpinned.</li>
+ * </ul>
+ * Once the journal holds many more records than there are live entries it is compacted by
+ * rewriting it with a single ADD record per entry, plus a PIN record per pinned entry.</p>
+ *
+ * <p>This class is not thread safe; callers are expected to hold the cache's lock.</p>
+ */
+class CacheJournal {
+
+    /** Name of the journal file inside the cache directory. */
+    static final String JOURNAL_FILE = "journal";
+
+    /** Name of the file a compacted journal is written to before replacing the journal. */
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+
+    /** Magic number for current version of the journal format. */
+    private static final int JOURNAL_MAGIC = 0x20141117;
+
+    private static final int OP_ADD = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_ACCESS = 3;
+    private static final int OP_TTL = 4;
+    private static final int OP_PIN = 5;
+    private static final int OP_UNPIN = 6;
+
+    /** Minimum number of records before compaction is considered. */
+    private static final int COMPACTION_THRESHOLD = 2000;
+
+    private final File mFile;
+    private final File mTempFile;
+
+    /** Open stream for appending records, or null if the journal is not writable. */
+    private OutputStream mWriter;
+
+    /** Number of records in the journal file, used to decide when to compact. */
+    private int mRecordCount;
+
+    /**
+     * @param rootDirectory The cache directory the journal lives in.
+     */
+    CacheJournal(File rootDirectory) {
+        mFile = new File(rootDirectory, JOURNAL_FILE);
+        mTempFile = new File(rootDirectory, JOURNAL_FILE_TEMP);
+    }
+
+    /**
+     * Returns true if the given file in the cache directory belongs to the journal rather than
+     * to a cache entry.
+     */
+    static boolean isJournalFile(File file) {
+        String name = file.getName();
+        return name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TEMP);
+    }
+
+    /**
+     * Replays the journal into the given index.
+     * @return false if the journal is missing or corrupt, in which case the index should be
+     * discarded and the index rebuilt from the entry files.
+     */
+    boolean replay(CacheIndex index) {
+        if (!mFile.exists()) {
+            return false;
+        }
+        InputStream is = null;
+        int records = 0;
+        try {
+            is = new BufferedInputStream(new FileInputStream(mFile));
+            if (DiskBasedCache.readInt(is) != JOURNAL_MAGIC) {
+                throw new IOException("Unknown journal format");
+            }
+            int op;
+            while ((op = is.read()) != -1) {
+                switch (op) {
+                    case OP_ADD:
+                        long hash = DiskBasedCache.readLong(is);
+                        int size = DiskBasedCache.readInt(is);
+                        long ttl = DiskBasedCache.readLong(is);
+                        long softTtl = DiskBasedCache.readLong(is);
+                        index.put(hash, size, ttl, softTtl);
+                        break;
+                    case OP_REMOVE:
+                        index.remove(DiskBasedCache.readLong(is));
+                        break;
+                    case OP_ACCESS:
+                        index.touch(DiskBasedCache.readLong(is));
+                        break;
+                    case OP_TTL:
+                        long updated = DiskBasedCache.readLong(is);
+                        long newTtl = DiskBasedCache.readLong(is);
+                        long newSoftTtl = DiskBasedCache.readLong(is);
+                        index.setTtls(updated, newTtl, newSoftTtl);
+                        break;
+                    case OP_PIN:
+                        index.setPinned(DiskBasedCache.readLong(is), true);
+                        break;
+                    case OP_UNPIN:
+                        index.setPinned(DiskBasedCache.readLong(is), false);
+                        break;
+                    default:
+                        throw new IOException("Unknown journal record " + op);
+                }
+                records++;
+            }
+            mRecordCount = records;
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("Discarding journal %s: %s", mFile.getAbsolutePath(), e.toString());
+            return false;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Opens the existing journal for appending further records.
+     */
+    void openForAppend() {
+        try {
+            mWriter = new BufferedOutputStream(new FileOutputStream(mFile, true));
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    /**
+     * Replaces the journal with one holding a single ADD record per entry of the index, in
+     * LRU order, and a PIN record per pinned entry, and opens it for appending.
+     */
+    void rewrite(CacheIndex index) {
+        close();
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(mTempFile));
+            DiskBasedCache.writeInt(os, JOURNAL_MAGIC);
+            for (int slot = index.first(); slot != CacheIndex.NONE; slot = index.next(slot)) {
+                writeAdd(os, index.hashAt(slot), index.sizeAt(slot), index.ttlAt(slot),
+                        index.softTtlAt(slot));
+            }
+            int records = index.size();
+            for (int slot = index.first(); slot != CacheIndex.NONE; slot = index.next(slot)) {
+                if (index.isPinnedAt(slot)) {
+                    os.write(OP_PIN);
+                    DiskBasedCache.writeLong(os, index.hashAt(slot));
+                    records++;
+                }
+            }
+            os.close();
+            os = null;
+            if (!mTempFile.renameTo(mFile)) {
+                throw new IOException("Could not rename " + mTempFile.getAbsolutePath());
+            }
+            mRecordCount = records;
+            openForAppend();
+        } catch (IOException e) {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) { }
+            }
+            mTempFile.delete();
+            abandon(e);
+        }
+    }
+
+    /**
+     * Returns true if the journal has accumulated enough redundant records that it should be
+     * rewritten.
+     * @param liveEntries The number of entries currently in the index.
+     */
+    boolean needsCompaction(int liveEntries) {
+        return mRecordCount >= COMPACTION_THRESHOLD && mRecordCount >= liveEntries * 2;
+    }
+
+    /**
+     * Records that an entry was written. The record is flushed immediately.
+     */
+    void add(long hash, int size, long ttl, long softTtl) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            writeAdd(mWriter, hash, size, ttl, softTtl);
+            mWriter.flush();
+            mRecordCount++;
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    /**
+     * Records that an entry was removed. The record is flushed immediately.
+     */
+    void remove(long hash) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(OP_REMOVE);
+            DiskBasedCache.writeLong(mWriter, hash);
+            mWriter.flush();
+            mRecordCount++;
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    /**
+     * Records that the first {@code count} entries of {@code hashes} were removed. The records
+     * are flushed together.
+     */
+    void remove(long[] hashes, int count) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                mWriter.write(OP_REMOVE);
+                DiskBasedCache.writeLong(mWriter, hashes[i]);
+            }
+            mWriter.flush();
+            mRecordCount += count;
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    /**
+     * Records that an entry's TTLs were updated. The record is flushed immediately.
+     */
+    void updateTtls(long hash, long ttl, long softTtl) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(OP_TTL);
+            DiskBasedCache.writeLong(mWriter, hash);
+            DiskBasedCache.writeLong(mWriter, ttl);
+            DiskBasedCache.writeLong(mWriter, softTtl);
+            mWriter.flush();
+            mRecordCount++;
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    /**
+     * Records that an entry was pinned or unpinned. The record is flushed immediately.
+     */
+    void setPinned(long hash, boolean pinned) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(pinned ? OP_PIN : OP_UNPIN);
+            DiskBasedCache.writeLong(mWriter, hash);
+            mWriter.flush();
+            mRecordCount++;
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    /**
+     * Records that an entry was read. The record is buffered, since losing it only affects
+     * eviction order.
+     */
+    void access(long hash) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(OP_ACCESS);
+            DiskBasedCache.writeLong(mWriter, hash);
+            mRecordCount++;
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    /**
+     * Flushes and closes the journal. Further records are dropped until it is reopened.
+     */
+    void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) { }
+            mWriter = null;
+        }
+    }
+
+    private static void writeAdd(OutputStream os, long hash, int size, long ttl, long softTtl)
+            throws IOException {
+        os.write(OP_ADD);
+        DiskBasedCache.writeLong(os, hash);
+        DiskBasedCache.writeInt(os, size);
+        DiskBasedCache.writeLong(os, ttl);
+        DiskBasedCache.writeLong(os, softTtl);
+    }
+
+    /**
+     * Stops journaling after a write failure. The journal is deleted rather than left stale, so
+     * that the next initialization falls back to scanning the entry files.
+     */
+    private void abandon(IOException e) {
+        VolleyLog.d("Disabling journal %s: %s", mFile.getAbsolutePath(), e.toString());
+        close();
+        mFile.delete();
+    }
+}
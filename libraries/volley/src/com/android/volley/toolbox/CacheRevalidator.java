@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Revalidates many stale cache entries in the background, such as when an app returns to the
+ * foreground after hours, so that they are not revalidated one by one as they are read.
+ *
+ * <p>Each entry is revalidated with a low priority conditional GET sent to a
+ * {@link RequestQueue}; a 304 only refreshes the entry's metadata and a 200 replaces it.
+ * At most a given number of revalidations are in flight at once, and new ones are held back
+ * while the bodies received so far exceed a given average rate. Entries that are still fresh
+ * or missing are skipped. When all entries of a call are done, a {@link Result} is delivered
+ * on the main thread.</p>
+ *
+ * <p>Requests are sent with the headers a {@link HeaderResolver} supplies. For responses
+ * cached per variant, a variant's key also gives the values of the headers named by Vary,
+ * and the key of the response itself stands for the variant those headers select.</p>
+ */
+public class CacheRevalidator {
+
+    /** Default maximum number of revalidations in flight. */
+    private static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    /** Maps cache keys to the URLs to revalidate them at. */
+    public interface UrlResolver {
+        /**
+         * @return the URL to revalidate the entry at, or null to skip it
+         */
+        public String getUrl(String cacheKey);
+    }
+
+    /** Supplies the headers to revalidate entries with. */
+    public interface HeaderResolver {
+        /**
+         * @param cacheKey The cache key of the entry, without the variant part of responses
+         *     cached per variant
+         * @return the headers to send, such as those the entry was first requested with
+         */
+        public Map<String, String> getHeaders(String cacheKey);
+    }
+
+    /** Counts of the outcomes of a call to {@link #revalidate}. */
+    public static class Result {
+        /** Entries the server confirmed with a 304. */
+        public int notModified;
+
+        /** Entries the server sent again with a 200. */
+        public int modified;
+
+        /** Revalidations that failed. */
+        public int failed;
+
+        /** Entries not revalidated. */
+        public int skipped;
+
+        /** Total size of the bodies received. */
+        public long bytes;
+
+        @Override
+        public String toString() {
+            return String.format("304: %d, 200: %d, failed: %d, skipped: %d, bytes: %d",
+                    notModified, modified, failed, skipped, bytes);
+        }
+    }
+
+    /** Cache keys are used as URLs by default. */
+    private static final UrlResolver IDENTITY_RESOLVER = new UrlResolver() {
+        @Override
+        public String getUrl(String cacheKey) {
+            return cacheKey;
+        }
+    };
+
+    /** No headers are sent by default, other than the validators. */
+    private static final HeaderResolver EMPTY_HEADER_RESOLVER = new HeaderResolver() {
+        @Override
+        public Map<String, String> getHeaders(String cacheKey) {
+            return Collections.emptyMap();
+        }
+    };
+
+    private final RequestQueue mQueue;
+    private final int mMaxConcurrent;
+    private final long mMaxBytesPerSecond;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private volatile UrlResolver mUrlResolver = IDENTITY_RESOLVER;
+    private volatile HeaderResolver mHeaderResolver = EMPTY_HEADER_RESOLVER;
+
+    private ScheduledExecutorService mExecutor;
+
+    /**
+     * Creates a revalidator.
+     * @param queue The queue to send revalidations to, whose cache holds the entries
+     * @param maxConcurrent Maximum number of revalidations in flight at once
+     * @param maxBytesPerSecond Maximum average rate of the bodies received, or 0 for no limit
+     */
+    public CacheRevalidator(RequestQueue queue, int maxConcurrent, long maxBytesPerSecond) {
+        mQueue = queue;
+        mMaxConcurrent = maxConcurrent;
+        mMaxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Creates a revalidator with 2 revalidations in flight at once and no rate limit.
+     * @param queue The queue to send revalidations to, whose cache holds the entries
+     */
+    public CacheRevalidator(RequestQueue queue) {
+        this(queue, DEFAULT_MAX_CONCURRENT, 0);
+    }
+
+    /**
+     * Sets how cache keys are mapped to URLs, for when requests' cache keys are not their
+     * URLs, such as when they leave out credentials.
+     */
+    public void setUrlResolver(UrlResolver resolver) {
+        mUrlResolver = resolver;
+    }
+
+    /**
+     * Sets the headers entries are revalidated with, for requests that send headers of their
+     * own, such as those responses vary by.
+     */
+    public void setHeaderResolver(HeaderResolver resolver) {
+        mHeaderResolver = resolver;
+    }
+
+    /**
+     * Revalidates the entries with the given keys that need a refresh.
+     * @param cacheKeys Keys of the entries
+     * @param listener Listener to receive the counts of outcomes once all are done, or null
+     */
+    public void revalidate(Collection<String> cacheKeys, Response.Listener<Result> listener) {
+        final Batch batch = new Batch(cacheKeys, listener);
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                batch.launch();
+            }
+        });
+    }
+
+    private synchronized ScheduledExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "CacheRevalidator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    /** The entries of one call to {@link #revalidate}. Its state is guarded by itself. */
+    private class Batch implements Runnable {
+        private final ArrayDeque<String> mPending;
+        private final Response.Listener<Result> mListener;
+        private final Result mResult = new Result();
+        private final long mStartTime = System.currentTimeMillis();
+        private int mInFlight = 0;
+        private boolean mLaunchScheduled = false;
+        private boolean mDelivered = false;
+
+        Batch(Collection<String> cacheKeys, Response.Listener<Result> listener) {
+            mPending = new ArrayDeque<String>(cacheKeys);
+            mListener = listener;
+        }
+
+        /**
+         * Launches as many revalidations as the limits allow. Runs on the executor; the cache
+         * is read without holding the lock, so that completions are never held up by it.
+         */
+        void launch() {
+            Cache cache = mQueue.getCache();
+            synchronized (this) {
+                mLaunchScheduled = false;
+            }
+            while (true) {
+                String cacheKey;
+                synchronized (this) {
+                    if (mInFlight >= mMaxConcurrent || mPending.isEmpty()) {
+                        deliverIfDone();
+                        return;
+                    }
+                    long delay = getBandwidthDelay();
+                    if (delay > 0) {
+                        if (!mLaunchScheduled) {
+                            mLaunchScheduled = true;
+                            getExecutor().schedule(this, delay, TimeUnit.MILLISECONDS);
+                        }
+                        return;
+                    }
+                    cacheKey = mPending.poll();
+                    mInFlight++;
+                }
+
+                RevalidationRequest request = makeRequest(cache, cacheKey);
+                if (request == null || !request.getCacheEntry().refreshNeeded()) {
+                    synchronized (this) {
+                        mInFlight--;
+                        mResult.skipped++;
+                    }
+                    continue;
+                }
+                mQueue.add(request);
+            }
+        }
+
+        /**
+         * Creates the revalidation of the entry with the given key, or returns null if there
+         * is nothing to revalidate. A variant is revalidated with the header values its key
+         * records, and the entry that only records the Vary header of a response resolves to
+         * the variant selected by the headers of the {@link HeaderResolver}.
+         */
+        private RevalidationRequest makeRequest(Cache cache, String cacheKey) {
+            Cache.Entry entry = cache.get(cacheKey);
+            if (entry == null) {
+                return null;
+            }
+            // Requests are keyed without the variant part, which the network dispatcher
+            // appends again from the Vary header of the response.
+            int variantStart = cacheKey.indexOf('\n');
+            String baseKey = variantStart < 0 ? cacheKey : cacheKey.substring(0, variantStart);
+            String url = mUrlResolver.getUrl(baseKey);
+            if (url == null) {
+                return null;
+            }
+            Map<String, String> headers =
+                    new HashMap<String, String>(mHeaderResolver.getHeaders(baseKey));
+            if (variantStart >= 0) {
+                for (String header : cacheKey.substring(variantStart + 1).split("\n")) {
+                    int colon = header.indexOf(':');
+                    String name = header.substring(0, colon);
+                    String value = header.substring(colon + 1);
+                    removeHeader(headers, name);
+                    if (value.length() > 0) {
+                        headers.put(name, value);
+                    }
+                }
+            }
+
+            RevalidationRequest request = new RevalidationRequest(url, baseKey, headers, entry,
+                    null, null) {
+                @Override
+                protected void deliverResponse(Boolean notModified) {
+                    onDone(this, notModified);
+                }
+
+                @Override
+                public void deliverError(VolleyError error) {
+                    onDone(this, null);
+                }
+            };
+            if (variantStart < 0) {
+                String variantKey;
+                try {
+                    variantKey = request.getVariantCacheKey(entry.responseHeaders);
+                } catch (AuthFailureError e) {
+                    return null;
+                }
+                if (variantKey != null) {
+                    Cache.Entry variant = cache.get(variantKey);
+                    if (variant == null) {
+                        return null;
+                    }
+                    request.setCacheEntry(variant);
+                }
+            }
+            return request;
+        }
+
+        @Override
+        public void run() {
+            launch();
+        }
+
+        /** Records the outcome of a revalidation and launches the next. */
+        synchronized void onDone(RevalidationRequest request, Boolean notModified) {
+            mInFlight--;
+            if (notModified == null) {
+                mResult.failed++;
+            } else if (notModified) {
+                mResult.notModified++;
+            } else {
+                mResult.modified++;
+            }
+            mResult.bytes += request.getResponseBytes();
+            if (!mPending.isEmpty() && !mLaunchScheduled) {
+                mLaunchScheduled = true;
+                getExecutor().execute(this);
+            }
+            deliverIfDone();
+        }
+
+        /**
+         * Returns how long to wait until the bodies received so far are within the rate
+         * limit, in milliseconds.
+         */
+        private long getBandwidthDelay() {
+            if (mMaxBytesPerSecond <= 0) {
+                return 0;
+            }
+            long elapsed = System.currentTimeMillis() - mStartTime;
+            return mResult.bytes * 1000 / mMaxBytesPerSecond - elapsed;
+        }
+
+        private void deliverIfDone() {
+            if (mInFlight > 0 || !mPending.isEmpty() || mDelivered) {
+                return;
+            }
+            mDelivered = true;
+            VolleyLog.d("Revalidated %s", mResult);
+            if (mListener != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onResponse(mResult);
+                    }
+                });
+            }
+        }
+    }
+
+    /** Removes the header with the given name, ignoring case. */
+    private static void removeHeader(Map<String, String> headers, String name) {
+        Iterator<String> names = headers.keySet().iterator();
+        while (names.hasNext()) {
+            if (names.next().equalsIgnoreCase(name)) {
+                names.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link Cache} that deflates the data of compressible entries before writing them to
+ * another cache, typically a {@link DiskBasedCache}, and inflates it again when it is read.
+ *
+ * <p>Which entries are compressed is decided by a {@link CompressionFilter}; the default one
+ * compresses text, JSON, JavaScript and XML, and skips images and other types that are
+ * already compressed. Data that doesn't shrink by at least an eighth is stored as is. The
+ * wrapped cache sees the compressed data, so its size accounting and eviction use the size on
+ * disk. Returned entries inflate their data when {@link Entry#getData()} is first called, so
+ * checking expiry or revalidating an entry never inflates it.</p>
+ */
+public class CompressingCache implements Cache {
+
+    /** Smallest data compressed by {@link #DEFAULT_FILTER}. */
+    private static final int DEFAULT_MIN_SIZE = 256;
+
+    /**
+     * Response header holding the uncompressed length of compressed entries in the wrapped
+     * cache. Removed from returned entries.
+     */
+    private static final String UNCOMPRESSED_LENGTH_HEADER = "X-Volley-Uncompressed-Length";
+
+    /**
+     * Decides which entries are compressed. The cache only sees keys and entries, so filters
+     * tell kinds of responses apart by their response headers, such as Content-Type.
+     */
+    public interface CompressionFilter {
+        /**
+         * @return true to try compressing the entry's data
+         */
+        public boolean shouldCompress(String key, Entry entry);
+    }
+
+    /**
+     * Compresses entries of at least 256 bytes whose Content-Type is text, JSON, JavaScript or
+     * XML, and which have no Content-Encoding of their own.
+     */
+    public static final CompressionFilter DEFAULT_FILTER = new CompressionFilter() {
+        @Override
+        public boolean shouldCompress(String key, Entry entry) {
+            if (entry.getData().length < DEFAULT_MIN_SIZE) {
+                return false;
+            }
+            String contentType = null;
+            for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                if (header.getKey().equalsIgnoreCase("Content-Encoding")
+                        && !header.getValue().equalsIgnoreCase("identity")) {
+                    return false;
+                }
+                if (header.getKey().equalsIgnoreCase("Content-Type")) {
+                    contentType = header.getValue().toLowerCase();
+                }
+            }
+            if (contentType == null) {
+                return false;
+            }
+            int semicolon = contentType.indexOf(';');
+            if (semicolon != -1) {
+                contentType = contentType.substring(0, semicolon);
+            }
+            contentType = contentType.trim();
+            return contentType.startsWith("text/")
+                    || contentType.equals("application/json")
+                    || contentType.equals("application/javascript")
+                    || contentType.equals("application/x-javascript")
+                    || contentType.equals("application/xml")
+                    || contentType.endsWith("+json")
+                    || contentType.endsWith("+xml");
+        }
+    };
+
+    /** The cache compressed entries are written to. */
+    private final Cache mCache;
+
+    private final int mLevel;
+
+    private CompressionFilter mFilter = DEFAULT_FILTER;
+
+    private long mUncompressedBytes = 0;
+    private long mCompressedBytes = 0;
+    private long mCompressionNanos = 0;
+
+    /**
+     * Constructs an instance of the CompressingCache.
+     * @param cache The cache to write entries to
+     * @param level The deflate compression level, from {@link Deflater#BEST_SPEED} to
+     *     {@link Deflater#BEST_COMPRESSION}
+     */
+    public CompressingCache(Cache cache, int level) {
+        mCache = cache;
+        mLevel = level;
+    }
+
+    /**
+     * Constructs an instance of the CompressingCache favoring speed over compression ratio.
+     * @param cache The cache to write entries to
+     */
+    public CompressingCache(Cache cache) {
+        this(cache, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Sets the filter deciding which entries are compressed. Entries already cached are not
+     * affected.
+     */
+    public synchronized void setCompressionFilter(CompressionFilter filter) {
+        mFilter = filter;
+    }
+
+    @Override
+    public void initialize() {
+        mCache.initialize();
+    }
+
+    /**
+     * Returns the entry with the specified key, inflating its data when it is first read if
+     * it was stored compressed.
+     */
+    @Override
+    public Entry get(String key) {
+        Entry entry = mCache.get(key);
+        if (entry == null || entry.responseHeaders == null) {
+            return entry;
+        }
+        String length = entry.responseHeaders.get(UNCOMPRESSED_LENGTH_HEADER);
+        if (length == null) {
+            return entry;
+        }
+        try {
+            return new InflatingEntry(entry, Integer.parseInt(length));
+        } catch (NumberFormatException e) {
+            VolleyLog.d("Bad %s for %s: %s", UNCOMPRESSED_LENGTH_HEADER, key, length);
+            mCache.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Puts the entry into the wrapped cache, compressed if the filter accepts it and its data
+     * shrinks enough.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        CompressionFilter filter;
+        synchronized (this) {
+            filter = mFilter;
+        }
+        if (!filter.shouldCompress(key, entry)) {
+            mCache.put(key, entry);
+            return;
+        }
+        byte[] data = entry.getData();
+        long start = System.nanoTime();
+        byte[] compressed = deflate(data, mLevel);
+        long elapsed = System.nanoTime() - start;
+        if (compressed == null) {
+            mCache.put(key, entry);
+            return;
+        }
+        synchronized (this) {
+            mUncompressedBytes += data.length;
+            mCompressedBytes += compressed.length;
+            mCompressionNanos += elapsed;
+        }
+        Entry stored = new Entry();
+        stored.data = compressed;
+        stored.etag = entry.etag;
+        stored.serverDate = entry.serverDate;
+        stored.ttl = entry.ttl;
+        stored.softTtl = entry.softTtl;
+        stored.staleIfErrorTtl = entry.staleIfErrorTtl;
+        stored.responseHeaders = new HashMap<String, String>(entry.responseHeaders);
+        stored.responseHeaders.put(UNCOMPRESSED_LENGTH_HEADER, String.valueOf(data.length));
+        mCache.put(key, stored);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        mCache.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl) {
+        mCache.updateMetadata(key, serverDate, ttl, softTtl);
+    }
+
+    @Override
+    public void remove(String key) {
+        mCache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        mCache.clear();
+    }
+
+    /** Returns the total uncompressed size of the entries stored compressed. */
+    public synchronized long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    /** Returns the total compressed size of the entries stored compressed. */
+    public synchronized long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    /** Returns the total time spent compressing, in nanoseconds. */
+    public synchronized long getCompressionNanos() {
+        return mCompressionNanos;
+    }
+
+    /**
+     * Deflates data without the zlib wrapper.
+     * @return the compressed data, or null if it is not at least an eighth smaller
+     */
+    // Visible for testing.
+    static byte[] deflate(byte[] data, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            int limit = data.length - data.length / 8;
+            byte[] buffer = new byte[limit];
+            int length = 0;
+            while (!deflater.finished() && length < limit) {
+                length += deflater.deflate(buffer, length, limit - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] compressed = new byte[length];
+            System.arraycopy(buffer, 0, compressed, 0, length);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates data compressed by {@link #deflate}.
+     */
+    // Visible for testing.
+    static byte[] inflate(byte[] compressed, int length) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            // A dummy byte is needed after the input when the zlib wrapper is omitted.
+            byte[] input = new byte[compressed.length + 1];
+            System.arraycopy(compressed, 0, input, 0, compressed.length);
+            inflater.setInput(input);
+            byte[] data = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int count = inflater.inflate(data, read, length - read);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != length || !inflater.finished()) {
+                throw new DataFormatException("Expected " + length + " bytes");
+            }
+            return data;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Entry whose data is inflated from a stored entry's when first read.
+     */
+    private static class InflatingEntry extends Entry {
+        private final Entry mStored;
+        private final int mLength;
+
+        private InflatingEntry(Entry stored, int length) {
+            mStored = stored;
+            mLength = length;
+            etag = stored.etag;
+            serverDate = stored.serverDate;
+            ttl = stored.ttl;
+            softTtl = stored.softTtl;
+            staleIfErrorTtl = stored.staleIfErrorTtl;
+            responseHeaders = new HashMap<String, String>(stored.responseHeaders);
+            responseHeaders.remove(UNCOMPRESSED_LENGTH_HEADER);
+        }
+
+        @Override
+        public synchronized byte[] getData() {
+            if (data == null) {
+                byte[] compressed = mStored.getData();
+                if (compressed != null) {
+                    try {
+                        data = inflate(compressed, mLength);
+                    } catch (DataFormatException e) {
+                        VolleyLog.d("%s", e.toString());
+                    }
+                }
+            }
+            return data;
+        }
+    }
+}
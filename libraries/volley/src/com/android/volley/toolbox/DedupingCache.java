@@ -0,0 +1,626 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Cache} that stores identical bodies once, however many keys they are cached under,
+ * such as the same image served by several CDN hosts.
+ *
+ * <p>Bodies of at least a minimum size are written to a directory of their own, in files
+ * named by a 128-bit hash of their content, and the wrapped cache only holds the entry's
+ * metadata and the body's hash. Putting a body that is already stored costs no body write.
+ * Each body counts the keys referencing it and is deleted when the last one is replaced or
+ * removed; the references are kept in a journal in the body directory. Smaller bodies are
+ * stored in the wrapped cache as usual.</p>
+ *
+ * <p>The wrapped cache evicts entries without telling this cache, so their references are only
+ * dropped when the key is next read. The body directory is therefore bounded by its own
+ * maximum size, beyond which the least recently used bodies are deleted; entries whose body
+ * is gone are misses.</p>
+ */
+public class DedupingCache implements Cache {
+
+    /** Default maximum total size of the stored bodies. */
+    private static final long DEFAULT_MAX_BODY_BYTES = 10 * 1024 * 1024;
+
+    /** Default size below which bodies are stored in the wrapped cache. */
+    private static final int DEFAULT_MIN_DEDUPE_BYTES = 4 * 1024;
+
+    /** Response header holding the body's hash in entries of the wrapped cache. */
+    private static final String BODY_HASH_HEADER = "X-Volley-Body-Hash";
+
+    /** Length of a body hash in bytes. */
+    private static final int HASH_LENGTH = 16;
+
+    /** Length of a journal record: key hash and body hash, all zero for a removal. */
+    private static final int RECORD_LENGTH = 8 + HASH_LENGTH;
+
+    private static final String JOURNAL_FILE_NAME = "refs";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final byte[] NO_HASH = new byte[HASH_LENGTH];
+
+    /** The cache holding the entries' metadata. */
+    private final Cache mCache;
+
+    /** The directory bodies and the journal are stored in. */
+    private final File mBodyDirectory;
+
+    private final long mMaxBodyBytes;
+    private final int mMinDedupeBytes;
+
+    /** Body hash referenced by each key, by key hash. Guarded by this. */
+    private final Map<Long, String> mKeys = new HashMap<Long, String>();
+
+    /** Number of keys referencing each body. Guarded by this. */
+    private final Map<String, Integer> mRefCounts = new HashMap<String, Integer>();
+
+    /** Sizes of the stored bodies, in LRU order. Guarded by this. */
+    private final LinkedHashMap<String, Long> mBodies =
+            new LinkedHashMap<String, Long>(16, .75f, true);
+
+    /** Total size of the stored bodies. Guarded by this. */
+    private long mBodyBytes = 0;
+
+    /** The journal, open for appending. Guarded by this. */
+    private FileOutputStream mJournal;
+
+    /** Number of records in the journal. Guarded by this. */
+    private int mJournalRecords = 0;
+
+    /** Total size of the bodies that were already stored when put. Guarded by this. */
+    private long mDedupedBytes = 0;
+
+    /**
+     * Constructs an instance of the DedupingCache.
+     * @param cache The cache to hold the entries' metadata and small bodies
+     * @param bodyDirectory The directory to store bodies in
+     * @param maxBodyBytes The maximum total size of the stored bodies
+     * @param minDedupeBytes The size from which bodies are stored in the body directory
+     */
+    public DedupingCache(Cache cache, File bodyDirectory, long maxBodyBytes,
+            int minDedupeBytes) {
+        mCache = cache;
+        mBodyDirectory = bodyDirectory;
+        mMaxBodyBytes = maxBodyBytes;
+        mMinDedupeBytes = minDedupeBytes;
+    }
+
+    /**
+     * Constructs an instance of the DedupingCache storing bodies of 4KB or more, up to 10MB.
+     * @param cache The cache to hold the entries' metadata and small bodies
+     * @param bodyDirectory The directory to store bodies in
+     */
+    public DedupingCache(Cache cache, File bodyDirectory) {
+        this(cache, bodyDirectory, DEFAULT_MAX_BODY_BYTES, DEFAULT_MIN_DEDUPE_BYTES);
+    }
+
+    /**
+     * Initializes the wrapped cache, then lists the stored bodies and replays the journal of
+     * references. Bodies no key references are deleted.
+     */
+    @Override
+    public void initialize() {
+        mCache.initialize();
+        synchronized (this) {
+            closeJournal();
+            mKeys.clear();
+            mRefCounts.clear();
+            mBodies.clear();
+            mBodyBytes = 0;
+            if (!mBodyDirectory.exists() && !mBodyDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create body dir %s", mBodyDirectory.getAbsolutePath());
+                return;
+            }
+            replayJournal();
+            for (String hash : mKeys.values()) {
+                addRef(hash);
+            }
+            File[] files = mBodyDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.endsWith(TEMP_FILE_SUFFIX)
+                            || (isBodyFileName(name) && !mRefCounts.containsKey(name))) {
+                        file.delete();
+                    } else if (isBodyFileName(name)) {
+                        mBodies.put(name, file.length());
+                        mBodyBytes += file.length();
+                    }
+                }
+            }
+            rewriteJournal();
+            trimBodies();
+        }
+    }
+
+    /**
+     * Returns the entry with the specified key. A body stored in the body directory is read
+     * on the first call to {@link Entry#getData()}, which returns null if it was deleted
+     * meanwhile.
+     */
+    @Override
+    public Entry get(String key) {
+        long keyHash = DiskBasedCache.hashKey(key);
+        Entry entry = mCache.get(key);
+        if (entry == null) {
+            // Evicted by the wrapped cache, or never cached.
+            synchronized (this) {
+                setKey(keyHash, null);
+            }
+            return null;
+        }
+        String hash = entry.responseHeaders == null
+                ? null : entry.responseHeaders.get(BODY_HASH_HEADER);
+        if (hash == null) {
+            return entry;
+        }
+        boolean stored;
+        synchronized (this) {
+            // Moves the body to the most recently used end.
+            stored = mBodies.get(hash) != null;
+        }
+        if (!stored) {
+            removeIfReferencing(key, keyHash, hash);
+            return null;
+        }
+        Entry result = new StoredBodyEntry(key, keyHash, hash);
+        copyMetadata(entry, result);
+        result.responseHeaders.remove(BODY_HASH_HEADER);
+        return result;
+    }
+
+    /**
+     * Puts the entry into the wrapped cache, storing its body in the body directory unless it
+     * is small or already stored there.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        long keyHash = DiskBasedCache.hashKey(key);
+        byte[] data = entry.getData();
+        if (data.length < mMinDedupeBytes) {
+            mCache.put(key, entry);
+            synchronized (this) {
+                setKey(keyHash, null);
+            }
+            return;
+        }
+        String hash = hashContent(data);
+        boolean stored;
+        synchronized (this) {
+            // Referenced before the body is written, so that it can't be deleted meanwhile.
+            addRef(hash);
+            stored = mBodies.containsKey(hash);
+            if (stored) {
+                mDedupedBytes += data.length;
+            }
+        }
+        if (!stored && !writeBody(hash, data)) {
+            synchronized (this) {
+                releaseRef(hash);
+                setKey(keyHash, null);
+            }
+            mCache.put(key, entry);
+            return;
+        }
+        synchronized (this) {
+            if (!stored && !mBodies.containsKey(hash)) {
+                mBodies.put(hash, (long) data.length);
+                mBodyBytes += data.length;
+            }
+            setKey(keyHash, hash);
+            // setKey() took a reference of its own.
+            releaseRef(hash);
+            trimBodies();
+        }
+        Entry reference = copyOf(entry);
+        reference.data = new byte[0];
+        reference.responseHeaders.put(BODY_HASH_HEADER, hash);
+        mCache.put(key, reference);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        mCache.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl) {
+        mCache.updateMetadata(key, serverDate, ttl, softTtl);
+    }
+
+    @Override
+    public void remove(String key) {
+        mCache.remove(key);
+        synchronized (this) {
+            setKey(DiskBasedCache.hashKey(key), null);
+        }
+    }
+
+    /**
+     * Clears the wrapped cache and deletes all stored bodies.
+     */
+    @Override
+    public void clear() {
+        mCache.clear();
+        synchronized (this) {
+            closeJournal();
+            File[] files = mBodyDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            mKeys.clear();
+            mRefCounts.clear();
+            mBodies.clear();
+            mBodyBytes = 0;
+            mJournalRecords = 0;
+        }
+    }
+
+    /** Returns the total size of the stored bodies. */
+    public synchronized long getBodyBytes() {
+        return mBodyBytes;
+    }
+
+    /** Returns the number of stored bodies. */
+    public synchronized int getBodyCount() {
+        return mBodies.size();
+    }
+
+    /** Returns the total size of the bodies that were put while already stored. */
+    public synchronized long getDedupedBytes() {
+        return mDedupedBytes;
+    }
+
+    /**
+     * Removes a key whose body is gone, unless a concurrent put has pointed it at another
+     * body since it was read.
+     */
+    private synchronized void removeIfReferencing(String key, long keyHash, String hash) {
+        if (!hash.equals(mKeys.get(keyHash))) {
+            return;
+        }
+        setKey(keyHash, null);
+        mCache.remove(key);
+    }
+
+    /**
+     * Points a key at a body, or at none, updating the reference counts and the journal.
+     */
+    private void setKey(long keyHash, String hash) {
+        String previous = hash == null ? mKeys.remove(keyHash) : mKeys.put(keyHash, hash);
+        if (hash == null ? previous == null : hash.equals(previous)) {
+            return;
+        }
+        if (hash != null) {
+            addRef(hash);
+        }
+        if (previous != null) {
+            releaseRef(previous);
+        }
+        appendToJournal(keyHash, hash);
+    }
+
+    private void addRef(String hash) {
+        Integer count = mRefCounts.get(hash);
+        mRefCounts.put(hash, count == null ? 1 : count + 1);
+    }
+
+    /** Drops a reference to a body, deleting the body once no key references it. */
+    private void releaseRef(String hash) {
+        Integer refs = mRefCounts.get(hash);
+        if (refs == null) {
+            return;
+        }
+        int count = refs - 1;
+        if (count > 0) {
+            mRefCounts.put(hash, count);
+            return;
+        }
+        mRefCounts.remove(hash);
+        deleteBody(hash);
+    }
+
+    /** Deletes the least recently used bodies while over the maximum size. */
+    private void trimBodies() {
+        Iterator<Map.Entry<String, Long>> it = mBodies.entrySet().iterator();
+        while (mBodyBytes > mMaxBodyBytes && it.hasNext()) {
+            Map.Entry<String, Long> body = it.next();
+            it.remove();
+            deleteBodyFile(body.getKey(), body.getValue());
+        }
+    }
+
+    private void deleteBody(String hash) {
+        Long size = mBodies.remove(hash);
+        if (size != null) {
+            deleteBodyFile(hash, size);
+        }
+    }
+
+    private void deleteBodyFile(String hash, long size) {
+        mBodyBytes -= size;
+        File file = new File(mBodyDirectory, hash);
+        if (!file.delete()) {
+            VolleyLog.d("Could not delete body %s", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Writes a body under a temporary name unique to the thread and renames it into place,
+     * so that concurrent puts of the same body don't interfere.
+     */
+    private boolean writeBody(String hash, byte[] data) {
+        File file = new File(mBodyDirectory, hash);
+        File tempFile = new File(mBodyDirectory,
+                hash + "-" + Thread.currentThread().getId() + TEMP_FILE_SUFFIX);
+        try {
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                fos.write(data);
+            } finally {
+                fos.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+            }
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    /** Reads a stored body, returning null if it is gone. */
+    private byte[] readBody(String hash) {
+        File file = new File(mBodyDirectory, hash);
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                byte[] data = new byte[(int) file.length()];
+                readFully(fis, data);
+                return data;
+            } finally {
+                fis.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Replays the journal into {@link #mKeys}. A truncated last record is ignored.
+     */
+    private void replayJournal() {
+        File file = new File(mBodyDirectory, JOURNAL_FILE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                byte[] record = new byte[RECORD_LENGTH];
+                while (true) {
+                    try {
+                        readFully(in, record);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    long keyHash = buffer.getLong();
+                    byte[] hash = new byte[HASH_LENGTH];
+                    buffer.get(hash);
+                    if (ByteBuffer.wrap(hash).equals(ByteBuffer.wrap(NO_HASH))) {
+                        mKeys.remove(keyHash);
+                    } else {
+                        mKeys.put(keyHash, toHex(hash));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+        }
+    }
+
+    /** Appends a record to the journal, compacting it once most records are obsolete. */
+    private void appendToJournal(long keyHash, String hash) {
+        if (mJournal == null || mJournalRecords > 2 * mKeys.size() + 64) {
+            rewriteJournal();
+            return;
+        }
+        try {
+            mJournal.write(encodeRecord(keyHash, hash));
+            mJournalRecords++;
+        } catch (IOException e) {
+            VolleyLog.d("%s", e.toString());
+            rewriteJournal();
+        }
+    }
+
+    /** Writes a journal holding only the current references and opens it for appending. */
+    private void rewriteJournal() {
+        closeJournal();
+        File file = new File(mBodyDirectory, JOURNAL_FILE_NAME);
+        File tempFile = new File(mBodyDirectory, JOURNAL_FILE_NAME + TEMP_FILE_SUFFIX);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(mKeys.size() * RECORD_LENGTH);
+            for (Map.Entry<Long, String> key : mKeys.entrySet()) {
+                buffer.put(encodeRecord(key.getKey(), key.getValue()));
+            }
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                fos.write(buffer.array());
+            } finally {
+                fos.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+            }
+            mJournal = new FileOutputStream(file, true);
+            mJournalRecords = mKeys.size();
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            tempFile.delete();
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                VolleyLog.d("%s", e.toString());
+            }
+            mJournal = null;
+        }
+    }
+
+    private static byte[] encodeRecord(long keyHash, String hash) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH);
+        buffer.putLong(keyHash);
+        buffer.put(hash == null ? NO_HASH : fromHex(hash));
+        return buffer.array();
+    }
+
+    /**
+     * Returns the first 128 bits of the SHA-256 of the data, in hex. A cryptographic hash, so
+     * that a server can't make one URL's body replace another's.
+     */
+    // Visible for testing.
+    static String hashContent(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            byte[] hash = new byte[HASH_LENGTH];
+            System.arraycopy(digest, 0, hash, 0, HASH_LENGTH);
+            return toHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isBodyFileName(String name) {
+        if (name.length() != HASH_LENGTH * 2) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int pos = 0;
+        while (pos < bytes.length) {
+            int count = in.read(bytes, pos, bytes.length - pos);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            pos += count;
+        }
+    }
+
+    /**
+     * Returns a copy of the entry with its own response headers, which may then be changed.
+     */
+    private static Entry copyOf(Entry entry) {
+        Entry copy = new Entry();
+        copy.data = entry.getData();
+        copyMetadata(entry, copy);
+        return copy;
+    }
+
+    /** Copies everything but the data, giving the copy response headers of its own. */
+    private static void copyMetadata(Entry entry, Entry copy) {
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.staleIfErrorTtl = entry.staleIfErrorTtl;
+        copy.responseHeaders = entry.responseHeaders == null
+                ? new HashMap<String, String>()
+                : new HashMap<String, String>(entry.responseHeaders);
+    }
+
+    /** An entry whose body is read from the body directory when first needed. */
+    private class StoredBodyEntry extends Entry {
+        private final String mKey;
+        private final long mKeyHash;
+        private final String mHash;
+        private boolean mLoadFailed = false;
+
+        private StoredBodyEntry(String key, long keyHash, String hash) {
+            mKey = key;
+            mKeyHash = keyHash;
+            mHash = hash;
+        }
+
+        @Override
+        public synchronized byte[] getData() {
+            if (data == null && !mLoadFailed) {
+                data = readBody(mHash);
+                if (data == null) {
+                    mLoadFailed = true;
+                    removeIfReferencing(mKey, mKeyHash, mHash);
+                }
+            }
+            return data;
+        }
+    }
+}
@@ -16,9 +16,11 @@
 
 package com.android.volley.toolbox;
 
+import android.os.Process;
 import android.os.SystemClock;
 
 import com.android.volley.Cache;
+import com.android.volley.CacheMetrics;
 import com.android.volley.VolleyLog;
 
 import java.io.BufferedInputStream;
@@ -30,291 +32,1456 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
+ *
+ * <p>This class is safe for concurrent use. File I/O for an entry is guarded by a lock
+ * striped on its key, so reads and writes of different keys proceed in parallel; the
+ * cache's own monitor only guards the in-memory index, size accounting and journal, and is
+ * never held across entry file I/O. Stripe locks are always taken before the monitor.</p>
  */
 public class DiskBasedCache implements Cache {
 
-    /** Map of the Key, CacheHeader pairs */
-    private final Map<String, CacheHeader> mEntries =
-            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
-
-    /** Total amount of space currently used by the cache in bytes. */
-    private long mTotalSize = 0;
+    /**
+     * Index of the entries by key hash, in LRU order. Keys, ETags and response headers are
+     * not kept in memory; they are read from the entry file on {@link #get(String)}.
+     * Guarded by this.
+     */
+    private CacheIndex mIndex = new CacheIndex();
 
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
 
-    /** The maximum size of the cache in bytes. */
-    private final int mMaxCacheSizeInBytes;
+    /** The maximum size of the cache in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** Default maximum disk usage in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** Low water mark percentage for the cache; eviction frees space down to it. */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /** High water mark percentage for the cache, above which eviction starts in the background. */
+    private static final float HIGH_WATER_MARK_FACTOR = 0.95f;
+
+    /** By default up to this fraction of the maximum size can be pinned. */
+    private static final int DEFAULT_PINNED_FRACTION = 4;
+
+    /** Maximum number of entries evicted per pass over the index. */
+    private static final int EVICTION_BATCH_SIZE = 64;
+
+    /** Magic number for the original cache file format, still read and then migrated. */
+    private static final int CACHE_MAGIC = 0x20140623;
+
+    /** Magic number for current version of cache file format. */
+    static final int CACHE_MAGIC_V2 = 0x20141201;
+
+    /**
+     * Size of the fixed-size metadata region at the start of a current format file: magic,
+     * header length, server date, TTL, soft TTL, body length and body CRC32.
+     */
+    static final int FIXED_HEADER_SIZE = 40;
+
+    /** Offset and length of the server date and TTLs within the fixed-size region. */
+    static final int METADATA_OFFSET = 8;
+    static final int METADATA_LENGTH = 24;
+
+    /** Suffix of the name an entry file is written under before being renamed into place. */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** Number of locks that entry file I/O is striped across. */
+    private static final int LOCK_STRIPES = 32;
+
+    /** Locks guarding entry file I/O, striped by key hash. */
+    private final ReadWriteLock[] mKeyLocks = new ReadWriteLock[LOCK_STRIPES];
+
+    /** Journal of index changes, replayed by {@link #initialize()}. Guarded by this. */
+    private final CacheJournal mJournal;
+
+    /** How long the last call to {@link #initialize()} took, in milliseconds. */
+    private long mInitializationTimeMs = 0;
+
+    /**
+     * Entries whose data is at least this many bytes are read through a memory mapping
+     * rather than copied onto the heap. Guarded by this.
+     */
+    private int mMappedReadThreshold = Integer.MAX_VALUE;
+
+    /** Whether {@link #initialize()} should build the index in the background. */
+    private boolean mIncrementalInitialization = false;
+
+    /** False while the index is being built. */
+    private boolean mIndexComplete = true;
+
+    /**
+     * Hashes of keys removed while the index was being built, which must not be resurrected
+     * when the loaded index is merged.
+     */
+    private final Set<Long> mRemovedWhileIndexing = new HashSet<Long>();
+
+    /**
+     * Hashes of keys unpinned while the index was being built, whose pins in the loaded index
+     * must not be carried over.
+     */
+    private final Set<Long> mUnpinnedWhileIndexing = new HashSet<Long>();
+
+    /** Whether the index changed while being built, staling the journal. */
+    private boolean mChangedWhileIndexing = false;
+
+    /** Incremented by {@link #clear()} so that an index loaded before it is discarded. */
+    private int mIndexGeneration = 0;
+
+    /** Runs background work such as incremental initialization; created on first use. */
+    private ScheduledExecutorService mBackgroundExecutor;
+
+    /** Whether a background eviction is scheduled or running. Guarded by this. */
+    private boolean mEvictionPending = false;
+
+    /** Statistics about the most recent eviction. Guarded by this. */
+    private EvictionStats mLastEvictionStats;
+
+    /** Counts evictions and the bytes read and written. */
+    private volatile CacheMetrics mMetrics = new CacheMetrics();
+
+    /** Chooses the entries to evict, or null to evict in LRU order. Guarded by this. */
+    private EvictionPolicy mEvictionPolicy;
+
+    /**
+     * The indexed entries ordered by TTL, so that expired ones are evicted first. May hold
+     * stale elements; see {@link #nextExpired(long)}. Guarded by this.
+     */
+    private final ExpiryQueue mExpiryQueue = new ExpiryQueue();
+
+    /** The periodic sweep of expired entries, if enabled. Guarded by this. */
+    private ScheduledFuture<?> mExpirySweep;
+
+    /** Maximum total size of the pinned entries. Guarded by this. */
+    private long mMaxPinnedBytes;
+
+    /** Totals of the expired entries evicted so far. Guarded by this. */
+    private int mExpiredFilesReclaimed = 0;
+    private long mExpiredBytesReclaimed = 0;
+
+    /**
+     * Constructs an instance of the DiskBasedCache at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mMaxPinnedBytes = maxCacheSizeInBytes / DEFAULT_PINNED_FRACTION;
+        mJournal = new CacheJournal(rootDirectory);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mKeyLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Constructs an instance of the DiskBasedCache at the specified directory using
+     * the default maximum cache size of 5MB.
+     * @param rootDirectory The root directory of the cache.
+     */
+    public DiskBasedCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * Sets the policy that chooses which entries to evict when the cache is full, or null to
+     * evict the least recently used entries. The policy is told about the entries already in
+     * the cache.
+     */
+    public synchronized void setEvictionPolicy(EvictionPolicy policy) {
+        mEvictionPolicy = policy;
+        resetEvictionPolicy();
+    }
+
+    /**
+     * Sets how often expired entries are evicted on a background thread, without waiting for
+     * the cache to fill up, or 0 to only evict them when space is needed, which is the
+     * default.
+     */
+    public synchronized void setExpirySweepInterval(long intervalMs) {
+        if (mExpirySweep != null) {
+            mExpirySweep.cancel(false);
+            mExpirySweep = null;
+        }
+        if (intervalMs > 0) {
+            mExpirySweep = getBackgroundExecutor().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evict(0, true, true);
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the maximum total size of the pinned entries, which must leave room for unpinned
+     * ones below the maximum size of the cache. Defaults to a quarter of the maximum size.
+     * Entries already pinned stay pinned.
+     */
+    public synchronized void setMaxPinnedBytes(long maxPinnedBytes) {
+        mMaxPinnedBytes = maxPinnedBytes;
+    }
+
+    /**
+     * Sets whether {@link #initialize()} returns immediately and builds the index on a
+     * background thread. While the index is incomplete, {@link #get(String)} resolves keys
+     * that have not been indexed yet by reading only that key's file, so lookups are not
+     * blocked behind a full scan of the cache directory. Must be called before
+     * {@link #initialize()}.
+     */
+    public synchronized void setIncrementalInitialization(boolean incremental) {
+        mIncrementalInitialization = incremental;
+    }
+
+    /**
+     * Sets the data size from which {@link #get(String)} returns entries backed by a
+     * read-only memory mapping of the entry file instead of a copy of the data. Their
+     * {@link Entry#getDataBuffer()} returns the mapping and {@link Entry#data} stays null until
+     * {@link Entry#getData()} copies it. The checksum of mapped data is not verified, as that
+     * would read every page up front. Disabled by default.
+     * @param thresholdBytes Minimum data size to map, or {@link Integer#MAX_VALUE} to disable
+     */
+    public synchronized void setMappedReadThreshold(int thresholdBytes) {
+        mMappedReadThreshold = thresholdBytes;
+    }
+
+    /**
+     * Returns the lock guarding file I/O for the given key hash.
+     */
+    private ReadWriteLock getLockForHash(long hash) {
+        return mKeyLocks[getStripe(hash)];
+    }
+
+    private static int getStripe(long hash) {
+        // The index probes on the low bits, so stripe on the high ones.
+        return (int) (hash >>> 32) & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Clears the cache. Deletes all cached files from disk.
+     */
+    @Override
+    public void clear() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mKeyLocks[i].writeLock().lock();
+        }
+        try {
+            synchronized (this) {
+                if (!mIndexComplete) {
+                    mIndexGeneration++;
+                    mRemovedWhileIndexing.clear();
+                    mUnpinnedWhileIndexing.clear();
+                    mChangedWhileIndexing = true;
+                }
+                mJournal.close();
+                File[] files = mRootDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                mIndex.clear();
+                mExpiryQueue.clear();
+                if (mEvictionPolicy != null) {
+                    mEvictionPolicy.clear();
+                }
+                if (mIndexComplete) {
+                    mJournal.rewrite(mIndex);
+                }
+            }
+        } finally {
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+                mKeyLocks[i].writeLock().unlock();
+            }
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key) {
+        long hash = hashKey(key);
+        Lock lock = getLockForHash(hash).readLock();
+        lock.lock();
+        File file = getFileForHash(hash);
+        try {
+            boolean indexed;
+            boolean indexComplete;
+            synchronized (this) {
+                indexed = mIndex.contains(hash);
+                indexComplete = mIndexComplete;
+            }
+            // if the entry is not indexed yet, look for its file directly.
+            if (!indexed && !indexComplete) {
+                return getUnindexed(key, hash);
+            }
+            // if the entry does not exist, return.
+            if (!indexed) {
+                return null;
+            }
+
+            Entry result = readEntry(file, key);
+            if (result != null) {
+                synchronized (this) {
+                    mIndex.touch(hash);
+                    if (mEvictionPolicy != null && !mIndex.isPinned(hash)) {
+                        mEvictionPolicy.onAccess(hash);
+                    }
+                    mJournal.access(hash);
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+        } finally {
+            lock.unlock();
+        }
+        // The read lock cannot be upgraded, so remove the broken entry after releasing it.
+        remove(key);
+        return null;
+    }
+
+    /**
+     * Reads an entry's header from its file. The data is left on disk, to be loaded or mapped
+     * when first used, except for files in the original format, which are read in full and
+     * scheduled to be rewritten in the current one. The caller must hold the key's lock.
+     * @return the entry, or null if the file belongs to a different key with the same hash
+     */
+    private Entry readEntry(File file, String key) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = wrapChannel(fis.getChannel());
+            CacheHeader header = CacheHeader.readHeader(channel);
+            if (!key.equals(header.key)) {
+                return null;
+            }
+            mMetrics.recordBytesRead(header.headerLength);
+            if (header.legacyFormat) {
+                scheduleMigration(key);
+                Entry entry = header.toCacheEntry(readBody(channel, header));
+                mMetrics.recordBytesRead(entry.data.length);
+                return entry;
+            }
+            checkBodyLength(channel, header);
+            if (header.size >= getMappedReadThreshold()) {
+                // Counted as read, though pages are only read as the mapping is used.
+                mMetrics.recordBytesRead(header.size);
+                return readMappedEntry(channel, header);
+            }
+            return new FileBackedEntry(file, header);
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private synchronized int getMappedReadThreshold() {
+        return mMappedReadThreshold;
+    }
+
+    /**
+     * Maps the body following a header just read from the channel. The mapping stays valid
+     * after the channel is closed and after the file is removed or replaced.
+     */
+    private static Entry readMappedEntry(FileChannel channel, CacheHeader header)
+            throws IOException {
+        MappedEntry entry = new MappedEntry(
+                channel.map(FileChannel.MapMode.READ_ONLY, header.headerLength, header.size));
+        entry.etag = header.etag;
+        entry.serverDate = header.serverDate;
+        entry.ttl = header.ttl;
+        entry.softTtl = header.softTtl;
+        entry.responseHeaders = header.responseHeaders;
+        entry.staleIfErrorTtl = header.getStaleIfErrorTtl();
+        return entry;
+    }
+
+    /**
+     * Reads the body following a header just read from the channel, checking its length and,
+     * for the current format, its checksum.
+     */
+    private static byte[] readBody(FileChannel channel, CacheHeader header) throws IOException {
+        if (!header.legacyFormat) {
+            checkBodyLength(channel, header);
+        }
+        byte[] data = new byte[(int) (channel.size() - header.headerLength)];
+        readFully(channel, ByteBuffer.wrap(data));
+        if (!header.legacyFormat && computeCrc(data) != header.bodyCrc) {
+            throw new IOException("Body checksum mismatch");
+        }
+        return data;
+    }
+
+    /**
+     * Checks that the file holds exactly the amount of data its header announces.
+     */
+    private static void checkBodyLength(FileChannel channel, CacheHeader header)
+            throws IOException {
+        long length = channel.size() - header.headerLength;
+        if (length != header.size) {
+            throw new IOException("Expected " + header.size + " body bytes, found " + length);
+        }
+    }
+
+    /**
+     * Loads the data of a file-backed entry, provided the file still holds the same data as
+     * when its header was read.
+     * @return the data, or null if the entry has been removed or replaced
+     * @throws IOException if the data could not be read or is corrupt
+     */
+    private byte[] loadBody(File file, CacheHeader expected) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = wrapChannel(fis.getChannel());
+            CacheHeader header = CacheHeader.readHeader(channel);
+            if (header.legacyFormat || !expected.key.equals(header.key)
+                    || header.headerLength != expected.headerLength
+                    || header.size != expected.size || header.bodyCrc != expected.bodyCrc) {
+                return null;
+            }
+            return readBody(channel, header);
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Rewrites an entry in the original file format in the current one, on the background
+     * executor so that the read that found it is not slowed down.
+     */
+    private void scheduleMigration(final String key) {
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                migrateEntry(key);
+            }
+        });
+    }
+
+    private void migrateEntry(String key) {
+        long hash = hashKey(key);
+        Lock lock = getLockForHash(hash).writeLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                if (!mIndex.contains(hash)) {
+                    return;
+                }
+            }
+            Entry entry;
+            FileInputStream fis = new FileInputStream(getFileForHash(hash));
+            try {
+                FileChannel channel = wrapChannel(fis.getChannel());
+                CacheHeader header = CacheHeader.readHeader(channel);
+                if (!header.legacyFormat || !key.equals(header.key)) {
+                    // Already rewritten by a put.
+                    return;
+                }
+                entry = header.toCacheEntry(readBody(channel, header));
+            } finally {
+                try {
+                    fis.close();
+                } catch (IOException ignored) { }
+            }
+            writeEntry(key, entry);
+        } catch (IOException e) {
+            VolleyLog.d("Could not migrate cache entry for key=%s: %s", key, e.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resolves a key that the indexer has not reached yet by reading its file, adding it to
+     * the index if found. The caller must hold the key's lock.
+     */
+    private Entry getUnindexed(String key, long hash) {
+        synchronized (this) {
+            if (mRemovedWhileIndexing.contains(hash)) {
+                return null;
+            }
+        }
+        File file = getFileForHash(hash);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Entry entry = readEntry(file, key);
+            if (entry == null) {
+                return null;
+            }
+            synchronized (this) {
+                if (!mIndex.contains(hash) && !mRemovedWhileIndexing.contains(hash)) {
+                    putInIndex(hash, (int) file.length(), entry.ttl, entry.softTtl);
+                }
+            }
+            return entry;
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Initializes the DiskBasedCache by replaying its journal, falling back to scanning
+     * for all files currently in the specified root directory if the journal is missing
+     * or corrupt. Creates the root directory if necessary.
+     *
+     * <p>The index is loaded without holding the cache's monitor; lookups made meanwhile
+     * are resolved by reading the requested key's file. With incremental initialization
+     * enabled this returns immediately and the index is built on a background thread.</p>
+     */
+    @Override
+    public void initialize() {
+        final long startTime = SystemClock.elapsedRealtime();
+        final int generation;
+        boolean incremental;
+        synchronized (this) {
+            if (!mIndexComplete) {
+                // Already being built.
+                return;
+            }
+            mJournal.close();
+            if (!mRootDirectory.exists()) {
+                if (!mRootDirectory.mkdirs()) {
+                    VolleyLog.e("Unable to create cache dir %s",
+                            mRootDirectory.getAbsolutePath());
+                    return;
+                }
+                mJournal.rewrite(mIndex);
+                mInitializationTimeMs = SystemClock.elapsedRealtime() - startTime;
+                return;
+            }
+            mIndexComplete = false;
+            mChangedWhileIndexing = false;
+            generation = mIndexGeneration;
+            incremental = mIncrementalInitialization;
+        }
+
+        Runnable indexer = new Runnable() {
+            @Override
+            public void run() {
+                CacheIndex loaded = new CacheIndex();
+                List<File> unreadable = new ArrayList<File>();
+                boolean replayed = loadIndex(loaded, unreadable);
+                finishIndexing(loaded, unreadable, replayed, generation, startTime);
+            }
+        };
+        if (incremental) {
+            getBackgroundExecutor().execute(indexer);
+        } else {
+            indexer.run();
+        }
+    }
+
+    /**
+     * Returns false while the index is still being built.
+     */
+    // Visible for testing.
+    synchronized boolean isIndexComplete() {
+        return mIndexComplete;
+    }
+
+    /**
+     * Returns the channel to read or write an entry file through, given the file's own.
+     */
+    // Visible for testing.
+    FileChannel wrapChannel(FileChannel channel) {
+        return channel;
+    }
+
+    /**
+     * Returns the approximate heap footprint of the in-memory index, in bytes.
+     */
+    // Visible for testing.
+    synchronized long getIndexHeapSize() {
+        return mIndex.getHeapSize() + mExpiryQueue.getHeapSize();
+    }
+
+    /**
+     * Returns how long the last call to {@link #initialize()} took, in milliseconds. With
+     * incremental initialization this is the time until the background index was complete.
+     */
+    public synchronized long getInitializationTimeMs() {
+        return mInitializationTimeMs;
+    }
+
+    /**
+     * Returns the total size of the entries in the cache, in bytes.
+     */
+    public synchronized long getTotalSize() {
+        return mIndex.getTotalSize();
+    }
+
+    /**
+     * Returns the total size of the pinned entries, in bytes.
+     */
+    public synchronized long getPinnedBytes() {
+        return mIndex.getPinnedSize();
+    }
+
+    /**
+     * Reads the index from the journal, or from the entry files if the journal is missing or
+     * corrupt. Does not touch the live index, so it can run without holding the monitor.
+     * @param loaded Index to fill
+     * @param unreadable List to fill with entry files whose header could not be read
+     * @return true if the index was read from the journal
+     */
+    private boolean loadIndex(CacheIndex loaded, List<File> unreadable) {
+        if (mJournal.replay(loaded)) {
+            return true;
+        }
+        loaded.clear();
+        scanFiles(loaded, unreadable);
+        return false;
+    }
+
+    /**
+     * Merges a loaded index into the live one, keeping entries that were added, read or
+     * removed in the meantime, and brings the journal up to date.
+     */
+    private synchronized void finishIndexing(CacheIndex loaded, List<File> unreadable,
+            boolean replayed, int generation, long startTime) {
+        // Files written since the scan read them may have been caught half-written, so only
+        // delete unreadable files that no indexed entry refers to.
+        Set<File> liveFiles = new HashSet<File>();
+        for (int slot = mIndex.first(); slot != CacheIndex.NONE; slot = mIndex.next(slot)) {
+            liveFiles.add(getFileForHash(mIndex.hashAt(slot)));
+        }
+        for (File file : unreadable) {
+            if (!liveFiles.contains(file)) {
+                file.delete();
+            }
+        }
+
+        CacheIndex merged = new CacheIndex();
+        Set<Long> pinned = new HashSet<Long>();
+        if (generation == mIndexGeneration) {
+            for (int slot = loaded.first(); slot != CacheIndex.NONE; slot = loaded.next(slot)) {
+                long hash = loaded.hashAt(slot);
+                if (!mRemovedWhileIndexing.contains(hash)) {
+                    if (!mIndex.contains(hash)) {
+                        merged.put(hash, loaded.sizeAt(slot), loaded.ttlAt(slot),
+                                loaded.softTtlAt(slot));
+                    }
+                    // Pins outlive entries replaced while indexing.
+                    if (loaded.isPinnedAt(slot) && !mUnpinnedWhileIndexing.contains(hash)) {
+                        pinned.add(hash);
+                    }
+                }
+            }
+        }
+        // Entries touched while indexing are the most recently used.
+        for (int slot = mIndex.first(); slot != CacheIndex.NONE; slot = mIndex.next(slot)) {
+            long hash = mIndex.hashAt(slot);
+            merged.put(hash, mIndex.sizeAt(slot), mIndex.ttlAt(slot), mIndex.softTtlAt(slot));
+            if (mIndex.isPinnedAt(slot)) {
+                pinned.add(hash);
+            }
+        }
+        for (long hash : pinned) {
+            merged.setPinned(hash, true);
+        }
+        mIndex = merged;
+        rebuildExpiryQueue();
+        resetEvictionPolicy();
+
+        if (!replayed || mChangedWhileIndexing || mJournal.needsCompaction(mIndex.size())) {
+            mJournal.rewrite(mIndex);
+        } else {
+            mJournal.openForAppend();
+        }
+        mIndexComplete = true;
+        mRemovedWhileIndexing.clear();
+        mUnpinnedWhileIndexing.clear();
+        mChangedWhileIndexing = false;
+
+        mInitializationTimeMs = SystemClock.elapsedRealtime() - startTime;
+        VolleyLog.d("Cache initialized from %s with %d entries, %d bytes in %d ms",
+                replayed ? "journal" : "directory scan", mIndex.size(), mIndex.getTotalSize(),
+                mInitializationTimeMs);
+    }
+
+    /**
+     * Rebuilds the index by opening and parsing the header of every entry file in the
+     * root directory. Files still named after an older naming scheme are renamed.
+     */
+    private void scanFiles(CacheIndex loaded, List<File> unreadable) {
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (CacheJournal.isJournalFile(file) || isTempFile(file)) {
+                continue;
+            }
+            BufferedInputStream fis = null;
+            CacheHeader entry;
+            try {
+                fis = new BufferedInputStream(new FileInputStream(file));
+                entry = CacheHeader.readHeader(fis);
+            } catch (IOException e) {
+                unreadable.add(file);
+                continue;
+            } finally {
+                try {
+                    if (fis != null) {
+                        fis.close();
+                    }
+                } catch (IOException ignored) { }
+            }
+            int size = (int) file.length();
+            long hash = hashKey(entry.key);
+            if (!file.getName().equals(getFilenameForHash(hash)) && !migrateFile(file, hash)) {
+                continue;
+            }
+            loaded.put(hash, size, entry.ttl, entry.softTtl);
+        }
+    }
+
+    /**
+     * Moves an entry file written under an older naming scheme to its current name. An entry
+     * already written under the current name takes precedence.
+     * @return true if the file now lives under its current name
+     */
+    private boolean migrateFile(File file, long hash) {
+        Lock lock = getLockForHash(hash).writeLock();
+        lock.lock();
+        try {
+            File target = getFileForHash(hash);
+            if (target.exists() || !file.renameTo(target)) {
+                file.delete();
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the metrics to count evictions and the bytes read and written in, such as those of
+     * the {@link com.android.volley.RequestQueue} using this cache.
+     */
+    public void setCacheMetrics(CacheMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the metrics evictions and the bytes read and written are counted in.
+     */
+    public CacheMetrics getCacheMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns the executor for background work, creating it if necessary.
+     */
+    private synchronized ScheduledExecutorService getBackgroundExecutor() {
+        if (mBackgroundExecutor == null) {
+            mBackgroundExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "DiskBasedCache");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return mBackgroundExecutor;
+    }
+
+    /**
+     * Invalidates an entry in the cache. Only the entry's metadata is rewritten.
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        updateMetadata(key, true, fullExpire, 0, 0, 0);
+    }
+
+    /**
+     * Updates the server date and TTLs of an entry by rewriting the fixed-size metadata
+     * region of its file in place; the rest of the header and the data are not touched.
+     */
+    @Override
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl) {
+        updateMetadata(key, false, false, serverDate, ttl, softTtl);
+    }
+
+    /**
+     * Rewrites the metadata of an entry, either invalidating it or setting the given values.
+     * Files in the original format have no fixed-size metadata region and are rewritten in
+     * full, in the current format.
+     */
+    private void updateMetadata(String key, boolean invalidate, boolean fullExpire,
+            long serverDate, long ttl, long softTtl) {
+        long hash = hashKey(key);
+        Lock lock = getLockForHash(hash).writeLock();
+        lock.lock();
+        File file = getFileForHash(hash);
+        try {
+            if (!file.exists()) {
+                return;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            Entry legacyEntry = null;
+            int size;
+            try {
+                FileChannel channel = wrapChannel(raf.getChannel());
+                CacheHeader header = CacheHeader.readHeader(channel);
+                if (!key.equals(header.key)) {
+                    return;
+                }
+                if (invalidate) {
+                    serverDate = header.serverDate;
+                    ttl = fullExpire ? 0 : header.ttl;
+                    softTtl = 0;
+                }
+                if (header.legacyFormat) {
+                    legacyEntry = header.toCacheEntry(readBody(channel, header));
+                    legacyEntry.serverDate = serverDate;
+                    legacyEntry.ttl = ttl;
+                    legacyEntry.softTtl = softTtl;
+                } else {
+                    ByteBuffer metadata = ByteBuffer.allocate(METADATA_LENGTH)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    metadata.putLong(serverDate).putLong(ttl).putLong(softTtl).flip();
+                    long position = METADATA_OFFSET;
+                    while (metadata.hasRemaining()) {
+                        position += channel.write(metadata, position);
+                    }
+                    mMetrics.recordBytesWritten(METADATA_LENGTH);
+                }
+                size = (int) channel.size();
+            } finally {
+                raf.close();
+            }
+
+            if (legacyEntry != null) {
+                writeEntry(key, legacyEntry);
+                return;
+            }
+            synchronized (this) {
+                if (mIndex.setTtls(hash, ttl, softTtl)) {
+                    addToExpiryQueue(hash, ttl);
+                    mJournal.updateTtls(hash, ttl, softTtl);
+                    compactJournalIfNeeded();
+                } else if (!mIndexComplete && !mRemovedWhileIndexing.contains(hash)) {
+                    // Not indexed yet; the loaded index may hold the old values.
+                    putInIndex(hash, size, ttl, softTtl);
+                    markChangedWhileIndexing();
+                }
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        // Entries are normally evicted in the background once the cache passes its high
+        // water mark; a put only waits for eviction if it would exceed the maximum size.
+        // Evict before taking this key's lock, as eviction takes the locks of the victims.
+        evictIfNeeded(entry.getData().length);
+        Lock lock = getLockForHash(hashKey(key)).writeLock();
+        lock.lock();
+        try {
+            writeEntry(key, entry);
+        } finally {
+            lock.unlock();
+        }
+        scheduleEvictionIfNeeded();
+    }
+
+    /**
+     * Writes an entry's file and indexes it. The caller must hold the key's write lock.
+     *
+     * <p>The file is written under a temporary name and then renamed over the old one, so
+     * that entries still mapped by earlier reads keep seeing intact data.</p>
+     */
+    private void writeEntry(String key, Entry entry) {
+        long hash = hashKey(key);
+        File file = getFileForHash(hash);
+        File tempFile = new File(mRootDirectory, file.getName() + TEMP_FILE_SUFFIX);
+        try {
+            byte[] data = entry.getData();
+            CacheHeader e = new CacheHeader(key, entry);
+            ByteBuffer[] buffers = { e.encode(), ByteBuffer.wrap(data) };
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                // Header and body go out in a single gathered write.
+                FileChannel channel = wrapChannel(fos.getChannel());
+                while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            } finally {
+                fos.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+            }
+            int size = e.headerLength + data.length;
+            mMetrics.recordBytesWritten(size);
+            synchronized (this) {
+                putInIndex(hash, size, entry.ttl, entry.softTtl);
+                markChangedWhileIndexing();
+                mJournal.add(hash, size, entry.ttl, entry.softTtl);
+                compactJournalIfNeeded();
+            }
+            return;
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+        }
+        tempFile.delete();
+        boolean deleted = file.delete();
+        if (!deleted) {
+            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+        }
+        synchronized (this) {
+            removeEntry(hash);
+        }
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public void remove(String key) {
+        long hash = hashKey(key);
+        Lock lock = getLockForHash(hash).writeLock();
+        lock.lock();
+        try {
+            boolean deleted = getFileForHash(hash).delete();
+            synchronized (this) {
+                removeEntry(hash);
+            }
+            if (!deleted) {
+                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                        key, getFilenameForHash(hash));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pins the entry with the specified key, so that it is not evicted, even once expired,
+     * until it is unpinned. The entry stays pinned when it is replaced or refreshed, and
+     * across restarts, but not once removed. Pinned entries still count towards the size
+     * of the cache.
+     *
+     * @return false if the key is not cached, or not indexed yet, or if pinning it would
+     *     exceed the pinned-bytes budget; see {@link #setMaxPinnedBytes(long)}
+     */
+    public synchronized boolean pin(String key) {
+        long hash = hashKey(key);
+        int slot = mIndex.find(hash);
+        if (slot == CacheIndex.NONE) {
+            return false;
+        }
+        if (mIndex.isPinnedAt(slot)) {
+            return true;
+        }
+        int size = mIndex.sizeAt(slot);
+        if (mIndex.getPinnedSize() + size > mMaxPinnedBytes) {
+            VolleyLog.d("Not pinning %s: %d bytes would exceed the pinned limit of %d",
+                    key, mIndex.getPinnedSize() + size, mMaxPinnedBytes);
+            return false;
+        }
+        setPinned(hash, true);
+        mUnpinnedWhileIndexing.remove(hash);
+        return true;
+    }
+
+    /**
+     * Unpins the entry with the specified key, if it is pinned, making it evictable again.
+     * This also applies to entries not indexed yet.
+     */
+    public synchronized void unpin(String key) {
+        long hash = hashKey(key);
+        if (mIndex.isPinned(hash)) {
+            setPinned(hash, false);
+        }
+        if (!mIndexComplete) {
+            mUnpinnedWhileIndexing.add(hash);
+            mChangedWhileIndexing = true;
+        }
+    }
+
+    /**
+     * Returns true if the entry with the specified key is cached and pinned.
+     */
+    public synchronized boolean isPinned(String key) {
+        return mIndex.isPinned(hashKey(key));
+    }
+
+    /**
+     * Pins or unpins an indexed entry and journals it. Pinned entries are hidden from the
+     * eviction policy, and are skipped by {@link #nextExpired(long)}, which drops them from
+     * the expiry queue, so unpinned entries are queued again.
+     */
+    private void setPinned(long hash, boolean pinned) {
+        mIndex.setPinned(hash, pinned);
+        int slot = mIndex.find(hash);
+        if (mEvictionPolicy != null) {
+            if (pinned) {
+                mEvictionPolicy.onRemove(hash);
+            } else {
+                mEvictionPolicy.onWrite(hash, mIndex.sizeAt(slot));
+            }
+        }
+        if (!pinned) {
+            addToExpiryQueue(hash, mIndex.ttlAt(slot));
+        }
+        mJournal.setPinned(hash, pinned);
+        compactJournalIfNeeded();
+        markChangedWhileIndexing();
+    }
+
+    /**
+     * Returns a 64-bit hash of a cache key, which identifies the entry in the index and names
+     * its file. Never returns 0.
+     */
+    // Visible for testing.
+    static long hashKey(String key) {
+        // FNV-1a over the UTF-16 code units, then a final avalanche so that the low bits
+        // used for probing the index are well distributed.
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
 
-    /** Default maximum disk usage in bytes. */
-    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+    /**
+     * Creates a pseudo-unique filename for the specified key hash.
+     */
+    private static String getFilenameForHash(long hash) {
+        return Long.toHexString(hash);
+    }
 
-    /** High water mark percentage for the cache */
-    private static final float HYSTERESIS_FACTOR = 0.9f;
+    private static boolean isTempFile(File file) {
+        return file.getName().endsWith(TEMP_FILE_SUFFIX);
+    }
 
-    /** Magic number for current version of cache file format. */
-    private static final int CACHE_MAGIC = 0x20140623;
+    private File getFileForHash(long hash) {
+        return new File(mRootDirectory, getFilenameForHash(hash));
+    }
 
     /**
-     * Constructs an instance of the DiskBasedCache at the specified directory.
-     * @param rootDirectory The root directory of the cache.
-     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * Returns a file object for the given cache key.
      */
-    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
-        mRootDirectory = rootDirectory;
-        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+    public File getFileForKey(String key) {
+        return getFileForHash(hashKey(key));
     }
 
     /**
-     * Constructs an instance of the DiskBasedCache at the specified directory using
-     * the default maximum cache size of 5MB.
-     * @param rootDirectory The root directory of the cache.
+     * Evicts entries on the calling thread if writing {@code neededSpace} more bytes would take
+     * the cache past its maximum size.
      */
-    public DiskBasedCache(File rootDirectory) {
-        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    private void evictIfNeeded(int neededSpace) {
+        synchronized (this) {
+            if ((mIndex.getTotalSize() + neededSpace) < mMaxCacheSizeInBytes) {
+                return;
+            }
+        }
+        evict((long) (mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) - neededSpace, false, false);
     }
 
     /**
-     * Clears the cache. Deletes all cached files from disk.
+     * Starts an eviction on the background executor if the cache has grown past the high
+     * water mark and none is pending.
      */
-    @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+    private void scheduleEvictionIfNeeded() {
+        synchronized (this) {
+            if (mEvictionPending || mIndex.getTotalSize()
+                    < mMaxCacheSizeInBytes * HIGH_WATER_MARK_FACTOR) {
+                return;
             }
+            mEvictionPending = true;
         }
-        mEntries.clear();
-        mTotalSize = 0;
-        VolleyLog.d("Cache cleared.");
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evict((long) (mMaxCacheSizeInBytes * HYSTERESIS_FACTOR), true, false);
+                } finally {
+                    synchronized (DiskBasedCache.this) {
+                        mEvictionPending = false;
+                    }
+                }
+            }
+        });
     }
 
     /**
-     * Returns the cache entry with the specified key if it exists, null otherwise.
+     * Evicts entries on the calling thread until the cache holds at most {@code maxBytes},
+     * such as when it shares space with other caches. Entries are chosen as when the cache
+     * outgrows its own maximum size.
      */
-    @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
-        }
+    public void trimToSize(long maxBytes) {
+        evict(maxBytes + 1, false, false);
+    }
 
-        File file = getFileForKey(key);
-        CountingInputStream cis = null;
-        try {
-            cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
-        } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException ioe) {
-                    return null;
+    /**
+     * Returns true if the index holds an entry for the key. May miss entries while the index
+     * is being built incrementally.
+     */
+    synchronized boolean containsKey(String key) {
+        return mIndex.contains(hashKey(key));
+    }
+
+    /**
+     * Evicts entries until the total size is below {@code targetSize}, or only evicts all
+     * expired entries. Expired entries go first, then those chosen by the eviction policy or
+     * in LRU order. Victims are taken from the index and journaled in
+     * batches, then their files are deleted holding each stripe lock once per batch. Must
+     * not be called holding a stripe lock.
+     */
+    private void evict(long targetSize, boolean background, boolean expiredOnly) {
+        long startTime = SystemClock.elapsedRealtime();
+        long now = System.currentTimeMillis();
+        long[] batch = new long[EVICTION_BATCH_SIZE];
+        int files = 0;
+        long bytes = 0;
+        int expiredFiles = 0;
+        long expiredBytes = 0;
+        int count;
+        do {
+            count = 0;
+            synchronized (this) {
+                while (count < batch.length) {
+                    if (!expiredOnly && mIndex.getTotalSize() < targetSize) {
+                        break;
+                    }
+                    long hash = nextExpired(now);
+                    boolean expired = hash != 0;
+                    if (!expired && (expiredOnly || (hash = nextVictim()) == 0)) {
+                        break;
+                    }
+                    int size = mIndex.sizeAt(mIndex.find(hash));
+                    bytes += size;
+                    if (expired) {
+                        expiredFiles++;
+                        expiredBytes += size;
+                    }
+                    removeFromIndex(hash);
+                    markRemovedWhileIndexing(hash);
+                    batch[count++] = hash;
+                }
+                if (count > 0) {
+                    mJournal.remove(batch, count);
+                    compactJournalIfNeeded();
                 }
             }
+            deleteFiles(batch, count);
+            files += count;
+        } while (count == batch.length);
+
+        if (files == 0) {
+            return;
+        }
+        mMetrics.recordEvictions(files);
+        EvictionStats stats = new EvictionStats(files, bytes, expiredFiles, expiredBytes,
+                SystemClock.elapsedRealtime() - startTime, background);
+        synchronized (this) {
+            mLastEvictionStats = stats;
+            mExpiredFilesReclaimed += expiredFiles;
+            mExpiredBytesReclaimed += expiredBytes;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("pruned %d files, %d bytes (%d expired files, %d bytes), %d ms%s",
+                    stats.files, stats.bytes, stats.expiredFiles, stats.expiredBytes,
+                    stats.durationMs, background ? " in background" : "");
         }
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Returns the hash of an entry whose TTL is before {@code now}, removing it from the
+     * expiry queue, or 0 if there is none. Skips queue elements for entries no longer in the
+     * index or whose TTL changed since.
      */
-    @Override
-    public synchronized void initialize() {
-        if (!mRootDirectory.exists()) {
-            if (!mRootDirectory.mkdirs()) {
-                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+    private long nextExpired(long now) {
+        while (mExpiryQueue.size() > 0 && mExpiryQueue.peekTtl() < now) {
+            long hash = mExpiryQueue.peekHash();
+            long ttl = mExpiryQueue.peekTtl();
+            mExpiryQueue.poll();
+            int slot = mIndex.find(hash);
+            if (slot != CacheIndex.NONE && mIndex.ttlAt(slot) == ttl
+                    && !mIndex.isPinnedAt(slot)) {
+                return hash;
             }
-            return;
         }
+        return 0;
+    }
 
-        File[] files = mRootDirectory.listFiles();
-        if (files == null) {
-            return;
+    /**
+     * Returns the hash of the entry to evict next, as chosen by the eviction policy or else
+     * the least recently used one, or 0 if there is no unpinned entry.
+     */
+    private long nextVictim() {
+        if (mEvictionPolicy != null) {
+            long hash;
+            while ((hash = mEvictionPolicy.nextVictim()) != 0) {
+                if (mIndex.contains(hash)) {
+                    return hash;
+                }
+                // Not in the cache; bring the policy up to date.
+                mEvictionPolicy.onRemove(hash);
+            }
         }
-        for (File file : files) {
-            BufferedInputStream fis = null;
+        // Pinned entries are linked after all unpinned ones.
+        int slot = mIndex.first();
+        return slot == CacheIndex.NONE || mIndex.isPinnedAt(slot) ? 0 : mIndex.hashAt(slot);
+    }
+
+    /**
+     * Deletes the files of evicted entries, grouped by stripe so each lock is taken once.
+     */
+    private void deleteFiles(long[] hashes, int count) {
+        for (int stripe = 0; stripe < LOCK_STRIPES && count > 0; stripe++) {
+            Lock lock = null;
             try {
-                fis = new BufferedInputStream(new FileInputStream(file));
-                CacheHeader entry = CacheHeader.readHeader(fis);
-                entry.size = file.length();
-                putEntry(entry.key, entry);
-            } catch (IOException e) {
-                if (file != null) {
-                   file.delete();
+                for (int i = 0; i < count; i++) {
+                    long hash = hashes[i];
+                    if (getStripe(hash) != stripe) {
+                        continue;
+                    }
+                    if (lock == null) {
+                        lock = mKeyLocks[stripe].writeLock();
+                        lock.lock();
+                    }
+                    synchronized (this) {
+                        if (mIndex.contains(hash)) {
+                            // Written again since it was chosen; the file is the new entry's.
+                            continue;
+                        }
+                    }
+                    if (!getFileForHash(hash).delete()) {
+                        VolleyLog.d("Could not delete cache entry filename=%s",
+                                getFilenameForHash(hash));
+                    }
                 }
             } finally {
-                try {
-                    if (fis != null) {
-                        fis.close();
-                    }
-                } catch (IOException ignored) { }
+                if (lock != null) {
+                    lock.unlock();
+                }
             }
         }
     }
 
     /**
-     * Invalidates an entry in the cache.
-     * @param key Cache key
-     * @param fullExpire True to fully expire the entry, false to soft expire
+     * Returns statistics about the most recent eviction, or null if nothing was evicted yet.
      */
-    @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
-            }
-            put(key, entry);
-        }
+    public synchronized EvictionStats getLastEvictionStats() {
+        return mLastEvictionStats;
+    }
 
+    /**
+     * Returns the number of expired entries evicted so far.
+     */
+    public synchronized int getExpiredFilesReclaimed() {
+        return mExpiredFilesReclaimed;
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
+     * Returns the number of bytes freed by evicting expired entries so far.
      */
-    @Override
-    public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
-        File file = getFileForKey(key);
-        try {
-            FileOutputStream fos = new FileOutputStream(file);
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
-            if (!success) {
-                fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-                throw new IOException();
+    public synchronized long getExpiredBytesReclaimed() {
+        return mExpiredBytesReclaimed;
+    }
+
+    /**
+     * Returns true while a background eviction is scheduled or running.
+     */
+    // Visible for testing.
+    synchronized boolean isEvictionPending() {
+        return mEvictionPending;
+    }
+
+    /**
+     * Removes the entry identified by 'hash' from the index.
+     */
+    private void removeEntry(long hash) {
+        if (removeFromIndex(hash)) {
+            mJournal.remove(hash);
+            compactJournalIfNeeded();
+        }
+        markRemovedWhileIndexing(hash);
+    }
+
+    /**
+     * Adds or replaces an entry in the index and tells the eviction policy. A replaced entry
+     * that was pinned is unpinned if it grew past the pinned-bytes budget.
+     */
+    private void putInIndex(long hash, int size, long ttl, long softTtl) {
+        mIndex.put(hash, size, ttl, softTtl);
+        if (mIndex.isPinned(hash)) {
+            if (mIndex.getPinnedSize() <= mMaxPinnedBytes) {
+                return;
             }
-            fos.write(entry.data);
-            fos.close();
-            putEntry(key, e);
+            VolleyLog.d("Unpinning replaced entry exceeding the pinned limit of %d",
+                    mMaxPinnedBytes);
+            setPinned(hash, false);
             return;
-        } catch (IOException e) {
         }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+        addToExpiryQueue(hash, ttl);
+        if (mEvictionPolicy != null) {
+            mEvictionPolicy.onWrite(hash, size);
         }
     }
 
     /**
-     * Removes the specified key from the cache if it exists.
+     * Adds an entry's TTL to the expiry queue, rebuilding the queue if it has accumulated
+     * too many stale elements.
      */
-    @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted) {
-            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
+    private void addToExpiryQueue(long hash, long ttl) {
+        mExpiryQueue.add(hash, ttl);
+        if (mExpiryQueue.size() > 2 * mIndex.size() + 64) {
+            rebuildExpiryQueue();
         }
     }
 
-    /**
-     * Creates a pseudo-unique filename for the specified cache key.
-     * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
-     */
-    private String getFilenameForKey(String key) {
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+    private void rebuildExpiryQueue() {
+        mExpiryQueue.clear();
+        for (int slot = mIndex.first(); slot != CacheIndex.NONE; slot = mIndex.next(slot)) {
+            mExpiryQueue.add(mIndex.hashAt(slot), mIndex.ttlAt(slot));
+        }
     }
 
     /**
-     * Returns a file object for the given cache key.
+     * Removes an entry from the index and tells the eviction policy.
+     * @return false if the entry was not indexed
      */
-    public File getFileForKey(String key) {
-        return new File(mRootDirectory, getFilenameForKey(key));
+    private boolean removeFromIndex(long hash) {
+        if (!mIndex.remove(hash)) {
+            return false;
+        }
+        if (mEvictionPolicy != null) {
+            mEvictionPolicy.onRemove(hash);
+        }
+        return true;
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * Clears the eviction policy and tells it about every unpinned entry, in LRU order.
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+    private void resetEvictionPolicy() {
+        if (mEvictionPolicy == null) {
             return;
         }
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
-        }
-
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
-
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                       e.key, getFilenameForKey(e.key));
+        mEvictionPolicy.clear();
+        for (int slot = mIndex.first(); slot != CacheIndex.NONE; slot = mIndex.next(slot)) {
+            if (!mIndex.isPinnedAt(slot)) {
+                mEvictionPolicy.onWrite(mIndex.hashAt(slot), mIndex.sizeAt(slot));
             }
-            iterator.remove();
-            prunedFiles++;
+        }
+    }
 
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
-            }
+    /**
+     * Notes that the index changed before the indexer finished, so the journal has to be
+     * rewritten once it does.
+     */
+    private void markChangedWhileIndexing() {
+        if (!mIndexComplete) {
+            mChangedWhileIndexing = true;
         }
+    }
 
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+    /**
+     * Notes that a key was removed before the indexer finished, so that the loaded index
+     * does not bring it back.
+     */
+    private void markRemovedWhileIndexing(long hash) {
+        if (!mIndexComplete) {
+            mRemovedWhileIndexing.add(hash);
+            mChangedWhileIndexing = true;
         }
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
-     * @param key The key to identify the entry by.
-     * @param entry The entry to cache.
+     * Rewrites the journal if it has grown much larger than the index it describes.
      */
-    private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
+    private void compactJournalIfNeeded() {
+        // While indexing the journal is closed and rewritten at the end.
+        if (mIndexComplete && mJournal.needsCompaction(mIndex.size())) {
+            mJournal.rewrite(mIndex);
         }
-        mEntries.put(key, entry);
     }
 
     /**
-     * Removes the entry identified by 'key' from the cache.
+     * Fills the remaining space of a buffer from a channel.
      */
-    private void removeEntry(String key) {
-        CacheHeader entry = mEntries.get(key);
-        if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(key);
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException();
+            }
         }
     }
 
+    private static int computeCrc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
     /**
      * Reads the contents of an InputStream into a byte[].
      * */
@@ -331,13 +1498,51 @@ public class DiskBasedCache implements Cache {
         return bytes;
     }
 
+    /**
+     * Statistics about one eviction run.
+     */
+    public static class EvictionStats {
+        /** Number of entries evicted. */
+        public final int files;
+
+        /** Number of bytes freed. */
+        public final long bytes;
+
+        /** Time taken, in milliseconds. */
+        public final long durationMs;
+
+        /** Number of evicted entries that had expired. */
+        public final int expiredFiles;
+
+        /** Number of bytes freed by evicting expired entries. */
+        public final long expiredBytes;
+
+        /** Whether the eviction ran in the background rather than blocking a put. */
+        public final boolean background;
+
+        EvictionStats(int files, long bytes, int expiredFiles, long expiredBytes,
+                long durationMs, boolean background) {
+            this.files = files;
+            this.bytes = bytes;
+            this.expiredFiles = expiredFiles;
+            this.expiredBytes = expiredBytes;
+            this.durationMs = durationMs;
+            this.background = background;
+        }
+    }
+
     /**
      * Handles holding onto the cache headers for an entry.
+     *
+     * <p>In the current file format the header starts with a fixed-size metadata region
+     * ({@link #FIXED_HEADER_SIZE} bytes: magic, header length, server date, TTL, soft TTL, body
+     * length and body CRC32), followed by the key, ETag and response headers. All values are
+     * little-endian, and strings are an int byte count followed by UTF-8 bytes.</p>
      */
     // Visible for testing.
     static class CacheHeader {
         /** The size of the data identified by this CacheHeader. (This is not
-         * serialized to disk. */
+         * serialized to disk in the original format. */
         public long size;
 
         /** The key that identifies the cache entry. */
@@ -358,6 +1563,15 @@ public class DiskBasedCache implements Cache {
         /** Headers from the response resulting in this cache entry. */
         public Map<String, String> responseHeaders;
 
+        /** CRC32 of the data. Not checked for files in the original format. */
+        int bodyCrc;
+
+        /** Number of bytes preceding the data in the entry file. */
+        int headerLength;
+
+        /** Whether this header was read from a file in the original format. */
+        boolean legacyFormat;
+
         private CacheHeader() { }
 
         /**
@@ -367,12 +1581,13 @@ public class DiskBasedCache implements Cache {
          */
         public CacheHeader(String key, Entry entry) {
             this.key = key;
-            this.size = entry.data.length;
+            this.size = entry.getData().length;
             this.etag = entry.etag;
             this.serverDate = entry.serverDate;
             this.ttl = entry.ttl;
             this.softTtl = entry.softTtl;
             this.responseHeaders = entry.responseHeaders;
+            this.bodyCrc = computeCrc(entry.getData());
         }
 
         /**
@@ -381,12 +1596,88 @@ public class DiskBasedCache implements Cache {
          * @throws IOException
          */
         public static CacheHeader readHeader(InputStream is) throws IOException {
-            CacheHeader entry = new CacheHeader();
             int magic = readInt(is);
-            if (magic != CACHE_MAGIC) {
+            if (magic == CACHE_MAGIC) {
+                return readLegacyFields(is);
+            }
+            if (magic != CACHE_MAGIC_V2) {
                 // don't bother deleting, it'll get pruned eventually
                 throw new IOException();
             }
+            ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            fixed.putInt(magic);
+            fixed.put(streamToBytes(is, FIXED_HEADER_SIZE - 4));
+            fixed.flip();
+            CacheHeader entry = new CacheHeader();
+            entry.decodeFixed(fixed);
+            entry.decodeVariable(ByteBuffer.wrap(
+                    streamToBytes(is, entry.headerLength - FIXED_HEADER_SIZE))
+                    .order(ByteOrder.LITTLE_ENDIAN));
+            return entry;
+        }
+
+        /**
+         * Reads the header from the start of an entry file, leaving the channel positioned at
+         * the start of the data.
+         */
+        static CacheHeader readHeader(FileChannel channel) throws IOException {
+            ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, fixed);
+            fixed.flip();
+            int magic = fixed.getInt(0);
+            if (magic == CACHE_MAGIC) {
+                channel.position(0);
+                CountingInputStream cis = new CountingInputStream(
+                        new BufferedInputStream(Channels.newInputStream(channel)));
+                readInt(cis);
+                CacheHeader entry = readLegacyFields(cis);
+                entry.headerLength = cis.bytesRead;
+                entry.size = channel.size() - cis.bytesRead;
+                // The buffered stream may have read ahead into the data.
+                channel.position(entry.headerLength);
+                return entry;
+            }
+            if (magic != CACHE_MAGIC_V2) {
+                throw new IOException();
+            }
+            CacheHeader entry = new CacheHeader();
+            entry.decodeFixed(fixed);
+            ByteBuffer variable = ByteBuffer.allocate(entry.headerLength - FIXED_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, variable);
+            variable.flip();
+            entry.decodeVariable(variable);
+            return entry;
+        }
+
+        /**
+         * Decodes a header in the current file format from a buffer holding at least the
+         * whole header, leaving the buffer positioned at the start of the data.
+         */
+        static CacheHeader decode(ByteBuffer buffer) throws IOException {
+            int start = buffer.position();
+            if (buffer.remaining() < FIXED_HEADER_SIZE
+                    || buffer.getInt(start) != CACHE_MAGIC_V2) {
+                throw new IOException("Corrupt header");
+            }
+            CacheHeader entry = new CacheHeader();
+            entry.decodeFixed(buffer);
+            int limit = buffer.limit();
+            if (entry.headerLength > limit - start) {
+                throw new IOException("Truncated header");
+            }
+            buffer.limit(start + entry.headerLength);
+            entry.decodeVariable(buffer);
+            buffer.limit(limit);
+            buffer.position(start + entry.headerLength);
+            return entry;
+        }
+
+        private static CacheHeader readLegacyFields(InputStream is) throws IOException {
+            CacheHeader entry = new CacheHeader();
+            entry.legacyFormat = true;
             entry.key = readString(is);
             entry.etag = readString(is);
             if (entry.etag.equals("")) {
@@ -399,6 +1690,43 @@ public class DiskBasedCache implements Cache {
             return entry;
         }
 
+        private void decodeFixed(ByteBuffer buffer) throws IOException {
+            buffer.getInt(); // magic
+            headerLength = buffer.getInt();
+            serverDate = buffer.getLong();
+            ttl = buffer.getLong();
+            softTtl = buffer.getLong();
+            size = buffer.getInt();
+            bodyCrc = buffer.getInt();
+            if (headerLength < FIXED_HEADER_SIZE || size < 0) {
+                throw new IOException("Corrupt header");
+            }
+        }
+
+        private void decodeVariable(ByteBuffer buffer) throws IOException {
+            try {
+                key = getString(buffer);
+                etag = getString(buffer);
+                int count = buffer.getInt();
+                if (key == null || count < 0) {
+                    throw new IOException("Corrupt header");
+                }
+                responseHeaders = (count == 0)
+                        ? Collections.<String, String>emptyMap()
+                        : new HashMap<String, String>(count);
+                for (int i = 0; i < count; i++) {
+                    String name = getString(buffer);
+                    String value = getString(buffer);
+                    if (name == null || value == null) {
+                        throw new IOException("Corrupt header");
+                    }
+                    responseHeaders.put(name.intern(), value.intern());
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated header");
+            }
+        }
+
         /**
          * Creates a cache entry for the specified data.
          */
@@ -410,22 +1738,65 @@ public class DiskBasedCache implements Cache {
             e.ttl = ttl;
             e.softTtl = softTtl;
             e.responseHeaders = responseHeaders;
+            e.staleIfErrorTtl = getStaleIfErrorTtl();
             return e;
         }
 
+        /**
+         * Derives the stale-if-error TTL from the response headers, which saves storing it
+         * and keeps it in step with the soft TTL when the metadata is updated in place.
+         */
+        long getStaleIfErrorTtl() {
+            return softTtl + HttpHeaderParser.parseStaleIfError(responseHeaders);
+        }
+
+        /**
+         * Encodes this header in the current file format into a single buffer, ready to be
+         * written, and sets {@link #headerLength}.
+         */
+        ByteBuffer encode() throws IOException {
+            byte[] keyBytes = key.getBytes("UTF-8");
+            byte[] etagBytes = etag == null ? null : etag.getBytes("UTF-8");
+            int count = responseHeaders == null ? 0 : responseHeaders.size();
+            byte[][] headerBytes = new byte[count * 2][];
+            int length = FIXED_HEADER_SIZE + 4 + keyBytes.length + 4
+                    + (etagBytes == null ? 0 : etagBytes.length) + 4;
+            if (count > 0) {
+                int i = 0;
+                for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                    headerBytes[i] = header.getKey().getBytes("UTF-8");
+                    headerBytes[i + 1] = header.getValue().getBytes("UTF-8");
+                    length += 8 + headerBytes[i].length + headerBytes[i + 1].length;
+                    i += 2;
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(CACHE_MAGIC_V2);
+            buffer.putInt(length);
+            buffer.putLong(serverDate);
+            buffer.putLong(ttl);
+            buffer.putLong(softTtl);
+            buffer.putInt((int) size);
+            buffer.putInt(bodyCrc);
+            putBytes(buffer, keyBytes);
+            putBytes(buffer, etagBytes);
+            buffer.putInt(count);
+            for (byte[] bytes : headerBytes) {
+                putBytes(buffer, bytes);
+            }
+            buffer.flip();
+            headerLength = length;
+            return buffer;
+        }
 
         /**
          * Writes the contents of this CacheHeader to the specified OutputStream.
          */
         public boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeStringStringMap(responseHeaders, os);
+                ByteBuffer buffer = encode();
+                os.write(buffer.array(), 0, buffer.limit());
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -434,6 +1805,111 @@ public class DiskBasedCache implements Cache {
             }
         }
 
+        /**
+         * Writes this header in the original file format.
+         */
+        // Visible for testing.
+        void writeLegacyHeader(OutputStream os) throws IOException {
+            writeInt(os, CACHE_MAGIC);
+            writeString(os, key);
+            writeString(os, etag == null ? "" : etag);
+            writeLong(os, serverDate);
+            writeLong(os, ttl);
+            writeLong(os, softTtl);
+            writeStringStringMap(responseHeaders, os);
+        }
+
+        /** Writes a length-prefixed byte array, or a length of -1 for null. */
+        private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+            if (bytes == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+
+        /** Reads a string written by {@link #putBytes}. */
+        private static String getString(ByteBuffer buffer) throws IOException {
+            int length = buffer.getInt();
+            if (length == -1) {
+                return null;
+            }
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Corrupt header");
+            }
+            String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    length, "UTF-8");
+            buffer.position(buffer.position() + length);
+            return s;
+        }
+    }
+
+    /**
+     * Cache entry whose data is a read-only mapping of its file, copied onto the heap only if
+     * {@link #getData()} is called.
+     */
+    private static class MappedEntry extends Entry {
+        private final ByteBuffer mBuffer;
+
+        private MappedEntry(ByteBuffer buffer) {
+            mBuffer = buffer.asReadOnlyBuffer();
+        }
+
+        @Override
+        public byte[] getData() {
+            if (data == null) {
+                byte[] bytes = new byte[mBuffer.capacity()];
+                mBuffer.duplicate().get(bytes);
+                data = bytes;
+            }
+            return data;
+        }
+
+        @Override
+        public ByteBuffer getDataBuffer() {
+            return mBuffer.duplicate();
+        }
+    }
+
+    /**
+     * Cache entry whose data stays in its file until {@link #getData()} is called, so that
+     * checking expiry or revalidating the entry never reads the data. The data is only loaded
+     * if the file still holds what the header announced; if the entry has been removed or
+     * replaced since, {@link #getData()} returns null. Corrupt data is removed from the cache.
+     */
+    private class FileBackedEntry extends Entry {
+        private final File mFile;
+        private final CacheHeader mHeader;
+        private boolean mLoadFailed = false;
+
+        private FileBackedEntry(File file, CacheHeader header) {
+            mFile = file;
+            mHeader = header;
+            etag = header.etag;
+            serverDate = header.serverDate;
+            ttl = header.ttl;
+            softTtl = header.softTtl;
+            responseHeaders = header.responseHeaders;
+            staleIfErrorTtl = header.getStaleIfErrorTtl();
+        }
+
+        @Override
+        public synchronized byte[] getData() {
+            if (data == null && !mLoadFailed) {
+                try {
+                    data = loadBody(mFile, mHeader);
+                    if (data != null) {
+                        mMetrics.recordBytesRead(data.length);
+                    }
+                } catch (IOException e) {
+                    VolleyLog.d("%s: %s", mFile.getAbsolutePath(), e.toString());
+                    remove(mHeader.key);
+                }
+                mLoadFailed = data == null;
+            }
+            return data;
+        }
     }
 
     private static class CountingInputStream extends FilterInputStream {
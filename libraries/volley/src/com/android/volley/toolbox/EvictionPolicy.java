@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Chooses which entries a {@link DiskBasedCache} evicts when it needs space. Without a policy,
+ * the cache evicts the least recently used entries.
+ *
+ * <p>Entries are identified by a non-zero 64-bit hash of their key. The policy is told about
+ * every entry in the cache through {@link #onWrite}, including those found when the cache is
+ * initialized, and about reads and removals as they happen. Methods are called holding the
+ * cache's lock, so implementations need not be thread safe, but they must be fast and must
+ * not call back into the cache.</p>
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called when an entry is added or replaced.
+     * @param hash Hash of the entry's key
+     * @param size Size of the entry on disk, in bytes
+     */
+    public void onWrite(long hash, int size);
+
+    /**
+     * Called when an entry is read.
+     * @param hash Hash of the entry's key
+     */
+    public void onAccess(long hash);
+
+    /**
+     * Called when an entry is removed, including when it is evicted.
+     * @param hash Hash of the entry's key
+     */
+    public void onRemove(long hash);
+
+    /**
+     * Returns the entry to evict next, without removing it; {@link #onRemove} is called once
+     * it is evicted.
+     * @return Hash of the entry's key, or 0 to have the cache evict its least recently used
+     * entry
+     */
+    public long nextVictim();
+
+    /**
+     * Forgets all entries, such as when the cache is cleared or its index is rebuilt.
+     */
+    public void clear();
+}
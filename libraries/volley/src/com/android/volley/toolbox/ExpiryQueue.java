@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Min-heap of entry hashes ordered by TTL, so a {@link DiskBasedCache} can find its expired
+ * entries without scanning the index.
+ *
+ * <p>Removing from the middle of a heap is costly, so entries are never removed when they
+ * leave the cache or get a new TTL; a new element is added instead, and stale ones are
+ * recognized by the caller comparing against the index when they reach the top. The owner
+ * rebuilds the heap when stale elements accumulate. Stored in two parallel primitive
+ * arrays. This class is not thread safe.</p>
+ */
+class ExpiryQueue {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] mTtls = new long[INITIAL_CAPACITY];
+    private long[] mHashes = new long[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    /** Returns the number of elements, including stale ones. */
+    int size() {
+        return mSize;
+    }
+
+    /** Adds an element. */
+    void add(long hash, long ttl) {
+        if (mSize == mTtls.length) {
+            long[] ttls = new long[mSize * 2];
+            long[] hashes = new long[mSize * 2];
+            System.arraycopy(mTtls, 0, ttls, 0, mSize);
+            System.arraycopy(mHashes, 0, hashes, 0, mSize);
+            mTtls = ttls;
+            mHashes = hashes;
+        }
+        int i = mSize++;
+        // Sift up.
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (mTtls[parent] <= ttl) {
+                break;
+            }
+            mTtls[i] = mTtls[parent];
+            mHashes[i] = mHashes[parent];
+            i = parent;
+        }
+        mTtls[i] = ttl;
+        mHashes[i] = hash;
+    }
+
+    /** Returns the smallest TTL. Must not be called when empty. */
+    long peekTtl() {
+        return mTtls[0];
+    }
+
+    /** Returns the hash with the smallest TTL. Must not be called when empty. */
+    long peekHash() {
+        return mHashes[0];
+    }
+
+    /** Removes the element with the smallest TTL. Must not be called when empty. */
+    void poll() {
+        mSize--;
+        long ttl = mTtls[mSize];
+        long hash = mHashes[mSize];
+        int i = 0;
+        // Sift down the last element from the root.
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= mSize) {
+                break;
+            }
+            if (child + 1 < mSize && mTtls[child + 1] < mTtls[child]) {
+                child++;
+            }
+            if (ttl <= mTtls[child]) {
+                break;
+            }
+            mTtls[i] = mTtls[child];
+            mHashes[i] = mHashes[child];
+            i = child;
+        }
+        mTtls[i] = ttl;
+        mHashes[i] = hash;
+    }
+
+    /** Removes all elements. */
+    void clear() {
+        mTtls = new long[INITIAL_CAPACITY];
+        mHashes = new long[INITIAL_CAPACITY];
+        mSize = 0;
+    }
+
+    /** Returns the approximate heap footprint of the arrays, in bytes. */
+    long getHeapSize() {
+        return (long) mTtls.length * 16;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.Arrays;
+
+/**
+ * Approximate count of how often each key hash was seen, for {@link TinyLfuEvictionPolicy}.
+ *
+ * <p>This is a count-min sketch: each hash increments one 4-bit counter in each of four rows,
+ * and its frequency is the smallest of those counters, so collisions can only overestimate
+ * it. The counters are packed sixteen to a long. After a number of increments proportional to
+ * the table size all counters are halved, so that old popularity fades. This class is not
+ * thread safe.</p>
+ */
+class FrequencySketch {
+
+    /** Largest value of a counter. */
+    static final int MAX_FREQUENCY = 15;
+
+    private static final int ROWS = 4;
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /** Clears the high bit of each counter after shifting the table right by one. */
+    private static final long HALVING_MASK = 0x7777777777777777L;
+
+    private final long[] mTable;
+    private final int mMask;
+
+    /** Number of increments after which all counters are halved. */
+    private final int mSampleSize;
+
+    private int mIncrements = 0;
+
+    /**
+     * @param expectedEntries The number of distinct hashes expected to be tracked at once
+     */
+    FrequencySketch(int expectedEntries) {
+        int length = 8;
+        while (length < expectedEntries && length < (1 << 24)) {
+            length <<= 1;
+        }
+        mTable = new long[length];
+        mMask = length - 1;
+        mSampleSize = length * 10;
+    }
+
+    /** Returns the estimated number of times the hash was seen, at most {@link #MAX_FREQUENCY}. */
+    int frequency(long hash) {
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < ROWS; i++) {
+            long h = spread(hash, i);
+            int count = (int) (mTable[indexOf(h)] >>> shiftOf(h)) & 0xf;
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Counts one occurrence of the hash. */
+    void increment(long hash) {
+        boolean incremented = false;
+        for (int i = 0; i < ROWS; i++) {
+            long h = spread(hash, i);
+            int index = indexOf(h);
+            int shift = shiftOf(h);
+            if (((mTable[index] >>> shift) & 0xf) < MAX_FREQUENCY) {
+                mTable[index] += 1L << shift;
+                incremented = true;
+            }
+        }
+        if (incremented && ++mIncrements >= mSampleSize) {
+            halve();
+        }
+    }
+
+    /** Resets all counters to zero. */
+    void clear() {
+        Arrays.fill(mTable, 0);
+        mIncrements = 0;
+    }
+
+    /** Returns the heap footprint of the counters, in bytes. */
+    int getHeapSize() {
+        return mTable.length * 8;
+    }
+
+    private void halve() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & HALVING_MASK;
+        }
+        mIncrements /= 2;
+    }
+
+    /** Derives an independent hash for the given row. */
+    private static long spread(long hash, int row) {
+        long h = (hash ^ SEEDS[row]) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 32);
+    }
+
+    private int indexOf(long h) {
+        return (int) h & mMask;
+    }
+
+    /** Picks one of the sixteen counters in a long, using bits not used for the index. */
+    private static int shiftOf(long h) {
+        return (int) (h >>> 60) << 2;
+    }
+}
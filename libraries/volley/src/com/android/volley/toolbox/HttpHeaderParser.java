@@ -45,7 +45,10 @@ public class HttpHeaderParser {
         long serverExpires = 0;
         long softExpire = 0;
         long maxAge = 0;
+        long staleWhileRevalidate = 0;
+        long staleIfError = 0;
         boolean hasCacheControl = false;
+        boolean mustRevalidate = false;
 
         String serverEtag = null;
         String headerValue;
@@ -68,8 +71,23 @@ public class HttpHeaderParser {
                         maxAge = Long.parseLong(token.substring(8));
                     } catch (Exception e) {
                     }
+                } else if (token.startsWith("stale-while-revalidate=")) {
+                    staleWhileRevalidate = parseSeconds(token.substring(23));
+                } else if (token.startsWith("stale-if-error=")) {
+                    staleIfError = parseSeconds(token.substring(15));
                 } else if (token.equals("must-revalidate") || token.equals("proxy-revalidate")) {
-                    maxAge = 0;
+                    mustRevalidate = true;
+                }
+            }
+        }
+
+        // A response varying by more than request headers can't be matched to later requests.
+        headerValue = headers.get("Vary");
+        if (headerValue != null) {
+            String[] tokens = headerValue.split(",");
+            for (int i = 0; i < tokens.length; i++) {
+                if (tokens[i].trim().equals("*")) {
+                    return null;
                 }
             }
         }
@@ -84,6 +102,12 @@ public class HttpHeaderParser {
         // Cache-Control takes precedence over an Expires header, even if both exist and Expires
         // is more restrictive.
         if (hasCacheControl) {
+            if (mustRevalidate) {
+                // Nothing may be served once stale, not even while revalidating or on errors.
+                maxAge = 0;
+                staleWhileRevalidate = 0;
+                staleIfError = 0;
+            }
             softExpire = now + maxAge * 1000;
         } else if (serverDate > 0 && serverExpires >= serverDate) {
             // Default semantic for Expire header in HTTP specification is softExpire.
@@ -94,13 +118,88 @@ public class HttpHeaderParser {
         entry.data = response.data;
         entry.etag = serverEtag;
         entry.softTtl = softExpire;
-        entry.ttl = entry.softTtl;
+        // Stale data may still be served, and refreshed in the background, during the
+        // stale-while-revalidate window; only after it must the network be waited for.
+        entry.ttl = entry.softTtl + staleWhileRevalidate * 1000;
+        entry.staleIfErrorTtl = entry.softTtl + staleIfError * 1000;
         entry.serverDate = serverDate;
         entry.responseHeaders = headers;
 
         return entry;
     }
 
+    /**
+     * Returns how long after becoming stale an entry with the given response headers may
+     * still be served in place of an error, from the stale-if-error Cache-Control directive.
+     * Lets caches that don't store {@link Cache.Entry#staleIfErrorTtl} derive it again.
+     *
+     * @return the time in milliseconds, or 0 if stale data may not be served on errors
+     */
+    public static long parseStaleIfError(Map<String, String> headers) {
+        String headerValue = headers.get("Cache-Control");
+        if (headerValue == null) {
+            return 0;
+        }
+        long staleIfError = 0;
+        String[] tokens = headerValue.split(",");
+        for (int i = 0; i < tokens.length; i++) {
+            String token = tokens[i].trim();
+            if (token.startsWith("stale-if-error=")) {
+                staleIfError = parseSeconds(token.substring(15));
+            } else if (token.equals("must-revalidate") || token.equals("proxy-revalidate")) {
+                return 0;
+            }
+        }
+        return staleIfError * 1000;
+    }
+
+    /**
+     * Returns how long an entry with the given response headers stays fresh after it was
+     * fetched: the max-age Cache-Control directive or, without Cache-Control, the time
+     * between the Date and Expires headers. Unlike the difference between
+     * {@link Cache.Entry#softTtl} and {@link Cache.Entry#serverDate}, it doesn't depend on the
+     * device clock agreeing with the server's.
+     *
+     * @return the time in milliseconds, or 0 if the entry is never fresh
+     */
+    public static long parseFreshnessLifetime(Map<String, String> headers) {
+        String headerValue = headers.get("Cache-Control");
+        if (headerValue != null) {
+            long maxAge = 0;
+            String[] tokens = headerValue.split(",");
+            for (int i = 0; i < tokens.length; i++) {
+                String token = tokens[i].trim();
+                if (token.startsWith("max-age=")) {
+                    maxAge = parseSeconds(token.substring(8));
+                } else if (token.equals("must-revalidate")
+                        || token.equals("proxy-revalidate")) {
+                    return 0;
+                }
+            }
+            return maxAge * 1000;
+        }
+        String date = headers.get("Date");
+        String expires = headers.get("Expires");
+        if (date == null || expires == null) {
+            return 0;
+        }
+        long serverDate = parseDateAsEpoch(date);
+        long serverExpires = parseDateAsEpoch(expires);
+        if (serverDate <= 0 || serverExpires < serverDate) {
+            return 0;
+        }
+        return serverExpires - serverDate;
+    }
+
+    /** Parses a delta-seconds directive value, returning 0 if it is invalid. */
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * Parse date in RFC1123 format, and return its value as epoch
      */
@@ -27,6 +27,9 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
 /**
  * A canned request for getting an image at a given URL and calling
  * back with a decoded Bitmap.
@@ -118,6 +121,14 @@ public class ImageRequest extends Request<Bitmap> {
         return resized;
     }
 
+    /**
+     * Images are decoded straight from a mapped cache entry, without copying it onto the heap.
+     */
+    @Override
+    protected boolean acceptsDataBuffer() {
+        return true;
+    }
+
     @Override
     protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
         // Serialize all decode on a global lock to reduce concurrent heap usage.
@@ -125,26 +136,39 @@ public class ImageRequest extends Request<Bitmap> {
             try {
                 return doParse(response);
             } catch (OutOfMemoryError e) {
-                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
+                int length = response.data != null
+                        ? response.data.length : response.dataBuffer.remaining();
+                VolleyLog.e("Caught OOM for %d byte image, url=%s", length, getUrl());
                 return Response.error(new ParseError(e));
             }
         }
     }
 
+    /**
+     * Decodes the response data, from its buffer if it has no byte array.
+     */
+    private static Bitmap decode(NetworkResponse response, BitmapFactory.Options options) {
+        if (response.data != null) {
+            return BitmapFactory.decodeByteArray(
+                    response.data, 0, response.data.length, options);
+        }
+        return BitmapFactory.decodeStream(
+                new ByteBufferInputStream(response.dataBuffer.duplicate()), null, options);
+    }
+
     /**
      * The real guts of parseNetworkResponse. Broken out for readability.
      */
     private Response<Bitmap> doParse(NetworkResponse response) {
-        byte[] data = response.data;
         BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
         Bitmap bitmap = null;
         if (mMaxWidth == 0 && mMaxHeight == 0) {
             decodeOptions.inPreferredConfig = mDecodeConfig;
-            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+            bitmap = decode(response, decodeOptions);
         } else {
             // If we have to resize this image, first get the natural bounds.
             decodeOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+            decode(response, decodeOptions);
             int actualWidth = decodeOptions.outWidth;
             int actualHeight = decodeOptions.outHeight;
 
@@ -160,8 +184,7 @@ public class ImageRequest extends Request<Bitmap> {
             // decodeOptions.inPreferQualityOverSpeed = PREFER_QUALITY_OVER_SPEED;
             decodeOptions.inSampleSize =
                 findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-            Bitmap tempBitmap =
-                BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+            Bitmap tempBitmap = decode(response, decodeOptions);
 
             // If necessary, scale down to the maximal acceptable size.
             if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth ||
@@ -208,4 +231,35 @@ public class ImageRequest extends Request<Bitmap> {
 
         return (int) n;
     }
+
+    /**
+     * Reads a buffer as a stream, for decoding data that is not in a byte array.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
 }
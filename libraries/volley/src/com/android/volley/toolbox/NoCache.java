@@ -39,6 +39,10 @@ public class NoCache implements Cache {
     public void invalidate(String key, boolean fullExpire) {
     }
 
+    @Override
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl) {
+    }
+
     @Override
     public void remove(String key) {
     }
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+
+import com.android.volley.Cache;
+import com.android.volley.PartitionedCache;
+import com.android.volley.VolleyLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link PartitionedCache} that keeps each partition in its own {@link DiskBasedCache}, in a
+ * subdirectory of the root directory named after the partition.
+ *
+ * <p>Each partition has a byte quota that only its own entries can take up, so that a burst
+ * of images can't evict the API responses. On top of their quotas partitions may borrow from
+ * a shared overflow pool. When the pool runs out, the partition that has borrowed the most
+ * gives back space by evicting its own least recently used entries on a background thread;
+ * a partition is never trimmed below its quota on behalf of another.</p>
+ *
+ * <p>Entries put without a partition stay in the one already holding their key, such as when
+ * they are revalidated, and otherwise go where a {@link PartitionSelector} says; the default
+ * one puts images into {@link #PARTITION_IMAGES} and everything else into
+ * {@link #PARTITION_API}. Entries for partitions that don't exist go into the first one
+ * added.</p>
+ */
+public class PartitionedDiskCache implements PartitionedCache {
+
+    /** Partition of images under the default configuration. */
+    public static final String PARTITION_IMAGES = "images";
+
+    /** Partition of everything but images under the default configuration. */
+    public static final String PARTITION_API = "api";
+
+    /** Default quota of the images partition in bytes. */
+    private static final int DEFAULT_IMAGES_BYTES = 3 * 1024 * 1024;
+
+    /** Default quota of the API partition in bytes. */
+    private static final int DEFAULT_API_BYTES = 1024 * 1024;
+
+    /** Default size of the overflow pool in bytes. */
+    private static final int DEFAULT_OVERFLOW_BYTES = 1024 * 1024;
+
+    /** Number of locks keys are spread over. */
+    private static final int LOCK_STRIPES = 32;
+
+    /**
+     * Chooses the partition of entries put without one. The cache only sees keys and
+     * entries, so selectors tell kinds of responses apart by their cache key or by the
+     * entry's response headers, such as Content-Type.
+     */
+    public interface PartitionSelector {
+        /**
+         * @return the name of the partition to put the entry into
+         */
+        public String getPartition(String key, Entry entry);
+    }
+
+    /**
+     * Puts entries whose Content-Type is an image into {@link #PARTITION_IMAGES}, and all
+     * others into {@link #PARTITION_API}.
+     */
+    public static final PartitionSelector DEFAULT_SELECTOR = new PartitionSelector() {
+        @Override
+        public String getPartition(String key, Entry entry) {
+            for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                if (header.getKey().equalsIgnoreCase("Content-Type")
+                        && header.getValue().toLowerCase(Locale.US).startsWith("image/")) {
+                    return PARTITION_IMAGES;
+                }
+            }
+            return PARTITION_API;
+        }
+    };
+
+    /** The root directory holding a subdirectory per partition. */
+    private final File mRootDirectory;
+
+    /** Size of the overflow pool shared by all partitions. */
+    private final int mOverflowBytes;
+
+    /** The partitions by name, in the order they were added. Guarded by this. */
+    private final Map<String, Partition> mPartitions = new LinkedHashMap<String, Partition>();
+
+    /** Snapshot of the partitions, replaced whenever one is added. */
+    private volatile Partition[] mPartitionArray = new Partition[0];
+
+    private PartitionSelector mSelector = DEFAULT_SELECTOR;
+
+    /**
+     * Locks held while an entry is looked up in the partitions and changed, so that moving
+     * it from one partition to another is atomic. Spread over stripes by key hash.
+     */
+    private final Object[] mKeyLocks = new Object[LOCK_STRIPES];
+
+    /** Whether a reclaim of overflow space is scheduled and not started yet. Guarded by this. */
+    private boolean mReclaimPending = false;
+
+    /** Executor reclaiming overflow space, created when first needed. Guarded by this. */
+    private ExecutorService mReclaimExecutor;
+
+    /**
+     * Constructs an instance of the PartitionedDiskCache without partitions; add them with
+     * {@link #addPartition} before initializing it.
+     * @param rootDirectory The root directory of the cache
+     * @param overflowBytes The size of the pool partitions can borrow from beyond their quotas
+     */
+    public PartitionedDiskCache(File rootDirectory, int overflowBytes) {
+        mRootDirectory = rootDirectory;
+        mOverflowBytes = overflowBytes;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mKeyLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Constructs an instance of the PartitionedDiskCache with an images partition of 3MB, an
+     * API partition of 1MB and an overflow pool of 1MB.
+     * @param rootDirectory The root directory of the cache
+     */
+    public PartitionedDiskCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_OVERFLOW_BYTES);
+        addPartition(PARTITION_IMAGES, DEFAULT_IMAGES_BYTES);
+        addPartition(PARTITION_API, DEFAULT_API_BYTES);
+    }
+
+    /**
+     * Adds a partition. Must be called before {@link #initialize()}.
+     * @param name The partition's name, which is also the name of its directory
+     * @param quotaBytes The space reserved for the partition's entries
+     */
+    public synchronized void addPartition(String name, int quotaBytes) {
+        if (mPartitions.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate partition " + name);
+        }
+        DiskBasedCache cache = new DiskBasedCache(
+                new File(mRootDirectory, name), quotaBytes + mOverflowBytes);
+        mPartitions.put(name, new Partition(name, quotaBytes, cache));
+        mPartitionArray = mPartitions.values().toArray(new Partition[mPartitions.size()]);
+    }
+
+    /**
+     * Sets the selector choosing the partition of entries put without one. Entries already
+     * cached are not moved.
+     */
+    public synchronized void setPartitionSelector(PartitionSelector selector) {
+        mSelector = selector;
+    }
+
+    /**
+     * Initializes all partitions, then returns any overflow space borrowed beyond the pool,
+     * such as after quotas were lowered.
+     */
+    @Override
+    public void initialize() {
+        for (Partition partition : mPartitionArray) {
+            partition.cache.initialize();
+        }
+        reclaimOverflow();
+    }
+
+    @Override
+    public Entry get(String key) {
+        for (Partition partition : mPartitionArray) {
+            Entry entry = partition.cache.get(key);
+            if (entry != null) {
+                partition.hits.incrementAndGet();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts the entry into the partition already holding the key, or else the one chosen by
+     * the {@link PartitionSelector}.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        synchronized (getKeyLock(key)) {
+            Partition partition = findPartition(key);
+            if (partition == null) {
+                PartitionSelector selector;
+                synchronized (this) {
+                    selector = mSelector;
+                }
+                partition = getPartition(selector.getPartition(key, entry));
+            }
+            put(partition, key, entry);
+        }
+        scheduleReclaimIfNeeded();
+    }
+
+    @Override
+    public void put(String partition, String key, Entry entry) {
+        synchronized (getKeyLock(key)) {
+            put(getPartition(partition), key, entry);
+        }
+        scheduleReclaimIfNeeded();
+    }
+
+    /** Puts the entry into a partition, removing it from any other. Holds the key's lock. */
+    private void put(Partition target, String key, Entry entry) {
+        for (Partition partition : mPartitionArray) {
+            if (partition != target && partition.cache.containsKey(key)) {
+                partition.cache.remove(key);
+            }
+        }
+        target.cache.put(key, entry);
+        target.puts.incrementAndGet();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (getKeyLock(key)) {
+            Partition partition = findPartition(key);
+            if (partition != null) {
+                partition.cache.invalidate(key, fullExpire);
+            }
+        }
+    }
+
+    @Override
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl) {
+        synchronized (getKeyLock(key)) {
+            Partition partition = findPartition(key);
+            if (partition != null) {
+                partition.cache.updateMetadata(key, serverDate, ttl, softTtl);
+            }
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (getKeyLock(key)) {
+            Partition partition = findPartition(key);
+            if (partition != null) {
+                partition.cache.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Partition partition : mPartitionArray) {
+            partition.cache.clear();
+        }
+    }
+
+    /** Returns the bytes of the overflow pool currently borrowed by partitions. */
+    public long getBorrowedBytes() {
+        long borrowed = 0;
+        for (Partition partition : mPartitionArray) {
+            borrowed += partition.getBorrowedBytes();
+        }
+        return borrowed;
+    }
+
+    /**
+     * Returns the usage of each partition, in the order they were added.
+     */
+    public List<PartitionStats> getPartitionStats() {
+        List<PartitionStats> stats = new ArrayList<PartitionStats>();
+        for (Partition partition : mPartitionArray) {
+            stats.add(new PartitionStats(partition));
+        }
+        return stats;
+    }
+
+    private Object getKeyLock(String key) {
+        return mKeyLocks[(int) (DiskBasedCache.hashKey(key) >>> 32) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Returns the partition whose index holds the key, or null. The partitions' indexes are
+     * built when they are initialized, so this never misses an entry.
+     */
+    private Partition findPartition(String key) {
+        for (Partition partition : mPartitionArray) {
+            if (partition.cache.containsKey(key)) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the partition with the given name, or the first one added if there is none.
+     */
+    private synchronized Partition getPartition(String name) {
+        Partition partition = mPartitions.get(name);
+        if (partition == null) {
+            if (mPartitions.isEmpty()) {
+                throw new IllegalStateException("No partitions");
+            }
+            VolleyLog.d("No cache partition %s", name);
+            partition = mPartitionArray[0];
+        }
+        return partition;
+    }
+
+    /**
+     * Starts reclaiming overflow space on the background executor if more is borrowed than
+     * the pool holds and no reclaim is pending, so that puts don't wait for the trimming.
+     */
+    private void scheduleReclaimIfNeeded() {
+        if (getBorrowedBytes() <= mOverflowBytes) {
+            return;
+        }
+        synchronized (this) {
+            if (mReclaimPending) {
+                return;
+            }
+            mReclaimPending = true;
+        }
+        getReclaimExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PartitionedDiskCache.this) {
+                    mReclaimPending = false;
+                }
+                reclaimOverflow();
+            }
+        });
+    }
+
+    private synchronized ExecutorService getReclaimExecutor() {
+        if (mReclaimExecutor == null) {
+            mReclaimExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "PartitionedDiskCache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mReclaimExecutor;
+    }
+
+    /**
+     * Trims the partitions that borrowed the most until the overflow pool covers what is
+     * borrowed. Holds this while trimming, so that concurrent reclaims don't trim twice for
+     * the same shortage.
+     */
+    private synchronized void reclaimOverflow() {
+        long excess = getBorrowedBytes() - mOverflowBytes;
+        while (excess > 0) {
+            Partition lender = null;
+            long mostBorrowed = 0;
+            for (Partition partition : mPartitionArray) {
+                long borrowed = partition.getBorrowedBytes();
+                if (borrowed > mostBorrowed) {
+                    lender = partition;
+                    mostBorrowed = borrowed;
+                }
+            }
+            if (lender == null) {
+                return;
+            }
+            long size = lender.cache.getTotalSize();
+            lender.cache.trimToSize(size - Math.min(excess, mostBorrowed));
+            long reclaimed = size - lender.cache.getTotalSize();
+            if (reclaimed <= 0) {
+                return;
+            }
+            lender.reclaimedBytes.addAndGet(reclaimed);
+            excess -= reclaimed;
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("reclaimed %d overflow bytes from partition %s",
+                        reclaimed, lender.name);
+            }
+        }
+    }
+
+    /** A partition and its counters. */
+    private static class Partition {
+        final String name;
+        final int quotaBytes;
+        final DiskBasedCache cache;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong puts = new AtomicLong();
+        final AtomicLong reclaimedBytes = new AtomicLong();
+
+        Partition(String name, int quotaBytes, DiskBasedCache cache) {
+            this.name = name;
+            this.quotaBytes = quotaBytes;
+            this.cache = cache;
+        }
+
+        long getBorrowedBytes() {
+            return Math.max(0, cache.getTotalSize() - quotaBytes);
+        }
+    }
+
+    /**
+     * Usage of a partition, as returned by {@link #getPartitionStats()}.
+     */
+    public static class PartitionStats {
+        /** Name of the partition. */
+        public final String name;
+
+        /** Space reserved for the partition, in bytes. */
+        public final long quotaBytes;
+
+        /** Total size of the partition's entries, in bytes. */
+        public final long sizeBytes;
+
+        /** Bytes of the overflow pool the partition is using beyond its quota. */
+        public final long borrowedBytes;
+
+        /** Lookups served by the partition. */
+        public final long hits;
+
+        /** Entries put into the partition. */
+        public final long puts;
+
+        /** Bytes evicted from the partition to give overflow space back. */
+        public final long reclaimedBytes;
+
+        private PartitionStats(Partition partition) {
+            name = partition.name;
+            quotaBytes = partition.quotaBytes;
+            sizeBytes = partition.cache.getTotalSize();
+            borrowedBytes = Math.max(0, sizeBytes - quotaBytes);
+            hits = partition.hits.get();
+            puts = partition.puts.get();
+            reclaimedBytes = partition.reclaimedBytes.get();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.RequestQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A {@link RequestQueue.CacheKeyNormalizer} that canonicalizes URLs: the scheme and host are
+ * lower-cased, the fragment is dropped, the given query parameters are removed and the
+ * remaining ones are sorted. Use it to leave out parameters that don't change the response,
+ * such as credentials or cache busters, and to make the parameter order irrelevant.
+ */
+public class QueryCacheKeyNormalizer implements RequestQueue.CacheKeyNormalizer {
+
+    private final Set<String> mIgnoredParameters;
+
+    /**
+     * @param ignoredParameters Names of the query parameters to leave out of cache keys
+     */
+    public QueryCacheKeyNormalizer(String... ignoredParameters) {
+        mIgnoredParameters = new HashSet<String>(Arrays.asList(ignoredParameters));
+    }
+
+    @Override
+    public String normalize(String url) {
+        int fragment = url.indexOf('#');
+        if (fragment != -1) {
+            url = url.substring(0, fragment);
+        }
+        int query = url.indexOf('?');
+        String base = lowerCaseAuthority(query == -1 ? url : url.substring(0, query));
+        if (query == -1) {
+            return base;
+        }
+
+        List<String> parameters = new ArrayList<String>();
+        for (String parameter : url.substring(query + 1).split("&")) {
+            if (parameter.length() == 0) {
+                continue;
+            }
+            int equals = parameter.indexOf('=');
+            String name = equals == -1 ? parameter : parameter.substring(0, equals);
+            if (!mIgnoredParameters.contains(name)) {
+                parameters.add(parameter);
+            }
+        }
+        if (parameters.isEmpty()) {
+            return base;
+        }
+        Collections.sort(parameters);
+
+        StringBuilder key = new StringBuilder(url.length());
+        key.append(base);
+        char separator = '?';
+        for (String parameter : parameters) {
+            key.append(separator).append(parameter);
+            separator = '&';
+        }
+        return key.toString();
+    }
+
+    /** Lower-cases the scheme and host, which are case insensitive, leaving the path alone. */
+    private static String lowerCaseAuthority(String url) {
+        int scheme = url.indexOf("://");
+        if (scheme == -1) {
+            return url;
+        }
+        int path = url.indexOf('/', scheme + 3);
+        if (path == -1) {
+            return url.toLowerCase(Locale.US);
+        }
+        return url.substring(0, path).toLowerCase(Locale.US) + url.substring(path);
+    }
+}
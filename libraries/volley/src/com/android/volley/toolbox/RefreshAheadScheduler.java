@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyLog;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Revalidates frequently used cache entries shortly before they go stale, so that reading
+ * them again finds fresh data instead of waiting for the network.
+ *
+ * <p>Requests added through {@link #add(Request)} are counted by cache key. Periodically,
+ * the entries of keys used at least a minimum number of times are checked, and those that
+ * have entered the last part of their freshness lifetime are revalidated with a low priority
+ * conditional GET, which only updates the cache. Each version of an entry is revalidated at
+ * most once, so a failed revalidation is left to the next foreground read. Only GET requests
+ * that should be cached are tracked; entries whose URL or headers change on every request
+ * are best kept out by not adding their requests here.</p>
+ */
+public class RefreshAheadScheduler {
+
+    /** Default fraction of the freshness lifetime before the soft TTL when refreshing starts. */
+    private static final float DEFAULT_REFRESH_FRACTION = 0.1f;
+
+    /** Default number of uses after which a key is considered frequently used. */
+    private static final int DEFAULT_MIN_USES = 3;
+
+    /** Default interval between checks, in milliseconds. */
+    private static final long DEFAULT_CHECK_INTERVAL_MS = 30 * 1000;
+
+    /** Time after which use counts are halved, so that keys no longer used cool down. */
+    private static final long USE_HALF_LIFE_MS = 10 * 60 * 1000;
+
+    /** Maximum number of keys tracked; the least recently used ones are dropped. */
+    private static final int MAX_TRACKED_KEYS = 256;
+
+    /** What is known about a tracked key. */
+    private static class Tracked {
+        String url;
+        Map<String, String> headers;
+        int uses;
+        /** Soft TTL of the entry version last revalidated. */
+        long refreshedSoftTtl;
+    }
+
+    private final RequestQueue mQueue;
+    private final float mRefreshFraction;
+    private final int mMinUses;
+    private final long mCheckIntervalMs;
+
+    /** Tracked keys in LRU order. Guarded by this. */
+    private final LinkedHashMap<String, Tracked> mTracked =
+            new LinkedHashMap<String, Tracked>(16, .75f, true);
+
+    /** When use counts were last halved. Guarded by this. */
+    private long mLastDecay = System.currentTimeMillis();
+
+    private ScheduledExecutorService mExecutor;
+
+    /**
+     * Creates a scheduler.
+     * @param queue The queue to send revalidations to, whose cache is checked
+     * @param refreshFraction Fraction of an entry's freshness lifetime, counted back from its
+     *     soft TTL, during which it is revalidated
+     * @param minUses Number of uses after which a key is revalidated ahead
+     * @param checkIntervalMs Interval between checks, in milliseconds
+     */
+    public RefreshAheadScheduler(RequestQueue queue, float refreshFraction, int minUses,
+            long checkIntervalMs) {
+        mQueue = queue;
+        mRefreshFraction = refreshFraction;
+        mMinUses = minUses;
+        mCheckIntervalMs = checkIntervalMs;
+    }
+
+    /**
+     * Creates a scheduler that revalidates entries used at least 3 times during the last 10%
+     * of their freshness lifetime, checking every 30 seconds.
+     * @param queue The queue to send revalidations to, whose cache is checked
+     */
+    public RefreshAheadScheduler(RequestQueue queue) {
+        this(queue, DEFAULT_REFRESH_FRACTION, DEFAULT_MIN_USES, DEFAULT_CHECK_INTERVAL_MS);
+    }
+
+    /**
+     * Adds a request to the queue and counts a use of its cache key.
+     * @return The passed-in request
+     */
+    public <T> Request<T> add(Request<T> request) {
+        mQueue.add(request);
+        if (request.getMethod() == Request.Method.GET && request.shouldCache()) {
+            track(request);
+        }
+        return request;
+    }
+
+    /** Starts checking periodically. */
+    public synchronized void start() {
+        if (mExecutor != null) {
+            return;
+        }
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "RefreshAheadScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkNow();
+            }
+        }, mCheckIntervalMs, mCheckIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops checking. Revalidations already sent are not cancelled. */
+    public synchronized void stop() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void track(Request<?> request) {
+        Map<String, String> headers;
+        try {
+            headers = request.getHeaders();
+        } catch (AuthFailureError e) {
+            return;
+        }
+        String cacheKey = request.getCacheKey();
+        synchronized (this) {
+            Tracked tracked = mTracked.get(cacheKey);
+            if (tracked == null) {
+                tracked = new Tracked();
+                mTracked.put(cacheKey, tracked);
+                if (mTracked.size() > MAX_TRACKED_KEYS) {
+                    Iterator<String> it = mTracked.keySet().iterator();
+                    it.next();
+                    it.remove();
+                }
+            }
+            tracked.url = request.getUrl();
+            tracked.headers = headers;
+            tracked.uses++;
+        }
+    }
+
+    /**
+     * Revalidates the entries of frequently used keys that are due. Called periodically once
+     * started; does its own I/O, so must not be called on the main thread.
+     */
+    void checkNow() {
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<String>();
+        synchronized (this) {
+            while (now - mLastDecay >= USE_HALF_LIFE_MS) {
+                mLastDecay += USE_HALF_LIFE_MS;
+                Iterator<Tracked> it = mTracked.values().iterator();
+                while (it.hasNext()) {
+                    Tracked tracked = it.next();
+                    tracked.uses /= 2;
+                    if (tracked.uses == 0) {
+                        it.remove();
+                    }
+                }
+            }
+            for (Map.Entry<String, Tracked> entry : mTracked.entrySet()) {
+                if (entry.getValue().uses >= mMinUses) {
+                    keys.add(entry.getKey());
+                }
+            }
+        }
+
+        Cache cache = mQueue.getCache();
+        for (String cacheKey : keys) {
+            Tracked tracked;
+            synchronized (this) {
+                tracked = mTracked.get(cacheKey);
+            }
+            if (tracked == null) {
+                continue;
+            }
+            RevalidationRequest request = new RevalidationRequest(
+                    tracked.url, cacheKey, tracked.headers, null, null, null);
+            Cache.Entry entry = cache.get(cacheKey);
+            if (entry != null) {
+                // Responses that vary by request headers are cached per variant.
+                try {
+                    String variantKey = request.getVariantCacheKey(entry.responseHeaders);
+                    if (variantKey != null) {
+                        entry = cache.get(variantKey);
+                    }
+                } catch (AuthFailureError e) {
+                    entry = null;
+                }
+            }
+            if (entry == null || !isDue(entry, now)) {
+                continue;
+            }
+            synchronized (this) {
+                if (tracked.refreshedSoftTtl == entry.softTtl) {
+                    continue;
+                }
+                tracked.refreshedSoftTtl = entry.softTtl;
+            }
+            VolleyLog.d("Refreshing ahead %s", cacheKey);
+            request.setCacheEntry(entry);
+            mQueue.add(request);
+        }
+    }
+
+    /**
+     * Returns true if the entry has entered the part of its freshness lifetime during which it
+     * is revalidated. The lifetime is taken from the response headers rather than from the
+     * server date, which is on the server's clock while the soft TTL is on the device's.
+     */
+    private boolean isDue(Cache.Entry entry, long now) {
+        if (entry.responseHeaders == null || entry.softTtl == Long.MAX_VALUE) {
+            return false;
+        }
+        long lifetime = HttpHeaderParser.parseFreshnessLifetime(entry.responseHeaders);
+        if (lifetime <= 0) {
+            return false;
+        }
+        return now >= entry.softTtl - (long) (lifetime * mRefreshFraction);
+    }
+}
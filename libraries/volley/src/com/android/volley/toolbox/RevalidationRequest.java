@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+
+import java.util.Map;
+
+/**
+ * A low priority GET that revalidates a cache entry in the background, sending its ETag and
+ * date as validators. The response is only written to the cache: a 304 refreshes the
+ * entry's metadata and a 200 replaces it. The result delivered is whether the response was
+ * a 304.
+ */
+class RevalidationRequest extends Request<Boolean> {
+    private final String mCacheKey;
+    private final Map<String, String> mHeaders;
+    private final Listener<Boolean> mListener;
+
+    /** Size of the body received, which is 0 for a 304. */
+    private int mResponseBytes = 0;
+
+    /**
+     * @param url URL the entry was fetched from
+     * @param cacheKey Cache key of the entry, which may differ from the URL
+     * @param headers Headers of the request the entry was fetched with
+     * @param entry The cached entry, whose validators are sent
+     * @param listener Listener to receive whether the response was a 304, or null
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    RevalidationRequest(String url, String cacheKey, Map<String, String> headers,
+            Cache.Entry entry, Listener<Boolean> listener, ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        mCacheKey = cacheKey;
+        mHeaders = headers;
+        mListener = listener;
+        setCacheEntry(entry);
+        // The entry to revalidate is already known; don't read it again.
+        setCachePolicy(CachePolicy.NETWORK_ONLY);
+    }
+
+    @Override
+    public String getCacheKey() {
+        return mCacheKey;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return Priority.LOW;
+    }
+
+    /** A 304 is parsed from its status and headers only. */
+    @Override
+    public boolean needsCachedDataOnNotModified() {
+        return false;
+    }
+
+    /** Returns the size of the body received, which is 0 for a 304. */
+    int getResponseBytes() {
+        return mResponseBytes;
+    }
+
+    @Override
+    protected Response<Boolean> parseNetworkResponse(NetworkResponse response) {
+        if (!response.notModified && response.data != null) {
+            mResponseBytes = response.data.length;
+        }
+        return Response.success(response.notModified, HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    @Override
+    protected void deliverResponse(Boolean notModified) {
+        if (mListener != null) {
+            mListener.onResponse(notModified);
+        }
+    }
+}
@@ -0,0 +1,1148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.volley.Cache;
+import com.android.volley.CacheMetrics;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link Cache} that appends entries to a few large segment files rather than writing a
+ * file per entry, for caches holding thousands of small entries such as avatars and API
+ * responses.
+ *
+ * <p>Each record in a segment is an entry in {@link DiskBasedCache}'s current file format:
+ * the header, including the key and a CRC32 of the data, followed by the data. An in-memory
+ * index maps key hashes to record locations, so a hit is a single read at a known offset and
+ * no file is opened, created or listed. Replaced, removed and evicted records are marked dead
+ * in place. Once at most half of a full segment is live, its live records are copied to the
+ * end of the current segment in the background and its file is deleted, so disk usage may
+ * exceed the maximum size by the dead records waiting for that.</p>
+ *
+ * <p>The index is saved in the background after changes, along with the length of each
+ * segment it covers; {@link #initialize()} loads it and only scans the records appended since.
+ * Without a valid saved index all segments are scanned.</p>
+ *
+ * <p>This class is safe for concurrent use. Reads proceed in parallel, while appends, metadata
+ * updates and the copying of records are serialized. Segment files are only closed while no
+ * other I/O is in progress. The cache's monitor only guards the in-memory state and is never
+ * held across I/O.</p>
+ */
+public class SegmentedDiskCache implements Cache {
+
+    /** Default maximum disk usage in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** Bounds of the default segment size, which is an eighth of the maximum size. */
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** Eviction frees space down to this fraction of the maximum size. */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /** Full segments with at most this fraction of live bytes are compacted. */
+    private static final float COMPACTION_THRESHOLD = 0.5f;
+
+    /** How long after a change the background compaction and index save run. */
+    private static final long MAINTENANCE_DELAY_MS = 2000;
+
+    /** Replaces the magic number of records that are no longer live. */
+    private static final int DEAD_RECORD_MAGIC = 0xdeadcafe;
+
+    /** Magic number of the saved index. */
+    private static final int INDEX_MAGIC = 0x20141220;
+
+    /** Offset of the data length within a record's fixed-size header region. */
+    private static final int DATA_LENGTH_OFFSET = 32;
+
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** The root directory to use for the cache. */
+    private final File mRootDirectory;
+
+    /** The maximum total size of the live records in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** The size at which a new segment is started. */
+    private final int mSegmentSize;
+
+    /**
+     * Held for reading during segment I/O, and for writing while segments are opened by
+     * {@link #initialize()} or closed. Taken before {@link #mAppendLock}.
+     */
+    private final ReadWriteLock mSegmentLock = new ReentrantReadWriteLock();
+
+    /** Serializes appends and metadata updates. Taken before this. */
+    private final Object mAppendLock = new Object();
+
+    /** Serializes compaction and saving the index. */
+    private final Object mMaintenanceLock = new Object();
+
+    /** Open segments by ID, in the order they were started. Guarded by this. */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+    /** The segment appended to, or null to start a new one. Guarded by this. */
+    private Segment mActiveSegment;
+
+    /** Guarded by this. */
+    private int mNextSegmentId = 0;
+
+    /** Locations of the live records by key hash, in LRU order. Guarded by this. */
+    private final LinkedHashMap<Long, Location> mIndex =
+            new LinkedHashMap<Long, Location>(16, .75f, true);
+
+    /** Total size of the live records. Guarded by this. */
+    private long mTotalSize = 0;
+
+    /** Whether the index changed since it was last saved. Guarded by this. */
+    private boolean mIndexDirty = false;
+
+    /** Whether a background compaction and index save is scheduled. Guarded by this. */
+    private boolean mMaintenancePending = false;
+
+    /** Number of segments deleted by compaction. Guarded by this. */
+    private int mCompactedSegmentCount = 0;
+
+    /** How long the last call to {@link #initialize()} took, in milliseconds. */
+    private long mInitializationTimeMs = 0;
+
+    /** Runs compaction and index saves; created on first use. Guarded by this. */
+    private ScheduledExecutorService mBackgroundExecutor;
+
+    /** Counts evictions and the bytes read and written. */
+    private volatile CacheMetrics mMetrics = new CacheMetrics();
+
+    private final Runnable mMaintenance = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SegmentedDiskCache.this) {
+                mMaintenancePending = false;
+            }
+            runMaintenance();
+        }
+    };
+
+    /**
+     * Constructs an instance of the SegmentedDiskCache at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param segmentSizeInBytes The size at which a new segment file is started.
+     */
+    public SegmentedDiskCache(File rootDirectory, int maxCacheSizeInBytes,
+            int segmentSizeInBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mSegmentSize = segmentSizeInBytes;
+    }
+
+    /**
+     * Constructs an instance of the SegmentedDiskCache at the specified directory, with
+     * segments of an eighth of the maximum size, between 64KB and 4MB.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public SegmentedDiskCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes,
+                Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxCacheSizeInBytes / 8)));
+    }
+
+    /**
+     * Constructs an instance of the SegmentedDiskCache at the specified directory using
+     * the default maximum cache size of 5MB.
+     * @param rootDirectory The root directory of the cache.
+     */
+    public SegmentedDiskCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * Sets the metrics to count evictions and the bytes read and written in.
+     */
+    public void setCacheMetrics(CacheMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Initializes the cache by loading the saved index and scanning the records appended
+     * after it was saved, or by scanning all segments if there is no valid saved index.
+     * Creates the root directory if necessary.
+     */
+    @Override
+    public void initialize() {
+        long startTime = SystemClock.elapsedRealtime();
+        Lock lock = mSegmentLock.writeLock();
+        lock.lock();
+        try {
+            closeSegments();
+            if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                return;
+            }
+            openSegments();
+            Map<Segment, Long> scanFrom = loadIndex();
+            if (scanFrom == null) {
+                synchronized (this) {
+                    resetIndex();
+                    scanFrom = new LinkedHashMap<Segment, Long>();
+                    for (Segment segment : mSegments.values()) {
+                        scanFrom.put(segment, 0L);
+                    }
+                }
+            }
+            for (Map.Entry<Segment, Long> segment : scanFrom.entrySet()) {
+                scanSegment(segment.getKey(), segment.getValue());
+            }
+            synchronized (this) {
+                if (!mSegments.isEmpty()) {
+                    Segment last = mSegments.lastEntry().getValue();
+                    mActiveSegment = last.length < mSegmentSize ? last : null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        lock = mSegmentLock.readLock();
+        lock.lock();
+        try {
+            evictIfNeeded(0);
+        } finally {
+            lock.unlock();
+        }
+        synchronized (this) {
+            mInitializationTimeMs = SystemClock.elapsedRealtime() - startTime;
+        }
+        scheduleMaintenance();
+    }
+
+    /**
+     * Returns how long the last call to {@link #initialize()} took, in milliseconds.
+     */
+    public synchronized long getInitializationTimeMs() {
+        return mInitializationTimeMs;
+    }
+
+    /**
+     * Returns the total size of the live records, in bytes.
+     */
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Returns the total size of the segment files, including dead records, in bytes.
+     */
+    public synchronized long getDiskUsage() {
+        long usage = 0;
+        for (Segment segment : mSegments.values()) {
+            usage += segment.length;
+        }
+        return usage;
+    }
+
+    /**
+     * Returns the number of segments deleted by compaction so far.
+     */
+    public synchronized int getCompactedSegmentCount() {
+        return mCompactedSegmentCount;
+    }
+
+    /**
+     * Returns the number of segment files.
+     */
+    // Visible for testing.
+    synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Returns the entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key) {
+        long hash = DiskBasedCache.hashKey(key);
+        Lock lock = mSegmentLock.readLock();
+        lock.lock();
+        try {
+            Location location;
+            synchronized (this) {
+                location = mIndex.get(hash);
+                if (location == null) {
+                    return null;
+                }
+                location = location.copy();
+            }
+            try {
+                ByteBuffer record = readRecord(location);
+                if (record.getInt(0) != DiskBasedCache.CACHE_MAGIC_V2) {
+                    // Marked dead after the index was saved.
+                    removeIfAt(hash, location);
+                    return null;
+                }
+                CacheHeader header = CacheHeader.decode(record);
+                if (!key.equals(header.key)) {
+                    return null;
+                }
+                if (header.headerLength + header.size != location.length) {
+                    throw new IOException("Record length mismatch");
+                }
+                byte[] data = new byte[(int) header.size];
+                record.get(data);
+                if (computeCrc(data) != header.bodyCrc) {
+                    throw new IOException("Data checksum mismatch");
+                }
+                mMetrics.recordBytesRead(location.length);
+                return header.toCacheEntry(data);
+            } catch (IOException e) {
+                VolleyLog.d("%s@%d: %s", location.segment.file.getAbsolutePath(),
+                        location.offset, e.toString());
+                removeIfAt(hash, location);
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the entry to the current segment and indexes it, marking the record it replaces
+     * dead.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        long hash = DiskBasedCache.hashKey(key);
+        byte[] data = entry.getData();
+        CacheHeader header = new CacheHeader(key, entry);
+        ByteBuffer[] buffers;
+        try {
+            buffers = new ByteBuffer[] { header.encode(), ByteBuffer.wrap(data) };
+        } catch (IOException e) {
+            VolleyLog.d("%s", e.toString());
+            return;
+        }
+        int length = header.headerLength + data.length;
+        Lock lock = mSegmentLock.readLock();
+        lock.lock();
+        try {
+            evictIfNeeded(length);
+            Location replaced;
+            try {
+                synchronized (mAppendLock) {
+                    Location location = append(buffers, length);
+                    synchronized (this) {
+                        replaced = putInIndex(hash, location);
+                    }
+                }
+            } catch (IOException e) {
+                VolleyLog.d("%s: %s", mRootDirectory.getAbsolutePath(), e.toString());
+                synchronized (this) {
+                    replaced = removeFromIndex(hash);
+                }
+            }
+            markDead(replaced);
+        } finally {
+            lock.unlock();
+        }
+        scheduleMaintenance();
+    }
+
+    /**
+     * Invalidates an entry in the cache. Only the record's metadata is rewritten.
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        updateMetadata(key, true, fullExpire, 0, 0, 0);
+    }
+
+    /**
+     * Updates the server date and TTLs of an entry, rewriting only the record's metadata.
+     */
+    @Override
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl) {
+        updateMetadata(key, false, false, serverDate, ttl, softTtl);
+    }
+
+    private void updateMetadata(String key, boolean invalidate, boolean fullExpire,
+            long serverDate, long ttl, long softTtl) {
+        long hash = DiskBasedCache.hashKey(key);
+        Lock lock = mSegmentLock.readLock();
+        lock.lock();
+        try {
+            // Under the append lock, so that compaction can't be copying the record meanwhile.
+            synchronized (mAppendLock) {
+                Location location;
+                synchronized (this) {
+                    location = mIndex.get(hash);
+                    if (location == null) {
+                        return;
+                    }
+                    location = location.copy();
+                }
+                ByteBuffer record = readRecord(location);
+                if (record.getInt(0) != DiskBasedCache.CACHE_MAGIC_V2) {
+                    return;
+                }
+                CacheHeader header = CacheHeader.decode(record);
+                if (!key.equals(header.key)) {
+                    return;
+                }
+                if (invalidate) {
+                    serverDate = header.serverDate;
+                    ttl = fullExpire ? 0 : header.ttl;
+                    softTtl = 0;
+                }
+                ByteBuffer metadata = ByteBuffer.allocate(DiskBasedCache.METADATA_LENGTH)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                metadata.putLong(serverDate).putLong(ttl).putLong(softTtl).flip();
+                writeFully(location.segment.channel, metadata,
+                        location.offset + DiskBasedCache.METADATA_OFFSET);
+                mMetrics.recordBytesWritten(DiskBasedCache.METADATA_LENGTH);
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", key, e.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public void remove(String key) {
+        long hash = DiskBasedCache.hashKey(key);
+        Lock lock = mSegmentLock.readLock();
+        lock.lock();
+        try {
+            Location removed;
+            synchronized (this) {
+                removed = removeFromIndex(hash);
+            }
+            markDead(removed);
+        } finally {
+            lock.unlock();
+        }
+        scheduleMaintenance();
+    }
+
+    /**
+     * Clears the cache. Deletes all segment files and the saved index.
+     */
+    @Override
+    public void clear() {
+        Lock lock = mSegmentLock.writeLock();
+        lock.lock();
+        try {
+            closeSegments();
+            File[] files = mRootDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            synchronized (this) {
+                mNextSegmentId = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Compacts full segments in which at most half of the bytes are live, deleting them, and
+     * saves the index if it changed. Runs in the background a short while after changes.
+     */
+    // Visible for testing.
+    void runMaintenance() {
+        synchronized (mMaintenanceLock) {
+            Segment segment;
+            while ((segment = nextSegmentToCompact()) != null) {
+                if (!compact(segment)) {
+                    break;
+                }
+            }
+            saveIndex();
+        }
+    }
+
+    /**
+     * Returns the first full segment with at most half of its bytes live, or null.
+     */
+    private synchronized Segment nextSegmentToCompact() {
+        for (Segment segment : mSegments.values()) {
+            if (segment != mActiveSegment
+                    && segment.liveBytes <= segment.length * COMPACTION_THRESHOLD) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the live records of a segment to the current one and deletes the segment.
+     * @return false if the segment could not be deleted because records are still live in it
+     */
+    private boolean compact(Segment segment) {
+        List<Long> hashes = new ArrayList<Long>();
+        List<Location> locations = new ArrayList<Location>();
+        synchronized (this) {
+            for (Map.Entry<Long, Location> entry : mIndex.entrySet()) {
+                if (entry.getValue().segment == segment) {
+                    hashes.add(entry.getKey());
+                    locations.add(entry.getValue());
+                }
+            }
+        }
+
+        Lock lock = mSegmentLock.readLock();
+        lock.lock();
+        try {
+            for (int i = 0; i < locations.size(); i++) {
+                Location location = locations.get(i);
+                Location copy = null;
+                synchronized (mAppendLock) {
+                    Location source;
+                    synchronized (this) {
+                        if (!location.indexed || location.segment != segment) {
+                            // Replaced or removed since.
+                            continue;
+                        }
+                        source = location.copy();
+                    }
+                    try {
+                        ByteBuffer record = readRecord(source);
+                        mMetrics.recordBytesRead(source.length);
+                        if (record.getInt(0) == DiskBasedCache.CACHE_MAGIC_V2) {
+                            copy = append(new ByteBuffer[] { record }, source.length);
+                        }
+                    } catch (IOException e) {
+                        VolleyLog.d("%s@%d: %s", segment.file.getAbsolutePath(),
+                                source.offset, e.toString());
+                        return false;
+                    }
+                    // The record is only moved while holding the append lock, so the
+                    // location can't have changed since it was copied.
+                    synchronized (this) {
+                        if (copy == null) {
+                            removeIfAt(hashes.get(i), source);
+                        } else {
+                            moveInIndex(location, copy);
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        lock = mSegmentLock.writeLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                if (segment.liveBytes > 0 || mSegments.get(segment.id) != segment) {
+                    return false;
+                }
+                mSegments.remove(segment.id);
+                mCompactedSegmentCount++;
+                mIndexDirty = true;
+            }
+            segment.close();
+            if (!segment.file.delete()) {
+                VolleyLog.d("Could not delete segment %s", segment.file.getAbsolutePath());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Appends a record to the current segment, starting a new segment if it would grow past
+     * the segment size. The caller must hold {@link #mAppendLock} and a segment lock.
+     */
+    private Location append(ByteBuffer[] buffers, int length) throws IOException {
+        Segment segment;
+        synchronized (this) {
+            segment = mActiveSegment;
+        }
+        if (segment == null || (segment.length > 0 && segment.length + length > mSegmentSize)) {
+            segment = startSegment();
+        }
+        long offset = segment.length;
+        FileChannel channel = segment.channel;
+        // Only appends use the channel's position; reads are positional.
+        channel.position(offset);
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+        synchronized (this) {
+            segment.length = offset + length;
+        }
+        mMetrics.recordBytesWritten(length);
+        return new Location(segment, offset, length);
+    }
+
+    /**
+     * Creates a new segment file and makes it the current segment. The caller must hold
+     * {@link #mAppendLock} and a segment lock.
+     */
+    private Segment startSegment() throws IOException {
+        int id;
+        synchronized (this) {
+            id = mNextSegmentId++;
+        }
+        Segment segment = new Segment(id, new File(mRootDirectory, SEGMENT_FILE_PREFIX + id));
+        segment.channel.truncate(0);
+        synchronized (this) {
+            mSegments.put(id, segment);
+            mActiveSegment = segment;
+            mIndexDirty = true;
+        }
+        return segment;
+    }
+
+    /**
+     * Evicts the least recently used entries if the cache would exceed its maximum size with
+     * the given number of bytes added. The caller must hold a segment lock.
+     */
+    private void evictIfNeeded(int neededSpace) {
+        List<Location> evicted = new ArrayList<Location>();
+        synchronized (this) {
+            if (mTotalSize + neededSpace <= mMaxCacheSizeInBytes) {
+                return;
+            }
+            long before = mTotalSize;
+            Iterator<Location> it = mIndex.values().iterator();
+            while (it.hasNext()
+                    && mTotalSize + neededSpace > mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                Location location = it.next();
+                it.remove();
+                detach(location);
+                evicted.add(location);
+            }
+            VolleyLog.v("pruned %d files, %d bytes", evicted.size(), before - mTotalSize);
+        }
+        for (Location location : evicted) {
+            markDead(location);
+        }
+        mMetrics.recordEvictions(evicted.size());
+    }
+
+    /**
+     * Indexes a record, returning the location of the record it replaces, if any.
+     */
+    private Location putInIndex(long hash, Location location) {
+        location.indexed = true;
+        location.segment.liveBytes += location.length;
+        mTotalSize += location.length;
+        mIndexDirty = true;
+        Location replaced = mIndex.put(hash, location);
+        if (replaced != null) {
+            detach(replaced);
+        }
+        return replaced;
+    }
+
+    /**
+     * Points an indexed location at a copy of its record, keeping its place in LRU order.
+     */
+    private void moveInIndex(Location location, Location copy) {
+        location.segment.liveBytes -= location.length;
+        copy.segment.liveBytes += location.length;
+        location.segment = copy.segment;
+        location.offset = copy.offset;
+        mIndexDirty = true;
+    }
+
+    /**
+     * Removes a hash from the index, returning the location of its record, if any.
+     */
+    private Location removeFromIndex(long hash) {
+        Location removed = mIndex.remove(hash);
+        if (removed != null) {
+            detach(removed);
+            mIndexDirty = true;
+        }
+        return removed;
+    }
+
+    /**
+     * Removes a hash from the index if its record is still at the given location, after it
+     * was found to be dead or unreadable.
+     */
+    private synchronized void removeIfAt(long hash, Location location) {
+        Location indexed = mIndex.get(hash);
+        if (indexed != null && indexed.segment == location.segment
+                && indexed.offset == location.offset) {
+            removeFromIndex(hash);
+        }
+    }
+
+    /**
+     * Accounts for a location leaving the index. Once detached, a location no longer changes.
+     */
+    private void detach(Location location) {
+        location.indexed = false;
+        location.segment.liveBytes -= location.length;
+        mTotalSize -= location.length;
+    }
+
+    /**
+     * Marks a record dead, so that it is skipped when its segment is scanned. Does nothing for
+     * a null location. The caller must hold a segment lock.
+     */
+    private void markDead(Location location) {
+        if (location == null) {
+            return;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        magic.putInt(DEAD_RECORD_MAGIC).flip();
+        try {
+            writeFully(location.segment.channel, magic, location.offset);
+        } catch (IOException e) {
+            VolleyLog.d("%s@%d: %s", location.segment.file.getAbsolutePath(),
+                    location.offset, e.toString());
+        }
+    }
+
+    /**
+     * Reads a whole record. The caller must hold a segment lock.
+     */
+    private static ByteBuffer readRecord(Location location) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(location.length).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel channel = location.segment.channel;
+        while (record.hasRemaining()) {
+            if (channel.read(record, location.offset + record.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+        record.flip();
+        return record;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Opens the segment files in the root directory and deletes leftover temporary files.
+     * The caller must hold the segment write lock.
+     */
+    private void openSegments() {
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_FILE_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            if (!name.startsWith(SEGMENT_FILE_PREFIX)) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX.length()));
+                Segment segment = new Segment(id, file);
+                synchronized (this) {
+                    mSegments.put(id, segment);
+                    mNextSegmentId = Math.max(mNextSegmentId, id + 1);
+                }
+            } catch (NumberFormatException e) {
+                VolleyLog.d("Unexpected file %s", file.getAbsolutePath());
+            } catch (IOException e) {
+                VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Closes all segments and resets the in-memory state. The caller must hold the segment
+     * write lock.
+     */
+    private void closeSegments() {
+        List<Segment> segments;
+        synchronized (this) {
+            segments = new ArrayList<Segment>(mSegments.values());
+            mSegments.clear();
+            mActiveSegment = null;
+            resetIndex();
+            mIndexDirty = false;
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private void resetIndex() {
+        for (Location location : mIndex.values()) {
+            location.indexed = false;
+        }
+        mIndex.clear();
+        mTotalSize = 0;
+        for (Segment segment : mSegments.values()) {
+            segment.liveBytes = 0;
+        }
+    }
+
+    /**
+     * Reads the records of a segment from the given offset, indexing the live ones. A record
+     * that is incomplete or unreadable ends the segment, which is truncated before it. The
+     * caller must hold the segment write lock.
+     */
+    private void scanSegment(Segment segment, long offset) {
+        try {
+            FileChannel channel = segment.channel;
+            long size = channel.size();
+            channel.position(offset);
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024);
+            byte[] fixed = new byte[DiskBasedCache.FIXED_HEADER_SIZE];
+            while (offset + fixed.length <= size) {
+                readFully(in, fixed, 0, fixed.length);
+                ByteBuffer buffer = ByteBuffer.wrap(fixed).order(ByteOrder.LITTLE_ENDIAN);
+                int magic = buffer.getInt(0);
+                int headerLength = buffer.getInt(4);
+                int dataLength = buffer.getInt(DATA_LENGTH_OFFSET);
+                if ((magic != DiskBasedCache.CACHE_MAGIC_V2 && magic != DEAD_RECORD_MAGIC)
+                        || headerLength < fixed.length || dataLength < 0
+                        || offset + headerLength + dataLength > size) {
+                    break;
+                }
+                int length = headerLength + dataLength;
+                if (magic == DEAD_RECORD_MAGIC) {
+                    skipFully(in, length - fixed.length);
+                } else {
+                    byte[] header = new byte[headerLength];
+                    System.arraycopy(fixed, 0, header, 0, fixed.length);
+                    readFully(in, header, fixed.length, headerLength - fixed.length);
+                    skipFully(in, dataLength);
+                    String key = CacheHeader.decode(
+                            ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN)).key;
+                    Location replaced;
+                    synchronized (this) {
+                        replaced = putInIndex(DiskBasedCache.hashKey(key),
+                                new Location(segment, offset, length));
+                    }
+                    markDead(replaced);
+                }
+                offset += length;
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s@%d: %s", segment.file.getAbsolutePath(), offset, e.toString());
+        }
+        try {
+            if (segment.channel.size() > offset) {
+                VolleyLog.d("Truncating %s at %d", segment.file.getAbsolutePath(), offset);
+                segment.channel.truncate(offset);
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", segment.file.getAbsolutePath(), e.toString());
+        }
+        synchronized (this) {
+            segment.length = offset;
+        }
+    }
+
+    /**
+     * Loads the saved index. Segments it covers are only to be scanned from the length they
+     * had when it was saved, and segments started since from the start.
+     * @return the offset to scan each segment from, or null if there is no valid saved index
+     */
+    private Map<Segment, Long> loadIndex() {
+        File file = new File(mRootDirectory, INDEX_FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                readFully(fis, bytes, 0, bytes.length);
+            } finally {
+                fis.close();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            if (buffer.getInt() != INDEX_MAGIC
+                    || buffer.getInt(bytes.length - 4) != (int) crc.getValue()) {
+                throw new IOException("Corrupt index");
+            }
+            synchronized (this) {
+                Map<Segment, Long> scanFrom = new LinkedHashMap<Segment, Long>();
+                int segmentCount = buffer.getInt();
+                int lastId = -1;
+                for (int i = 0; i < segmentCount; i++) {
+                    Segment segment = mSegments.get(buffer.getInt());
+                    long length = buffer.getLong();
+                    if (segment == null || segment.channel.size() < length) {
+                        throw new IOException("Segment missing or truncated");
+                    }
+                    segment.length = length;
+                    scanFrom.put(segment, length);
+                    lastId = Math.max(lastId, segment.id);
+                }
+                for (Segment segment : mSegments.values()) {
+                    if (!scanFrom.containsKey(segment)) {
+                        if (segment.id < lastId) {
+                            throw new IOException("Segment not in index");
+                        }
+                        scanFrom.put(segment, 0L);
+                    }
+                }
+                int entryCount = buffer.getInt();
+                for (int i = 0; i < entryCount; i++) {
+                    long hash = buffer.getLong();
+                    Segment segment = mSegments.get(buffer.getInt());
+                    long offset = buffer.getInt() & 0xffffffffL;
+                    int length = buffer.getInt();
+                    if (segment == null || offset + length > segment.length) {
+                        throw new IOException("Corrupt index");
+                    }
+                    putInIndex(hash, new Location(segment, offset, length));
+                }
+                mIndexDirty = false;
+                return scanFrom;
+            }
+        } catch (Exception e) {
+            // Also catches running off the end of the buffer.
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            synchronized (this) {
+                resetIndex();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Saves the index and the segment lengths it covers, if it changed since it was last
+     * saved. The file is written under a temporary name and renamed into place.
+     */
+    private void saveIndex() {
+        ByteBuffer buffer;
+        Lock lock = mSegmentLock.readLock();
+        lock.lock();
+        try {
+            // Under the append lock, so that every appended record is indexed.
+            synchronized (mAppendLock) {
+                synchronized (this) {
+                    if (!mIndexDirty) {
+                        return;
+                    }
+                    mIndexDirty = false;
+                    buffer = ByteBuffer.allocate(16 + mSegments.size() * 12 + mIndex.size() * 20)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    buffer.putInt(INDEX_MAGIC);
+                    buffer.putInt(mSegments.size());
+                    for (Segment segment : mSegments.values()) {
+                        buffer.putInt(segment.id);
+                        buffer.putLong(segment.length);
+                    }
+                    buffer.putInt(mIndex.size());
+                    for (Map.Entry<Long, Location> entry : mIndex.entrySet()) {
+                        Location location = entry.getValue();
+                        buffer.putLong(entry.getKey());
+                        buffer.putInt(location.segment.id);
+                        buffer.putInt((int) location.offset);
+                        buffer.putInt(location.length);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        File file = new File(mRootDirectory, INDEX_FILE_NAME);
+        File tempFile = new File(mRootDirectory, INDEX_FILE_NAME + TEMP_FILE_SUFFIX);
+        try {
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                fos.write(buffer.array(), 0, buffer.position());
+            } finally {
+                fos.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            tempFile.delete();
+            synchronized (this) {
+                mIndexDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Schedules compaction and saving the index in the background, unless already scheduled.
+     */
+    private synchronized void scheduleMaintenance() {
+        if (mMaintenancePending) {
+            return;
+        }
+        mMaintenancePending = true;
+        if (mBackgroundExecutor == null) {
+            mBackgroundExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "SegmentedDiskCache");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        mBackgroundExecutor.schedule(mMaintenance, MAINTENANCE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static int computeCrc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int count = in.read(bytes, offset, length);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * An open segment file.
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+
+        /** Length of the records in the file. Guarded by the cache. */
+        long length = 0;
+
+        /** Total size of the indexed records in the file. Guarded by the cache. */
+        long liveBytes = 0;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            }
+        }
+    }
+
+    /**
+     * Where a record is. Indexed locations are only changed, by compaction, while holding
+     * the append lock and the cache's monitor.
+     */
+    private static class Location {
+        Segment segment;
+        long offset;
+        final int length;
+
+        /** Whether this location is in the index. Guarded by the cache. */
+        boolean indexed = false;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Returns a detached copy, to use outside the cache's monitor. */
+        Location copy() {
+            return new Location(segment, offset, length);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link EvictionPolicy} that keeps frequently used entries through bursts of entries
+ * that are only used once, such as the images of a long feed scrolled through once.
+ *
+ * <p>This is Window TinyLFU. New entries enter a small LRU window. Entries leaving the window
+ * are only admitted to the main area if they have been seen more often than the entry they
+ * would displace, according to a {@link FrequencySketch} that also remembers entries no
+ * longer in the cache; the loser of each comparison is queued for eviction. The main area is
+ * a segmented LRU: entries read while on probation are promoted to a protected segment, and
+ * the least recently used protected entries are demoted back to probation.</p>
+ *
+ * <p>Sizes are in bytes, like the cache's, so the policy should be given the same maximum
+ * size as the cache it is used with.</p>
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    /** Fraction of the maximum size given to the admission window. */
+    private static final float WINDOW_FRACTION = 0.01f;
+
+    /** Fraction of the main area given to the protected segment. */
+    private static final float PROTECTED_FRACTION = 0.8f;
+
+    /** Average entry size assumed when sizing the frequency sketch. */
+    private static final int DEFAULT_AVERAGE_ENTRY_SIZE = 4 * 1024;
+
+    private final FrequencySketch mSketch;
+
+    private final long mMaxWindowBytes;
+    private final long mMaxMainBytes;
+    private final long mMaxProtectedBytes;
+
+    /** The segments, each mapping hash to size, in LRU order. */
+    private final Map<Long, Integer> mWindow = new LinkedHashMap<Long, Integer>(16, .75f, true);
+    private final Map<Long, Integer> mProbation =
+            new LinkedHashMap<Long, Integer>(16, .75f, true);
+    private final Map<Long, Integer> mProtected =
+            new LinkedHashMap<Long, Integer>(16, .75f, true);
+
+    /** Entries that lost admission, in the order they are to be evicted. */
+    private final Map<Long, Integer> mRejected = new LinkedHashMap<Long, Integer>();
+
+    private long mWindowBytes = 0;
+    private long mProbationBytes = 0;
+    private long mProtectedBytes = 0;
+
+    /**
+     * Creates a policy for a cache of the given size.
+     * @param maxSizeInBytes The maximum size of the cache
+     * @param expectedEntries The number of entries the cache is expected to hold when full
+     */
+    public TinyLfuEvictionPolicy(long maxSizeInBytes, int expectedEntries) {
+        mSketch = new FrequencySketch(expectedEntries);
+        mMaxWindowBytes = Math.max(1, (long) (maxSizeInBytes * WINDOW_FRACTION));
+        mMaxMainBytes = maxSizeInBytes - mMaxWindowBytes;
+        mMaxProtectedBytes = (long) (mMaxMainBytes * PROTECTED_FRACTION);
+    }
+
+    /**
+     * Creates a policy for a cache of the given size, assuming entries of 4KB on average.
+     * @param maxSizeInBytes The maximum size of the cache
+     */
+    public TinyLfuEvictionPolicy(long maxSizeInBytes) {
+        this(maxSizeInBytes, (int) Math.min(Integer.MAX_VALUE,
+                maxSizeInBytes / DEFAULT_AVERAGE_ENTRY_SIZE));
+    }
+
+    @Override
+    public void onWrite(long hash, int size) {
+        mSketch.increment(hash);
+        Long key = hash;
+        // A rewritten entry keeps its place, unless it was rejected; new data gets a new chance.
+        if (mWindow.containsKey(key)) {
+            mWindowBytes += size - mWindow.put(key, size);
+        } else if (mProbation.containsKey(key)) {
+            mProbationBytes += size - mProbation.put(key, size);
+        } else if (mProtected.containsKey(key)) {
+            mProtectedBytes += size - mProtected.put(key, size);
+        } else {
+            mRejected.remove(key);
+            mWindow.put(key, size);
+            mWindowBytes += size;
+        }
+        evictFromWindow();
+    }
+
+    @Override
+    public void onAccess(long hash) {
+        mSketch.increment(hash);
+        Long key = hash;
+        if (mWindow.get(key) != null || mProtected.get(key) != null) {
+            // Moved to the most recently used end by get().
+            return;
+        }
+        Integer size = mProbation.remove(key);
+        if (size != null) {
+            mProbationBytes -= size;
+            mProtected.put(key, size);
+            mProtectedBytes += size;
+            demoteFromProtected();
+            return;
+        }
+        size = mRejected.remove(key);
+        if (size != null) {
+            // Read before it was evicted; start over in the window.
+            mWindow.put(key, size);
+            mWindowBytes += size;
+            evictFromWindow();
+        }
+    }
+
+    @Override
+    public void onRemove(long hash) {
+        Long key = hash;
+        Integer size;
+        if ((size = mWindow.remove(key)) != null) {
+            mWindowBytes -= size;
+        } else if ((size = mProbation.remove(key)) != null) {
+            mProbationBytes -= size;
+        } else if ((size = mProtected.remove(key)) != null) {
+            mProtectedBytes -= size;
+        } else {
+            mRejected.remove(key);
+        }
+    }
+
+    /**
+     * Returns the entry that most recently lost admission, or else the least recently used
+     * entry on probation, in the window or protected, in that order.
+     */
+    @Override
+    public long nextVictim() {
+        Long hash = first(mRejected);
+        if (hash == null) {
+            hash = first(mProbation);
+        }
+        if (hash == null) {
+            hash = first(mWindow);
+        }
+        if (hash == null) {
+            hash = first(mProtected);
+        }
+        return hash == null ? 0 : hash;
+    }
+
+    @Override
+    public void clear() {
+        mSketch.clear();
+        mWindow.clear();
+        mProbation.clear();
+        mProtected.clear();
+        mRejected.clear();
+        mWindowBytes = 0;
+        mProbationBytes = 0;
+        mProtectedBytes = 0;
+    }
+
+    /**
+     * Moves entries out of the window while it is over its size, admitting each to probation
+     * or rejecting it.
+     */
+    private void evictFromWindow() {
+        while (mWindowBytes > mMaxWindowBytes && mWindow.size() > 1) {
+            Iterator<Map.Entry<Long, Integer>> it = mWindow.entrySet().iterator();
+            Map.Entry<Long, Integer> candidate = it.next();
+            Long key = candidate.getKey();
+            int size = candidate.getValue();
+            it.remove();
+            mWindowBytes -= size;
+            admit(key, size);
+        }
+    }
+
+    /**
+     * Admits a candidate from the window to probation if there is room, or if it is used more
+     * often than the entry it displaces. Whichever loses is queued for eviction.
+     */
+    private void admit(Long candidate, int size) {
+        if (mProbationBytes + mProtectedBytes + size > mMaxMainBytes) {
+            if (mProbation.isEmpty()) {
+                demote(first(mProtected));
+            }
+            Long victim = first(mProbation);
+            if (victim != null) {
+                if (mSketch.frequency(candidate) <= mSketch.frequency(victim)) {
+                    mRejected.put(candidate, size);
+                    return;
+                }
+                int victimSize = mProbation.remove(victim);
+                mProbationBytes -= victimSize;
+                mRejected.put(victim, victimSize);
+            }
+        }
+        mProbation.put(candidate, size);
+        mProbationBytes += size;
+    }
+
+    /** Demotes the least recently used protected entries while the segment is over its size. */
+    private void demoteFromProtected() {
+        while (mProtectedBytes > mMaxProtectedBytes && mProtected.size() > 1) {
+            demote(first(mProtected));
+        }
+    }
+
+    private void demote(Long key) {
+        if (key == null) {
+            return;
+        }
+        int size = mProtected.remove(key);
+        mProtectedBytes -= size;
+        mProbation.put(key, size);
+        mProbationBytes += size;
+    }
+
+    private static Long first(Map<Long, Integer> segment) {
+        return segment.isEmpty() ? null : segment.keySet().iterator().next();
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Cache} that keeps recently used entries in memory in front of another cache,
+ * typically a {@link DiskBasedCache}.
+ *
+ * <p>Puts are written through to both tiers. Entries read from the second tier are promoted
+ * to memory. The memory tier is bounded by the total size of the entries' data and evicts
+ * the least recently used ones. Which entries it holds is decided by a {@link TierFilter};
+ * the default one keeps entries of up to 64KB that are not images, so that API responses
+ * re-read within seconds are served from memory while images are left to the image cache.</p>
+ */
+public class TwoTierCache implements Cache {
+
+    /** Default maximum size of the memory tier in bytes. */
+    private static final int DEFAULT_MEMORY_BYTES = 512 * 1024;
+
+    /** Largest entry kept in memory by {@link #DEFAULT_FILTER}. */
+    private static final int DEFAULT_MAX_ENTRY_BYTES = 64 * 1024;
+
+    /**
+     * Decides which entries are kept in the memory tier. The cache only sees keys and
+     * entries, so filters tell kinds of requests apart by their cache key or by the entry's
+     * response headers, such as Content-Type.
+     */
+    public interface TierFilter {
+        /**
+         * @return true to keep the entry in the memory tier
+         */
+        public boolean useMemoryTier(String key, Entry entry);
+    }
+
+    /**
+     * Keeps entries of up to 64KB whose Content-Type is not an image. Entries whose data has
+     * not been loaded yet are accepted until it is.
+     */
+    public static final TierFilter DEFAULT_FILTER = new TierFilter() {
+        @Override
+        public boolean useMemoryTier(String key, Entry entry) {
+            for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                if (header.getKey().equalsIgnoreCase("Content-Type")
+                        && header.getValue().startsWith("image/")) {
+                    return false;
+                }
+            }
+            return entry.data == null || entry.data.length <= DEFAULT_MAX_ENTRY_BYTES;
+        }
+    };
+
+    /** The second tier. */
+    private final Cache mCache;
+
+    private final int mMaxMemoryBytes;
+
+    private TierFilter mFilter = DEFAULT_FILTER;
+
+    /** The memory tier, in LRU order. Entries hold their data. Guarded by this. */
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, .75f, true);
+
+    /** Total data bytes of the memory tier. Guarded by this. */
+    private long mMemoryBytes = 0;
+
+    /**
+     * Incremented by every change, so that an entry read from the second tier is not promoted
+     * if the key was written or removed meanwhile. Guarded by this.
+     */
+    private long mModificationCount = 0;
+
+    private long mMemoryHitCount = 0;
+    private long mDiskHitCount = 0;
+    private long mMissCount = 0;
+
+    /**
+     * Constructs an instance of the TwoTierCache.
+     * @param cache The second tier, which all entries are written to
+     * @param maxMemoryBytes The maximum total data size of the entries held in memory
+     */
+    public TwoTierCache(Cache cache, int maxMemoryBytes) {
+        mCache = cache;
+        mMaxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Constructs an instance of the TwoTierCache with a memory tier of 512KB.
+     * @param cache The second tier, which all entries are written to
+     */
+    public TwoTierCache(Cache cache) {
+        this(cache, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Sets the filter deciding which entries are kept in memory. Entries already in memory
+     * are not re-examined.
+     */
+    public synchronized void setTierFilter(TierFilter filter) {
+        mFilter = filter;
+    }
+
+    @Override
+    public void initialize() {
+        mCache.initialize();
+    }
+
+    @Override
+    public Entry get(String key) {
+        long modificationCount;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                mMemoryHitCount++;
+                return copyOf(entry);
+            }
+            modificationCount = mModificationCount;
+        }
+
+        Entry entry = mCache.get(key);
+        synchronized (this) {
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            mDiskHitCount++;
+            if (modificationCount != mModificationCount || !mFilter.useMemoryTier(key, entry)
+                    || entry.getDataBuffer() != null) {
+                // Changed meanwhile, not wanted, or too large to have been read onto the heap.
+                return entry;
+            }
+        }
+        // Load the data outside the lock; callers of a hit usually need it anyway. The filter
+        // is asked again now that it can see the data.
+        byte[] data = entry.getData();
+        if (data != null) {
+            synchronized (this) {
+                if (modificationCount == mModificationCount
+                        && mFilter.useMemoryTier(key, entry)) {
+                    putInMemory(key, entry);
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the entry to the second tier, and keeps it in memory if the filter accepts it.
+     * The memory copy is dropped before the write and only replaced if nothing changed
+     * meanwhile, so that concurrent puts can't leave the tiers holding different entries.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        long modificationCount;
+        synchronized (this) {
+            modificationCount = ++mModificationCount;
+            removeFromMemory(key);
+        }
+        mCache.put(key, entry);
+        synchronized (this) {
+            if (modificationCount == mModificationCount && mFilter.useMemoryTier(key, entry)
+                    && entry.getData() != null) {
+                putInMemory(key, entry);
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (this) {
+            mModificationCount++;
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                entry = copyOf(entry);
+                entry.softTtl = 0;
+                entry.staleIfErrorTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                mEntries.put(key, entry);
+            }
+        }
+        mCache.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl) {
+        synchronized (this) {
+            mModificationCount++;
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                entry = copyOf(entry);
+                entry.serverDate = serverDate;
+                entry.ttl = ttl;
+                entry.softTtl = softTtl;
+                entry.staleIfErrorTtl =
+                        softTtl + HttpHeaderParser.parseStaleIfError(entry.responseHeaders);
+                mEntries.put(key, entry);
+            }
+        }
+        mCache.updateMetadata(key, serverDate, ttl, softTtl);
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (this) {
+            mModificationCount++;
+            removeFromMemory(key);
+        }
+        mCache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (this) {
+            mModificationCount++;
+            mEntries.clear();
+            mMemoryBytes = 0;
+        }
+        mCache.clear();
+    }
+
+    /** Returns the number of reads served from the memory tier. */
+    public synchronized long getMemoryHitCount() {
+        return mMemoryHitCount;
+    }
+
+    /** Returns the number of reads served from the second tier. */
+    public synchronized long getDiskHitCount() {
+        return mDiskHitCount;
+    }
+
+    /** Returns the number of reads that found no entry in either tier. */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /** Returns the total data size of the entries held in memory. */
+    public synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    /**
+     * Adds a copy of the entry to the memory tier and evicts the least recently used entries
+     * to make room. Entries larger than the whole tier are not kept.
+     */
+    private void putInMemory(String key, Entry entry) {
+        int size = entry.getData().length;
+        if (size > mMaxMemoryBytes) {
+            return;
+        }
+        removeFromMemory(key);
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mMemoryBytes + size > mMaxMemoryBytes && it.hasNext()) {
+            mMemoryBytes -= it.next().data.length;
+            it.remove();
+        }
+        mEntries.put(key, copyOf(entry));
+        mMemoryBytes += size;
+    }
+
+    private void removeFromMemory(String key) {
+        Entry removed = mEntries.remove(key);
+        if (removed != null) {
+            mMemoryBytes -= removed.data.length;
+        }
+    }
+
+    /**
+     * Returns a copy of the entry, so that entries in memory can't be changed by callers.
+     * The data is shared; it is not expected to be modified.
+     */
+    private static Entry copyOf(Entry entry) {
+        Entry copy = new Entry();
+        copy.data = entry.getData();
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.staleIfErrorTtl = entry.staleIfErrorTtl;
+        copy.responseHeaders = new HashMap<String, String>(entry.responseHeaders);
+        return copy;
+    }
+}
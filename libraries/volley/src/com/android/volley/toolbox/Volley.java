@@ -62,7 +62,9 @@ public class Volley {
 
         Network network = new BasicNetwork(stack);
 
-        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir), network);
+        DiskBasedCache cache = new DiskBasedCache(cacheDir);
+        RequestQueue queue = new RequestQueue(cache, network);
+        cache.setCacheMetrics(queue.getCacheMetrics());
         queue.start();
 
         return queue;
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+
+import com.android.volley.Cache;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyLog;
+
+import java.io.Flushable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Cache} that hands puts to a dedicated writer thread instead of writing them to the
+ * wrapped cache on the caller's thread, so network dispatchers can deliver responses without
+ * waiting for the disk.
+ *
+ * <p>Pending entries are held in memory until written, up to a budget of data bytes; puts
+ * block while the budget is exhausted. A put for a key that is still pending replaces the
+ * pending entry, so only the latest one is written. Reads and other operations on a pending
+ * key see the pending entry.</p>
+ *
+ * <p>Use {@link #flush()} to wait for pending entries to be written. {@link RequestQueue#stop()}
+ * does this for caches implementing {@link Flushable}.</p>
+ */
+public class WriteBehindCache implements Cache, Flushable {
+
+    /** Default budget for data bytes pending write. */
+    private static final int DEFAULT_PENDING_BYTES = 1024 * 1024;
+
+    /** The cache entries are written to. */
+    private final Cache mCache;
+
+    /** Maximum number of data bytes pending write. */
+    private final int mMaxPendingBytes;
+
+    /**
+     * Entries waiting to be written, in the order they were first put. An entry stays here
+     * while it is being written, so it can still be read, and is removed afterwards unless
+     * it was replaced meanwhile. Entries are never modified once added.
+     */
+    private final Map<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+
+    /** Total data bytes of the entries in {@link #mPending}. */
+    private long mPendingBytes = 0;
+
+    /**
+     * Held while modifying the wrapped cache, so a remove or clear can't be overtaken by a
+     * write of an entry it discarded.
+     */
+    private final Object mWriteLock = new Object();
+
+    /** The writer thread, started on the first put. */
+    private Thread mWriter;
+
+    /**
+     * Constructs an instance of the WriteBehindCache.
+     * @param cache The cache to write entries to
+     * @param maxPendingBytes The maximum number of data bytes to hold pending write
+     */
+    public WriteBehindCache(Cache cache, int maxPendingBytes) {
+        mCache = cache;
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Constructs an instance of the WriteBehindCache using the default budget of 1MB.
+     * @param cache The cache to write entries to
+     */
+    public WriteBehindCache(Cache cache) {
+        this(cache, DEFAULT_PENDING_BYTES);
+    }
+
+    @Override
+    public void initialize() {
+        mCache.initialize();
+    }
+
+    /**
+     * Returns the pending entry for the key, if any, or the entry from the wrapped cache.
+     */
+    @Override
+    public Entry get(String key) {
+        synchronized (this) {
+            Entry pending = mPending.get(key);
+            if (pending != null) {
+                return copyOf(pending);
+            }
+        }
+        return mCache.get(key);
+    }
+
+    /**
+     * Queues an entry for writing, waiting first if the pending entries already use up the
+     * budget. An entry larger than the whole budget is queued once nothing else is pending.
+     */
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        entry = copyOf(entry);
+        int size = sizeOf(entry);
+        Entry replaced = mPending.get(key);
+        long available = mMaxPendingBytes + (replaced == null ? 0 : sizeOf(replaced));
+        boolean interrupted = false;
+        while (!mPending.isEmpty() && mPendingBytes + size > available) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            replaced = mPending.get(key);
+            available = mMaxPendingBytes + (replaced == null ? 0 : sizeOf(replaced));
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        setPending(key, entry);
+        if (mWriter == null) {
+            mWriter = new WriterThread();
+            mWriter.start();
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (this) {
+            Entry pending = mPending.get(key);
+            if (pending != null) {
+                Entry entry = copyOf(pending);
+                entry.softTtl = 0;
+                entry.staleIfErrorTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                setPending(key, entry);
+                return;
+            }
+        }
+        mCache.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl) {
+        synchronized (this) {
+            Entry pending = mPending.get(key);
+            if (pending != null) {
+                Entry entry = copyOf(pending);
+                entry.serverDate = serverDate;
+                entry.ttl = ttl;
+                entry.softTtl = softTtl;
+                entry.staleIfErrorTtl =
+                        softTtl + HttpHeaderParser.parseStaleIfError(entry.responseHeaders);
+                setPending(key, entry);
+                return;
+            }
+        }
+        mCache.updateMetadata(key, serverDate, ttl, softTtl);
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                Entry pending = mPending.remove(key);
+                if (pending != null) {
+                    mPendingBytes -= sizeOf(pending);
+                    notifyAll();
+                }
+            }
+            mCache.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending.clear();
+                mPendingBytes = 0;
+                notifyAll();
+            }
+            mCache.clear();
+        }
+    }
+
+    /**
+     * Blocks until all entries put so far have been written to the wrapped cache.
+     */
+    @Override
+    public synchronized void flush() {
+        boolean interrupted = false;
+        while (!mPending.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of data bytes pending write.
+     */
+    public synchronized long getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    /** Adds or replaces a pending entry, keeping its position in the write order. */
+    private void setPending(String key, Entry entry) {
+        Entry replaced = mPending.put(key, entry);
+        if (replaced != null) {
+            mPendingBytes -= sizeOf(replaced);
+        }
+        mPendingBytes += sizeOf(entry);
+    }
+
+    /**
+     * Writes the oldest pending entry to the wrapped cache, waiting for one if there is none.
+     */
+    private void writeNext() throws InterruptedException {
+        // Wait without holding the write lock, so removes don't wait on an idle writer.
+        synchronized (this) {
+            while (mPending.isEmpty()) {
+                wait();
+            }
+        }
+        synchronized (mWriteLock) {
+            String key;
+            Entry entry;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    // Removed meanwhile.
+                    return;
+                }
+                Map.Entry<String, Entry> next = mPending.entrySet().iterator().next();
+                key = next.getKey();
+                entry = next.getValue();
+            }
+            try {
+                mCache.put(key, entry);
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Failed to write %s", key);
+            }
+            synchronized (this) {
+                // Keep an entry that was replaced while being written; it is written next.
+                if (mPending.get(key) == entry) {
+                    mPending.remove(key);
+                    mPendingBytes -= sizeOf(entry);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private class WriterThread extends Thread {
+        public WriterThread() {
+            super("VolleyCacheWriter");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                try {
+                    writeNext();
+                } catch (InterruptedException e) {
+                    // Nothing to stop; keep writing.
+                }
+            }
+        }
+    }
+
+    private static int sizeOf(Entry entry) {
+        return entry.data == null ? 0 : entry.data.length;
+    }
+
+    /**
+     * Returns a copy of the entry sharing its data but with response headers of its own, so
+     * callers can't modify pending entries.
+     */
+    private static Entry copyOf(Entry entry) {
+        Entry copy = new Entry();
+        copy.data = entry.getData();
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.staleIfErrorTtl = entry.staleIfErrorTtl;
+        copy.responseHeaders = entry.responseHeaders == null
+                ? new HashMap<String, String>()
+                : new HashMap<String, String>(entry.responseHeaders);
+        return copy;
+    }
+}
@@ -24,6 +24,9 @@ import com.android.volley.mock.MockResponseDelivery;
 import com.android.volley.mock.WaitableQueue;
 import com.android.volley.utils.CacheTestUtils;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import junit.framework.TestCase;
 
 @MediumTest
@@ -113,4 +116,138 @@ public class CacheDispatcherTest extends TestCase {
         Request request = mNetworkQueue.take();
         assertSame(entry, request.getCacheEntry());
     }
+
+    // A network-only request does not read the cache.
+    public void testNetworkOnly() throws Exception {
+        mCache.setEntryToReturn(CacheTestUtils.makeRandomCacheEntry(null, false, false));
+        mRequest.setCachePolicy(Request.CachePolicy.NETWORK_ONLY);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mCache.getCalled);
+        assertFalse(mDelivery.wasEitherResponseCalled());
+        assertTrue(mNetworkQueue.size() > 0);
+    }
+
+    // A cache-only request delivers expired hits and does not queue to the network.
+    public void testCacheOnlyExpiredHit() throws Exception {
+        mCache.setEntryToReturn(CacheTestUtils.makeRandomCacheEntry(null, true, true));
+        mRequest.setCachePolicy(Request.CachePolicy.CACHE_ONLY);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.postResponse_called);
+        assertFalse(mDelivery.responsePosted.intermediate);
+        assertEquals(0, mNetworkQueue.size());
+    }
+
+    // A cache-only miss posts an error and does not queue to the network.
+    public void testCacheOnlyMiss() throws Exception {
+        mRequest.setCachePolicy(Request.CachePolicy.CACHE_ONLY);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.postError_called);
+        assertFalse(mDelivery.postResponse_called);
+        assertEquals(0, mNetworkQueue.size());
+    }
+
+    // A fail-if-not-cached miss posts an error, but an expired hit still goes to the network.
+    public void testFailIfNotCached() throws Exception {
+        mRequest.setCachePolicy(Request.CachePolicy.FAIL_IF_NOT_CACHED);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.postError_called);
+        assertEquals(0, mNetworkQueue.size());
+
+        mDelivery.postError_called = false;
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, true, true);
+        mCache.setEntryToReturn(entry);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mDelivery.wasEitherResponseCalled());
+        assertSame(entry, mNetworkQueue.take().getCacheEntry());
+    }
+
+    // Stale-while-revalidate delivers an expired hit as intermediate and queues to the network.
+    public void testStaleWhileRevalidateExpiredHit() throws Exception {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, true, true);
+        mCache.setEntryToReturn(entry);
+        mRequest.setCachePolicy(Request.CachePolicy.STALE_WHILE_REVALIDATE);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.postResponse_called);
+        assertTrue(mDelivery.responsePosted.intermediate);
+        assertSame(entry, mNetworkQueue.take().getCacheEntry());
+    }
+
+    // Stale-while-revalidate also revalidates fresh hits.
+    public void testStaleWhileRevalidateFreshHit() throws Exception {
+        mCache.setEntryToReturn(CacheTestUtils.makeRandomCacheEntry(null, false, false));
+        mRequest.setCachePolicy(Request.CachePolicy.STALE_WHILE_REVALIDATE);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.responsePosted.intermediate);
+        assertTrue(mNetworkQueue.size() > 0);
+    }
+
+    // An entry recording a Vary header is resolved to the variant the request selects.
+    public void testVariantCacheHit() throws Exception {
+        Cache.Entry varyEntry = CacheTestUtils.makeRandomCacheEntry(new byte[0]);
+        varyEntry.responseHeaders = new HashMap<String, String>();
+        varyEntry.responseHeaders.put("Vary", "Accept");
+        mCache.setEntryToReturn(mRequest.getCacheKey(), varyEntry);
+        mCache.setEntryToReturn(null);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/json");
+        mRequest.setHeaders(headers);
+        Cache.Entry variant = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        mCache.setEntryToReturn(mRequest.getVariantCacheKey(varyEntry.responseHeaders), variant);
+
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.postResponse_called);
+        assertSame(variant.data, mDelivery.responsePosted.result);
+        assertEquals(0, mNetworkQueue.size());
+    }
+
+    // A variant that isn't cached is a miss, even though the URL has an entry.
+    public void testVariantCacheMiss() throws Exception {
+        Cache.Entry varyEntry = CacheTestUtils.makeRandomCacheEntry(new byte[0]);
+        varyEntry.responseHeaders = new HashMap<String, String>();
+        varyEntry.responseHeaders.put("Vary", "Accept");
+        mCache.setEntryToReturn(mRequest.getCacheKey(), varyEntry);
+        mCache.setEntryToReturn(null);
+
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mDelivery.wasEitherResponseCalled());
+        assertNull(mNetworkQueue.take().getCacheEntry());
+    }
+
+    // Misses, hits, soft-expired hits and expired hits are counted.
+    public void testMetrics() throws Exception {
+        CacheMetrics metrics = new CacheMetrics();
+        mDispatcher.quit();
+        mDispatcher.join();
+        mDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery, metrics);
+        mDispatcher.start();
+
+        addAndWait(null);
+        addAndWait(CacheTestUtils.makeRandomCacheEntry(null, false, false));
+        addAndWait(CacheTestUtils.makeRandomCacheEntry(null, false, true));
+        addAndWait(CacheTestUtils.makeRandomCacheEntry(null, true, true));
+
+        CacheMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.misses);
+        assertEquals(2, snapshot.hits);
+        assertEquals(1, snapshot.softExpiredHits);
+        assertEquals(1, snapshot.expiredHits);
+        assertEquals(0.5, snapshot.getHitRatio());
+    }
+
+    private void addAndWait(Cache.Entry entry) throws Exception {
+        mCache.setEntryToReturn(entry);
+        MockRequest request = new MockRequest();
+        request.setSequence(mCacheQueue.size() + mNetworkQueue.size());
+        mCacheQueue.add(request);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+    }
 }
@@ -23,8 +23,11 @@ import com.android.volley.mock.MockNetwork;
 import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.MockResponseDelivery;
 import com.android.volley.mock.WaitableQueue;
+import com.android.volley.utils.CacheTestUtils;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -99,4 +102,138 @@ public class NetworkDispatcherTest extends TestCase {
         assertTrue(Arrays.equals(mCache.entryPut.data, CANNED_DATA));
         assertEquals("bananaphone", mCache.keyPut);
     }
+
+    public void testDeclaredCachePartition() throws Exception {
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mRequest.setCacheKey("bananaphone");
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertNull(mCache.partitionPut);
+
+        MockRequest avatar = new MockRequest();
+        avatar.setCacheKey("avatar");
+        avatar.setCachePartition("avatars");
+        mNetworkQueue.add(avatar);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertEquals("avatars", mCache.partitionPut);
+        assertEquals("avatar", mCache.keyPut);
+    }
+
+    public void testMetricsCountPuts() throws Exception {
+        CacheMetrics metrics = new CacheMetrics();
+        mDispatcher.quit();
+        mDispatcher.join();
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery, metrics);
+        mDispatcher.start();
+
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mRequest.setShouldCache(true);
+        mRequest.setCacheKey("bananaphone");
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertEquals(1, metrics.snapshot().puts);
+        assertEquals(0, metrics.snapshot().notModified);
+    }
+
+    public void testErrorServesEntryWithinStaleIfError() throws Exception {
+        mNetwork.setNumExceptionsToThrow(MockNetwork.ALWAYS_THROW_EXCEPTIONS);
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(CANNED_DATA, true, true);
+        entry.staleIfErrorTtl = System.currentTimeMillis() + 60000;
+        mRequest.setCacheEntry(entry);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mDelivery.postError_called);
+        assertTrue(mDelivery.postResponse_called);
+        assertTrue(Arrays.equals((byte[]) mDelivery.responsePosted.result, CANNED_DATA));
+    }
+
+    public void testErrorPostedAfterStaleIfError() throws Exception {
+        mNetwork.setNumExceptionsToThrow(MockNetwork.ALWAYS_THROW_EXCEPTIONS);
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(CANNED_DATA, true, true);
+        entry.staleIfErrorTtl = System.currentTimeMillis() - 1;
+        mRequest.setCacheEntry(entry);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.postError_called);
+        assertFalse(mDelivery.postResponse_called);
+    }
+
+    // A stale entry that fails to parse gives the error, and the dispatcher keeps running.
+    public void testStaleParseExceptionPostsError() throws Exception {
+        mNetwork.setNumExceptionsToThrow(MockNetwork.ALWAYS_THROW_EXCEPTIONS);
+        MockRequest request = new MockRequest() {
+            @Override
+            protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                throw new IllegalStateException("Unparseable");
+            }
+        };
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(CANNED_DATA, true, true);
+        entry.staleIfErrorTtl = System.currentTimeMillis() + 60000;
+        request.setCacheEntry(entry);
+        mNetworkQueue.add(request);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.postError_called);
+        assertFalse(mDelivery.postResponse_called);
+
+        mNetwork.setNumExceptionsToThrow(0);
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.postResponse_called);
+    }
+
+    public void testVaryingResponseIsCachedPerVariant() throws Exception {
+        final Map<String, String> responseHeaders = new HashMap<String, String>();
+        responseHeaders.put("Vary", "Accept");
+        MockRequest request = new MockRequest() {
+            @Override
+            protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(response.data);
+                entry.responseHeaders = responseHeaders;
+                return Response.success(response.data, entry);
+            }
+        };
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/json");
+        request.setHeaders(headers);
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mNetworkQueue.add(request);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+
+        String variantKey = request.getVariantCacheKey(responseHeaders);
+        assertEquals(2, mCache.entriesPut.size());
+        assertTrue(Arrays.equals(CANNED_DATA, mCache.entriesPut.get(variantKey).data));
+        Cache.Entry varyEntry = mCache.entriesPut.get(request.getCacheKey());
+        assertEquals(0, varyEntry.data.length);
+        assertEquals("Accept", varyEntry.responseHeaders.get("Vary"));
+    }
+
+    // A 304 for a soft-expired hit that was already delivered still refreshes the entry.
+    public void testNotModifiedAfterIntermediateResponseRefreshesEntry() throws Exception {
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Cache-Control", "max-age=60");
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) {
+                return new NetworkResponse(304, null, headers, true, 0);
+            }
+        };
+        mDispatcher.quit();
+        mDispatcher.join();
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, network, mCache, mDelivery);
+        mDispatcher.start();
+
+        mRequest.setCacheKey("bananaphone");
+        mRequest.setCacheEntry(CacheTestUtils.makeRandomCacheEntry(CANNED_DATA, false, true));
+        mRequest.markDelivered();
+        long now = System.currentTimeMillis();
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+
+        assertFalse(mDelivery.wasEitherResponseCalled());
+        assertTrue(mCache.updateMetadataCalled);
+        assertEquals("bananaphone", mCache.keyUpdated);
+        assertTrue(mCache.softTtlUpdated >= now + 59000);
+        assertTrue(mCache.ttlUpdated >= mCache.softTtlUpdated);
+    }
 }
@@ -19,6 +19,10 @@ package com.android.volley;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.volley.Request.Priority;
+import com.android.volley.mock.MockRequest;
+
+import java.util.HashMap;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -83,6 +87,30 @@ public class RequestTest extends TestCase {
         assertFalse(0 == goodProtocol.getTrafficStatsTag());
     }
 
+    public void testVariantCacheKey() throws Exception {
+        Map<String, String> responseHeaders = new HashMap<String, String>();
+        MockRequest json = new MockRequest();
+        assertNull(json.getVariantCacheKey(responseHeaders));
+
+        responseHeaders.put("vary", "Accept-Encoding, Accept");
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/json");
+        json.setHeaders(headers);
+        MockRequest xml = new MockRequest();
+        headers = new HashMap<String, String>();
+        headers.put("accept", "text/xml");
+        xml.setHeaders(headers);
+
+        String jsonKey = json.getVariantCacheKey(responseHeaders);
+        assertTrue(jsonKey.startsWith(json.getCacheKey()));
+        assertFalse(jsonKey.equals(xml.getVariantCacheKey(responseHeaders)));
+        assertFalse(jsonKey.equals(new MockRequest().getVariantCacheKey(responseHeaders)));
+
+        // The order and case of the names in Vary don't matter.
+        responseHeaders.put("vary", "accept,ACCEPT-ENCODING");
+        assertEquals(jsonKey, json.getVariantCacheKey(responseHeaders));
+    }
+
     private class UrlParseRequest extends Request<Object> {
         public UrlParseRequest(String url) {
             super(Request.Method.GET, url, null);
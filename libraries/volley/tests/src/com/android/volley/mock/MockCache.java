@@ -16,9 +16,12 @@
 
 package com.android.volley.mock;
 
-import com.android.volley.Cache;
+import com.android.volley.PartitionedCache;
 
-public class MockCache implements Cache {
+import java.util.HashMap;
+import java.util.Map;
+
+public class MockCache implements PartitionedCache {
 
     public boolean clearCalled = false;
     @Override
@@ -29,31 +32,64 @@ public class MockCache implements Cache {
     public boolean getCalled = false;
     private Entry mFakeEntry = null;
 
+    private final Map<String, Entry> mFakeEntries = new HashMap<String, Entry>();
+
     public void setEntryToReturn(Entry entry) {
         mFakeEntry = entry;
     }
 
+    /** Sets the entry to return for the given key, instead of the one for all keys. */
+    public void setEntryToReturn(String key, Entry entry) {
+        mFakeEntries.put(key, entry);
+    }
+
     @Override
     public Entry get(String key) {
         getCalled = true;
+        if (mFakeEntries.containsKey(key)) {
+            return mFakeEntries.get(key);
+        }
         return mFakeEntry;
     }
 
     public boolean putCalled = false;
     public String keyPut = null;
     public Entry entryPut = null;
+    public final Map<String, Entry> entriesPut = new HashMap<String, Entry>();
 
     @Override
     public void put(String key, Entry entry) {
         putCalled = true;
         keyPut = key;
         entryPut = entry;
+        entriesPut.put(key, entry);
+    }
+
+    public String partitionPut = null;
+
+    @Override
+    public void put(String partition, String key, Entry entry) {
+        partitionPut = partition;
+        put(key, entry);
     }
 
     @Override
     public void invalidate(String key, boolean fullExpire) {
     }
 
+    public boolean updateMetadataCalled = false;
+    public String keyUpdated = null;
+    public long ttlUpdated = 0;
+    public long softTtlUpdated = 0;
+
+    @Override
+    public void updateMetadata(String key, long serverDate, long ttl, long softTtl) {
+        updateMetadataCalled = true;
+        keyUpdated = key;
+        ttlUpdated = ttl;
+        softTtlUpdated = softTtl;
+    }
+
     @Override
     public void remove(String key) {
     }
@@ -46,6 +46,17 @@ public class MockRequest extends Request<byte[]> {
         return mPostParams;
     }
 
+    private Map<String, String> mHeaders = new HashMap<String, String>();
+
+    public void setHeaders(Map<String, String> headers) {
+        mHeaders = headers;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
     private String mCacheKey = super.getCacheKey();
 
     public void setCacheKey(String cacheKey) {
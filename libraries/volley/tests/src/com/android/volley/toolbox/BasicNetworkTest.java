@@ -16,6 +16,7 @@
 
 package com.android.volley.toolbox;
 
+import com.android.volley.Cache;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Response;
@@ -76,4 +77,37 @@ public class BasicNetworkTest extends AndroidTestCase {
         assertEquals("foo", mockHttpStack.getLastHeaders().get("requestheader"));
         assertEquals("requestpost=foo&", new String(mockHttpStack.getLastPostBody()));
     }
+
+    // A 304 for an entry whose data the cache has not loaded leaves the data unread.
+    public void testNotModifiedDoesNotLoadCachedData() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(new BasicHttpResponse(
+                new ProtocolVersion("HTTP", 1, 1), 304, "Not Modified"));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request = new Request<String>(Request.Method.GET, "http://foo", null) {
+            @Override
+            protected Response<String> parseNetworkResponse(NetworkResponse response) {
+                return null;
+            }
+
+            @Override
+            protected void deliverResponse(String response) {
+            }
+        };
+        Cache.Entry entry = new Cache.Entry() {
+            @Override
+            public byte[] getData() {
+                fail("Cached data was loaded");
+                return null;
+            }
+        };
+        entry.etag = "etag";
+        entry.responseHeaders = new HashMap<String, String>();
+        request.setCacheEntry(entry);
+
+        NetworkResponse response = httpNetwork.performRequest(request);
+        assertTrue(response.notModified);
+        assertNull(response.data);
+        assertEquals("etag", mockHttpStack.getLastHeaders().get("If-None-Match"));
+    }
 }
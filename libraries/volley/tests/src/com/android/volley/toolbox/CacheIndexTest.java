@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+@SmallTest
+public class CacheIndexTest extends TestCase {
+
+    public void testPutAndRemove() {
+        CacheIndex index = new CacheIndex();
+        index.put(1, 10, 100, 50);
+        index.put(2, 20, 200, 150);
+        assertEquals(2, index.size());
+        assertEquals(30, index.getTotalSize());
+
+        int slot = index.find(2);
+        assertEquals(20, index.sizeAt(slot));
+        assertEquals(200, index.ttlAt(slot));
+        assertEquals(150, index.softTtlAt(slot));
+
+        // Replacing an entry adjusts the total size.
+        index.put(1, 5, 100, 50);
+        assertEquals(25, index.getTotalSize());
+
+        assertTrue(index.remove(1));
+        assertFalse(index.remove(1));
+        assertFalse(index.contains(1));
+        assertEquals(1, index.size());
+        assertEquals(20, index.getTotalSize());
+    }
+
+    // Pins survive replacement and growth of the table, and are dropped with their entry.
+    public void testPinnedSize() {
+        CacheIndex index = new CacheIndex();
+        index.put(1, 10, 0, 0);
+        index.put(2, 20, 0, 0);
+        assertTrue(index.setPinned(1, true));
+        assertFalse(index.setPinned(3, true));
+        assertTrue(index.isPinned(1));
+        assertFalse(index.isPinned(2));
+        assertEquals(10, index.getPinnedSize());
+
+        index.put(1, 15, 0, 0);
+        assertEquals(15, index.getPinnedSize());
+        for (int i = 3; i < 100; i++) {
+            index.put(i, 1, 0, 0);
+        }
+        assertTrue(index.isPinned(1));
+        assertTrue(index.isPinnedAt(index.find(1)));
+        assertEquals(15, index.getPinnedSize());
+
+        assertTrue(index.remove(1));
+        assertEquals(0, index.getPinnedSize());
+        index.put(1, 10, 0, 0);
+        assertFalse(index.isPinned(1));
+    }
+
+    // Pinned entries are linked after the unpinned ones, so the first slot is the LRU victim.
+    public void testPinnedEntriesFollowUnpinned() {
+        CacheIndex index = new CacheIndex();
+        for (int i = 1; i <= 4; i++) {
+            index.put(i, 1, 0, 0);
+        }
+        index.setPinned(1, true);
+        index.setPinned(3, true);
+        assertOrder(index, 2, 4, 1, 3);
+        index.touch(1);
+        index.touch(2);
+        index.put(5, 1, 0, 0);
+        assertOrder(index, 4, 2, 5, 3, 1);
+        index.setPinned(3, false);
+        assertOrder(index, 4, 2, 5, 3, 1);
+        index.setPinned(4, true);
+        index.setPinned(2, true);
+        index.setPinned(5, true);
+        index.setPinned(3, true);
+        assertEquals(1, index.hashAt(index.first()));
+        assertTrue(index.isPinnedAt(index.first()));
+
+        // The order survives resizing.
+        index.setPinned(2, false);
+        for (int i = 6; i < 40; i++) {
+            index.put(i, 1, 0, 0);
+        }
+        assertEquals(2, index.hashAt(index.first()));
+        index.remove(2);
+        assertEquals(6, index.hashAt(index.first()));
+    }
+
+    private static void assertOrder(CacheIndex index, long... hashes) {
+        int slot = index.first();
+        for (long hash : hashes) {
+            assertEquals(hash, index.hashAt(slot));
+            slot = index.next(slot);
+        }
+        assertEquals(CacheIndex.NONE, slot);
+    }
+
+    public void testLruOrder() {
+        CacheIndex index = new CacheIndex();
+        index.put(1, 1, 0, 0);
+        index.put(2, 1, 0, 0);
+        index.put(3, 1, 0, 0);
+        assertTrue(index.touch(1));
+        assertFalse(index.touch(4));
+        index.put(2, 1, 0, 0);
+        assertEquals(3, index.hashAt(index.first()));
+        assertEquals(1, index.hashAt(index.next(index.first())));
+    }
+
+    // Random operations on colliding hashes agree with a LinkedHashMap in access order.
+    public void testMatchesReferenceModel() {
+        Random random = new Random(42);
+        CacheIndex index = new CacheIndex();
+        Map<Long, Integer> reference = new LinkedHashMap<Long, Integer>(16, .75f, true);
+        for (int i = 0; i < 20000; i++) {
+            // Few distinct low bits, so that probe sequences collide and wrap around.
+            long hash = ((long) random.nextInt(200) << 32) | (random.nextInt(4) + 1);
+            int op = random.nextInt(3);
+            if (op == 0) {
+                int size = random.nextInt(1000);
+                index.put(hash, size, 0, 0);
+                reference.put(hash, size);
+            } else if (op == 1) {
+                assertEquals(reference.remove(hash) != null, index.remove(hash));
+            } else {
+                assertEquals(reference.get(hash) != null, index.touch(hash));
+            }
+        }
+
+        List<Long> order = new ArrayList<Long>();
+        long totalSize = 0;
+        for (int slot = index.first(); slot != CacheIndex.NONE; slot = index.next(slot)) {
+            order.add(index.hashAt(slot));
+            assertEquals((int) reference.get(index.hashAt(slot)), index.sizeAt(slot));
+            totalSize += index.sizeAt(slot);
+        }
+        assertEquals(new ArrayList<Long>(reference.keySet()), order);
+        assertEquals(reference.size(), index.size());
+        assertEquals(totalSize, index.getTotalSize());
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.mock.MockCache;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+@MediumTest
+public class CacheRevalidatorTest extends TestCase {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private MockCache mCache;
+    private List<RevalidationRequest> mAdded;
+    private RequestQueue mQueue;
+    private volatile CacheRevalidator.Result mResult;
+
+    private final Response.Listener<CacheRevalidator.Result> mListener =
+            new Response.Listener<CacheRevalidator.Result>() {
+        @Override
+        public void onResponse(CacheRevalidator.Result result) {
+            mResult = result;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new MockCache();
+        mCache.setEntryToReturn(CacheTestUtils.makeRandomCacheEntry(null, false, true));
+        mAdded = Collections.synchronizedList(new ArrayList<RevalidationRequest>());
+        mQueue = new RequestQueue(mCache, null, 1, null) {
+            @Override
+            public <T> Request<T> add(Request<T> request) {
+                mAdded.add((RevalidationRequest) request);
+                return request;
+            }
+        };
+    }
+
+    private void waitForAdded(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mAdded.size() < count) {
+            assertTrue("Timed out waiting for requests", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void waitForResult() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mResult == null) {
+            assertTrue("Timed out waiting for result", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void complete(RevalidationRequest request, int bodyBytes) {
+        NetworkResponse response = bodyBytes == 0
+                ? new NetworkResponse(304, new byte[10], Collections.<String, String>emptyMap(),
+                        true)
+                : new NetworkResponse(new byte[bodyBytes]);
+        request.deliverResponse(request.parseNetworkResponse(response).result);
+    }
+
+    public void testConcurrencyIsBoundedAndOutcomesAreCounted() throws Exception {
+        mCache.setEntryToReturn("fresh", CacheTestUtils.makeRandomCacheEntry(null));
+        mCache.setEntryToReturn("missing", null);
+        CacheRevalidator revalidator = new CacheRevalidator(mQueue, 2, 0);
+        revalidator.revalidate(Arrays.asList("a", "fresh", "b", "missing", "c", "d"), mListener);
+
+        waitForAdded(2);
+        Thread.sleep(50);
+        assertEquals(2, mAdded.size());
+        RevalidationRequest first = mAdded.get(0);
+        assertEquals("a", first.getCacheKey());
+        assertEquals(Request.Priority.LOW, first.getPriority());
+        assertNotNull(first.getCacheEntry());
+
+        complete(first, 0);
+        waitForAdded(3);
+        complete(mAdded.get(1), 100);
+        waitForAdded(4);
+        mAdded.get(2).deliverError(new ServerError());
+        complete(mAdded.get(3), 0);
+
+        waitForResult();
+        assertEquals(4, mAdded.size());
+        assertEquals(2, mResult.notModified);
+        assertEquals(1, mResult.modified);
+        assertEquals(1, mResult.failed);
+        assertEquals(2, mResult.skipped);
+        assertEquals(100, mResult.bytes);
+    }
+
+    public void testBandwidthIsBounded() throws Exception {
+        CacheRevalidator revalidator = new CacheRevalidator(mQueue, 1, 1000);
+        revalidator.revalidate(Arrays.asList("a", "b"), mListener);
+        waitForAdded(1);
+        long start = System.currentTimeMillis();
+        complete(mAdded.get(0), 500);
+        waitForAdded(2);
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        complete(mAdded.get(1), 0);
+        waitForResult();
+        assertEquals(500, mResult.bytes);
+    }
+
+    public void testUrlResolver() throws Exception {
+        CacheRevalidator revalidator = new CacheRevalidator(mQueue);
+        revalidator.setUrlResolver(new CacheRevalidator.UrlResolver() {
+            @Override
+            public String getUrl(String cacheKey) {
+                return cacheKey.equals("skip") ? null : cacheKey + "?token=1";
+            }
+        });
+        revalidator.revalidate(Arrays.asList("skip", "http://foo.com/"), mListener);
+        waitForAdded(1);
+        assertEquals("http://foo.com/?token=1", mAdded.get(0).getUrl());
+        assertEquals("http://foo.com/", mAdded.get(0).getCacheKey());
+        complete(mAdded.get(0), 0);
+        waitForResult();
+        assertEquals(1, mResult.skipped);
+    }
+
+    public void testVariantsAreRevalidatedWithTheirHeaders() throws Exception {
+        Map<String, String> responseHeaders = new HashMap<String, String>();
+        responseHeaders.put("Vary", "Accept");
+        Cache.Entry varyEntry = CacheTestUtils.makeRandomCacheEntry(new byte[0]);
+        varyEntry.responseHeaders = responseHeaders;
+        mCache.setEntryToReturn("http://foo.com/", varyEntry);
+        Cache.Entry json = CacheTestUtils.makeRandomCacheEntry(null, false, true);
+        json.responseHeaders = responseHeaders;
+        mCache.setEntryToReturn("http://foo.com/\naccept:application/json", json);
+        Cache.Entry html = CacheTestUtils.makeRandomCacheEntry(null, false, true);
+        html.responseHeaders = responseHeaders;
+        mCache.setEntryToReturn("http://bar.com/\naccept:text/html", html);
+
+        CacheRevalidator revalidator = new CacheRevalidator(mQueue);
+        revalidator.setHeaderResolver(new CacheRevalidator.HeaderResolver() {
+            @Override
+            public Map<String, String> getHeaders(String cacheKey) {
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("Accept", "application/json");
+                headers.put("Authorization", "token");
+                return headers;
+            }
+        });
+        revalidator.revalidate(
+                Arrays.asList("http://foo.com/", "http://bar.com/\naccept:text/html"), mListener);
+        waitForAdded(2);
+
+        // The plain key resolves to the variant its headers select.
+        RevalidationRequest foo = mAdded.get(0);
+        assertEquals("http://foo.com/", foo.getUrl());
+        assertEquals("http://foo.com/", foo.getCacheKey());
+        assertSame(json, foo.getCacheEntry());
+        assertEquals("http://foo.com/\naccept:application/json",
+                foo.getVariantCacheKey(responseHeaders));
+
+        // A variant key overrides the headers it records.
+        RevalidationRequest bar = mAdded.get(1);
+        assertEquals("http://bar.com/", bar.getUrl());
+        assertEquals("http://bar.com/", bar.getCacheKey());
+        assertSame(html, bar.getCacheEntry());
+        assertEquals("text/html", bar.getHeaders().get("accept"));
+        assertFalse(bar.getHeaders().containsKey("Accept"));
+        assertEquals("token", bar.getHeaders().get("Authorization"));
+
+        complete(foo, 0);
+        complete(bar, 0);
+        waitForResult();
+        assertEquals(2, mResult.notModified);
+        assertEquals(0, mResult.skipped);
+    }
+
+    public void testVaryEntryWithoutSelectedVariantIsSkipped() throws Exception {
+        Map<String, String> responseHeaders = new HashMap<String, String>();
+        responseHeaders.put("Vary", "Accept");
+        Cache.Entry varyEntry = CacheTestUtils.makeRandomCacheEntry(new byte[0]);
+        varyEntry.responseHeaders = responseHeaders;
+        mCache.setEntryToReturn("http://foo.com/", varyEntry);
+        mCache.setEntryToReturn("http://foo.com/\naccept:", null);
+
+        CacheRevalidator revalidator = new CacheRevalidator(mQueue);
+        revalidator.revalidate(Arrays.asList("http://foo.com/"), mListener);
+        waitForResult();
+        assertEquals(0, mAdded.size());
+        assertEquals(1, mResult.skipped);
+    }
+}
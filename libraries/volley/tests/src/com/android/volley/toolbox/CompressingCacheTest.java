@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.utils.CacheDirTestCase;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+public class CompressingCacheTest extends CacheDirTestCase {
+
+    private DiskBasedCache mDisk;
+    private CompressingCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDisk = new DiskBasedCache(mCacheDir);
+        mCache = CacheTestUtils.initialize(new CompressingCache(mDisk));
+    }
+
+    private static byte[] makeJson() {
+        StringBuilder sb = new StringBuilder("{\"data\":[");
+        for (int i = 0; i < 100; i++) {
+            sb.append("{\"id\":\"").append(1000 + i).append("\",\"type\":\"image\",")
+                    .append("\"user\":{\"username\":\"user").append(i % 7).append("\"}},");
+        }
+        return sb.append("{}]}").toString().getBytes();
+    }
+
+    public void testJsonIsCompressed() throws Exception {
+        byte[] json = makeJson();
+        Cache.Entry entry =
+                CacheTestUtils.makeRandomCacheEntry(json, "application/json; charset=utf-8");
+        mCache.put("json", entry);
+        assertTrue(mDisk.getTotalSize() < json.length / 4);
+        assertEquals(json.length, mCache.getUncompressedBytes());
+        assertEquals(mCache.getCompressedBytes(), mDisk.get("json").getData().length);
+
+        Cache.Entry hit = mCache.get("json");
+        assertEquals(entry.etag, hit.etag);
+        assertEquals(entry.ttl, hit.ttl);
+        assertEquals(entry.responseHeaders, hit.responseHeaders);
+        CacheTestUtils.assertData(json, hit);
+    }
+
+    public void testCompressedTypesAreSkipped() throws Exception {
+        mCache.put("image", CacheTestUtils.makeRandomCacheEntry(makeJson(), "image/jpeg"));
+        assertEquals(0, mCache.getUncompressedBytes());
+        CacheTestUtils.assertData(makeJson(), mCache.get("image"));
+
+        // Declared compressible, but doesn't shrink.
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        mCache.put("random", CacheTestUtils.makeRandomCacheEntry(random, "text/plain"));
+        assertEquals(0, mCache.getUncompressedBytes());
+        CacheTestUtils.assertData(random, mCache.get("random"));
+    }
+
+    public void testCompressionFilter() throws Exception {
+        mCache.setCompressionFilter(new CompressingCache.CompressionFilter() {
+            @Override
+            public boolean shouldCompress(String key, Cache.Entry entry) {
+                return key.startsWith("api/");
+            }
+        });
+        mCache.put("api/feed",
+                CacheTestUtils.makeRandomCacheEntry(makeJson(), "application/octet-stream"));
+        mCache.put("other", CacheTestUtils.makeRandomCacheEntry(makeJson(), "application/json"));
+        assertEquals(makeJson().length, mCache.getUncompressedBytes());
+    }
+
+    public void testMetadataChangesPassThrough() throws Exception {
+        mCache.put("json", CacheTestUtils.makeRandomCacheEntry(makeJson(), "application/json"));
+        mCache.invalidate("json", false);
+        assertTrue(mCache.get("json").refreshNeeded());
+        mCache.updateMetadata("json", 1, Long.MAX_VALUE, Long.MAX_VALUE);
+        Cache.Entry hit = mCache.get("json");
+        assertFalse(hit.refreshNeeded());
+        CacheTestUtils.assertData(makeJson(), hit);
+        mCache.remove("json");
+        assertNull(mCache.get("json"));
+    }
+
+    public void testDeflateAndInflate() throws Exception {
+        byte[] json = makeJson();
+        byte[] compressed = CompressingCache.deflate(json, Deflater.BEST_SPEED);
+        assertTrue(Arrays.equals(json, CompressingCache.inflate(compressed, json.length)));
+        try {
+            CompressingCache.inflate(compressed, json.length + 1);
+            fail();
+        } catch (DataFormatException expected) {
+        }
+        assertNull(CompressingCache.deflate(new byte[] { 1, 2, 3 }, Deflater.BEST_SPEED));
+    }
+}
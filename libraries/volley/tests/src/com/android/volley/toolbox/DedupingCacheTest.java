@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.utils.CacheDirTestCase;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class DedupingCacheTest extends CacheDirTestCase {
+
+    private DedupingCache newInitializedCache(long maxBodyBytes) {
+        return CacheTestUtils.initialize(new DedupingCache(
+                new DiskBasedCache(new File(mCacheDir, "entries")),
+                new File(mCacheDir, "bodies"), maxBodyBytes, 100));
+    }
+
+    private static byte[] makeBody(int seed) {
+        byte[] body = new byte[1000];
+        Arrays.fill(body, (byte) seed);
+        return body;
+    }
+
+    public void testIdenticalBodiesAreStoredOnce() throws Exception {
+        DedupingCache cache = newInitializedCache(100000);
+        Cache.Entry first = CacheTestUtils.makeRandomCacheEntry(makeBody(1));
+        cache.put("http://cdn1.example.com/a.jpg", first);
+        cache.put("http://cdn2.example.com/a.jpg",
+                CacheTestUtils.makeRandomCacheEntry(makeBody(1)));
+        assertEquals(1, cache.getBodyCount());
+        assertEquals(1000, cache.getBodyBytes());
+        assertEquals(1000, cache.getDedupedBytes());
+
+        Cache.Entry hit = cache.get("http://cdn1.example.com/a.jpg");
+        CacheTestUtils.assertData(makeBody(1), hit);
+        assertEquals(first.etag, hit.etag);
+        assertEquals(first.responseHeaders, hit.responseHeaders);
+        CacheTestUtils.assertData(makeBody(1), cache.get("http://cdn2.example.com/a.jpg"));
+    }
+
+    // A body is deleted when the last key referencing it is removed or replaced.
+    public void testReferenceCounting() throws Exception {
+        DedupingCache cache = newInitializedCache(100000);
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(makeBody(1)));
+        cache.put("b", CacheTestUtils.makeRandomCacheEntry(makeBody(1)));
+        cache.remove("a");
+        assertEquals(1, cache.getBodyCount());
+        CacheTestUtils.assertData(makeBody(1), cache.get("b"));
+
+        cache.put("b", CacheTestUtils.makeRandomCacheEntry(makeBody(2)));
+        assertEquals(1, cache.getBodyCount());
+        CacheTestUtils.assertData(makeBody(2), cache.get("b"));
+        cache.remove("b");
+        assertEquals(0, cache.getBodyCount());
+        assertEquals(0, cache.getBodyBytes());
+    }
+
+    public void testSmallBodiesAreNotDeduped() throws Exception {
+        DedupingCache cache = newInitializedCache(100000);
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 }));
+        cache.put("b", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 }));
+        assertEquals(0, cache.getBodyCount());
+        CacheTestUtils.assertData(new byte[] { 1, 2, 3 }, cache.get("a"));
+    }
+
+    // References survive a restart, and bodies nothing references are deleted.
+    public void testReferencesArePersisted() throws Exception {
+        DedupingCache cache = newInitializedCache(100000);
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(makeBody(1)));
+        cache.put("b", CacheTestUtils.makeRandomCacheEntry(makeBody(1)));
+        cache.put("c", CacheTestUtils.makeRandomCacheEntry(makeBody(2)));
+        new File(new File(mCacheDir, "bodies"), DedupingCache.hashContent(makeBody(3)))
+                .createNewFile();
+
+        DedupingCache reopened = newInitializedCache(100000);
+        assertEquals(2, reopened.getBodyCount());
+        CacheTestUtils.assertData(makeBody(1), reopened.get("b"));
+        reopened.remove("a");
+        reopened.remove("b");
+        assertEquals(1, reopened.getBodyCount());
+        CacheTestUtils.assertData(makeBody(2), reopened.get("c"));
+    }
+
+    // Beyond the maximum size the least recently used bodies are deleted, and their entries
+    // become misses.
+    public void testBodiesAreBounded() throws Exception {
+        DedupingCache cache = newInitializedCache(2500);
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(makeBody(1)));
+        cache.put("b", CacheTestUtils.makeRandomCacheEntry(makeBody(2)));
+        cache.get("a");
+        cache.put("c", CacheTestUtils.makeRandomCacheEntry(makeBody(3)));
+        assertEquals(2000, cache.getBodyBytes());
+        CacheTestUtils.assertData(makeBody(1), cache.get("a"));
+        assertNull(cache.get("b"));
+        CacheTestUtils.assertData(makeBody(3), cache.get("c"));
+    }
+
+    // Bodies are read when the data is first asked for.
+    public void testBodyIsReadLazily() throws Exception {
+        DedupingCache cache = newInitializedCache(100000);
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(makeBody(1)));
+        Cache.Entry entry = cache.get("a");
+        assertNull(entry.data);
+        CacheTestUtils.assertData(makeBody(1), entry);
+
+        // A body deleted from disk makes the entry a miss.
+        Cache.Entry gone = cache.get("a");
+        assertTrue(new File(new File(mCacheDir, "bodies"),
+                DedupingCache.hashContent(makeBody(1))).delete());
+        assertNull(gone.getData());
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getBodyCount());
+    }
+
+    // A read of a replaced body does not remove the entry that replaced it.
+    public void testStaleReadKeepsNewerEntry() throws Exception {
+        DedupingCache cache = newInitializedCache(100000);
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(makeBody(1)));
+        Cache.Entry stale = cache.get("a");
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(makeBody(2)));
+        assertNull(stale.getData());
+        CacheTestUtils.assertData(makeBody(2), cache.get("a"));
+        assertEquals(1, cache.getBodyCount());
+    }
+
+    public void testHashContent() {
+        assertEquals(32, DedupingCache.hashContent(new byte[0]).length());
+        assertEquals(DedupingCache.hashContent(makeBody(1)),
+                DedupingCache.hashContent(makeBody(1)));
+        assertFalse(DedupingCache.hashContent(makeBody(1))
+                .equals(DedupingCache.hashContent(makeBody(2))));
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.utils.CacheDirTestCase;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measurements of {@link DiskBasedCache} on large caches. Results are logged under the Volley
+ * tag.
+ */
+@LargeTest
+public class DiskBasedCacheBenchmarkTest extends CacheDirTestCase {
+
+    private static final int ENTRY_COUNT = 10000;
+
+    private static String makeKey(int i) {
+        return "https://api.example.com/v1/media/" + (1000000 + i)
+                + "/comments?access_token=1234567.abcdef0.0123456789abcdef";
+    }
+
+    /** An entry with a typical set of response headers. */
+    private static Cache.Entry makeEntry(int i) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[16];
+        entry.etag = "\"" + Integer.toHexString(i * 31) + "-etag\"";
+        entry.serverDate = 1400000000000L + i;
+        entry.ttl = entry.serverDate + 3600000;
+        entry.softTtl = entry.serverDate + 60000;
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("Cache-Control", "private, max-age=3600");
+        entry.responseHeaders.put("Content-Language", "en");
+        entry.responseHeaders.put("Content-Length", String.valueOf(1000 + i % 5000));
+        entry.responseHeaders.put("Content-Type", "application/json; charset=utf-8");
+        entry.responseHeaders.put("Date", "Mon, 23 Jun 2014 10:" + (i % 60) + ":00 GMT");
+        entry.responseHeaders.put("ETag", entry.etag);
+        entry.responseHeaders.put("Server", "nginx");
+        entry.responseHeaders.put("Vary", "Accept-Encoding");
+        entry.responseHeaders.put("X-Request-Id", Integer.toHexString(i * 7919));
+        return entry;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Heap used by the index of a 10k-entry cache, compared to an index holding every
+    // entry's key and headers as read back from disk.
+    public void testIndexHeapUsage() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, Integer.MAX_VALUE);
+        cache.initialize();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            cache.put(makeKey(i), makeEntry(i));
+        }
+
+        long before = usedHeap();
+        Map<String, CacheHeader> headers =
+                new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new CacheHeader(makeKey(i), makeEntry(i)).writeHeader(baos);
+            CacheHeader header =
+                    CacheHeader.readHeader(new ByteArrayInputStream(baos.toByteArray()));
+            headers.put(header.key, header);
+        }
+        long headerMapBytes = usedHeap() - before;
+        assertEquals(ENTRY_COUNT, headers.size());
+        headers = null;
+
+        before = usedHeap();
+        DiskBasedCache reopened = new DiskBasedCache(mCacheDir, Integer.MAX_VALUE);
+        reopened.initialize();
+        long indexBytes = usedHeap() - before;
+        assertNotNull(reopened.get(makeKey(0)));
+
+        VolleyLog.d("%d entries: header map %d bytes, compact index %d bytes (arrays %d)",
+                ENTRY_COUNT, headerMapBytes, indexBytes, reopened.getIndexHeapSize());
+        assertTrue(indexBytes < headerMapBytes);
+    }
+
+    // Time per put() and get() of the current format against the original one, which wrote
+    // and read the header a byte at a time on unbuffered file streams, with the number of
+    // write() and read() calls reaching the file. A get() includes reading the data.
+    public void testPutAndGetCost() throws Exception {
+        int count = 500;
+        byte[] body = new byte[2048];
+        mCacheDir.mkdirs();
+
+        CountingOutputStream counter = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Cache.Entry entry = makeEntry(i);
+            entry.data = body;
+            counter = new CountingOutputStream(
+                    new FileOutputStream(new File(mCacheDir, "legacy" + i)));
+            new CacheHeader(makeKey(i), entry).writeLegacyHeader(counter);
+            counter.write(entry.data);
+            counter.close();
+        }
+        long legacyPutNs = (System.nanoTime() - start) / count;
+        int legacyWrites = counter.calls;
+
+        CountingInputStream reader = null;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            File file = new File(mCacheDir, "legacy" + i);
+            reader = new CountingInputStream(new FileInputStream(file));
+            CacheHeader.readHeader(reader);
+            byte[] data = new byte[(int) file.length() - reader.bytes];
+            int pos = 0;
+            while (pos < data.length) {
+                pos += reader.read(data, pos, data.length - pos);
+            }
+            reader.close();
+        }
+        long legacyGetNs = (System.nanoTime() - start) / count;
+        int legacyReads = reader.calls;
+
+        CountingDiskBasedCache cache = new CountingDiskBasedCache(new File(mCacheDir, "current"));
+        cache.initialize();
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Cache.Entry entry = makeEntry(i);
+            entry.data = body;
+            cache.put(makeKey(i), entry);
+        }
+        long putNs = (System.nanoTime() - start) / count;
+        int writes = cache.writes / count;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            CacheTestUtils.assertData(body, cache.get(makeKey(i)));
+        }
+        long getNs = (System.nanoTime() - start) / count;
+        int reads = cache.reads / count;
+
+        VolleyLog.d("original format: put %d us (%d writes), get %d us (%d reads); "
+                + "current format: put %d us (%d writes), get %d us (%d reads)",
+                legacyPutNs / 1000, legacyWrites, legacyGetNs / 1000, legacyReads,
+                putNs / 1000, writes, getNs / 1000, reads);
+        assertTrue(writes < legacyWrites);
+        assertTrue(reads < legacyReads);
+    }
+
+    // Hit ratio of LRU and TinyLFU eviction replaying the same key trace. No recorded traces
+    // ship with the tests, so the trace is generated to look like a feed app's: a set of
+    // entries used on every launch and now and then in between, such as avatars and API
+    // responses, while the user scrolls through many images that are each seen once.
+    public void testHitRatioTraceReplay() throws Exception {
+        List<String> trace = makeFeedTrace(new Random(1));
+        int maxSize = 100 * 1024;
+
+        DiskBasedCache lru = new DiskBasedCache(new File(mCacheDir, "lru"), maxSize);
+        lru.initialize();
+        float lruHitRatio = replay(lru, trace);
+
+        DiskBasedCache tinyLfu = new DiskBasedCache(new File(mCacheDir, "tinylfu"), maxSize);
+        tinyLfu.setEvictionPolicy(new TinyLfuEvictionPolicy(maxSize, 100));
+        tinyLfu.initialize();
+        float tinyLfuHitRatio = replay(tinyLfu, trace);
+
+        VolleyLog.d("%d requests: LRU hit ratio %.3f, TinyLFU hit ratio %.3f",
+                trace.size(), lruHitRatio, tinyLfuHitRatio);
+        assertTrue(tinyLfuHitRatio > lruHitRatio);
+    }
+
+    // Put and get throughput and startup time of DiskBasedCache, with a file per entry, and
+    // SegmentedDiskCache, with a few segment files, for caches of small entries.
+    public void testSegmentedCacheComparison() throws Exception {
+        for (int count : new int[] { 1000, 10000, 50000 }) {
+            File dir = new File(mCacheDir, "files-" + count);
+            DiskBasedCache files = new DiskBasedCache(dir, Integer.MAX_VALUE);
+            files.initialize();
+            long[] fileTimes = measure(files, count);
+            DiskBasedCache reopenedFiles = new DiskBasedCache(dir, Integer.MAX_VALUE);
+            long start = System.nanoTime();
+            reopenedFiles.initialize();
+            assertNotNull(reopenedFiles.get(makeKey(count - 1)));
+            long fileStartupMs = (System.nanoTime() - start) / 1000000;
+            deleteRecursively(dir);
+
+            dir = new File(mCacheDir, "segments-" + count);
+            SegmentedDiskCache segments = new SegmentedDiskCache(dir, Integer.MAX_VALUE);
+            segments.initialize();
+            long[] segmentTimes = measure(segments, count);
+            segments.runMaintenance();
+            SegmentedDiskCache reopenedSegments = new SegmentedDiskCache(dir, Integer.MAX_VALUE);
+            start = System.nanoTime();
+            reopenedSegments.initialize();
+            assertNotNull(reopenedSegments.get(makeKey(count - 1)));
+            long segmentStartupMs = (System.nanoTime() - start) / 1000000;
+            deleteRecursively(dir);
+
+            VolleyLog.d("%d entries: DiskBasedCache put %d/s, get %d/s, startup %d ms; "
+                    + "SegmentedDiskCache put %d/s, get %d/s, startup %d ms", count,
+                    perSecond(count, fileTimes[0]), perSecond(count, fileTimes[1]),
+                    fileStartupMs, perSecond(count, segmentTimes[0]),
+                    perSecond(count, segmentTimes[1]), segmentStartupMs);
+        }
+    }
+
+    /**
+     * Puts and then gets the given number of 512-byte entries.
+     * @return the time taken by the puts and by the gets, in nanoseconds
+     */
+    private static long[] measure(Cache cache, int count) {
+        byte[] body = new byte[512];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Cache.Entry entry = makeEntry(i);
+            entry.data = body;
+            cache.put(makeKey(i), entry);
+        }
+        long putNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            assertNotNull(cache.get(makeKey(i)).getData());
+        }
+        return new long[] { putNs, System.nanoTime() - start };
+    }
+
+    private static long perSecond(int count, long ns) {
+        return count * 1000000000L / Math.max(1, ns);
+    }
+
+    // Hit ratio and CPU time of a 512KB cache of JSON pages, stored as is and compressed.
+    // Each step reads one of 400 pages, skewed towards the first ones like paging back
+    // through a feed, and puts it if missing.
+    public void testCompressionTradeoff() throws Exception {
+        List<byte[]> pages = new ArrayList<byte[]>();
+        Random random = new Random(1);
+        for (int i = 0; i < 400; i++) {
+            pages.add(makeJsonPage(random));
+        }
+        int[] trace = new int[10000];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = (int) (pages.size() * random.nextFloat() * random.nextFloat());
+        }
+        int maxSize = 512 * 1024;
+
+        DiskBasedCache raw = new DiskBasedCache(new File(mCacheDir, "raw"), maxSize);
+        raw.initialize();
+        long start = System.nanoTime();
+        float rawHitRatio = replay(raw, pages, trace);
+        long rawMs = (System.nanoTime() - start) / 1000000;
+
+        CompressingCache compressed = new CompressingCache(
+                new DiskBasedCache(new File(mCacheDir, "compressed"), maxSize));
+        compressed.initialize();
+        start = System.nanoTime();
+        float compressedHitRatio = replay(compressed, pages, trace);
+        long compressedMs = (System.nanoTime() - start) / 1000000;
+
+        VolleyLog.d("%d reads of %d pages: raw hit ratio %.3f in %d ms; compressed hit ratio "
+                + "%.3f in %d ms, ratio %.1fx, %d us per compression",
+                trace.length, pages.size(), rawHitRatio, rawMs, compressedHitRatio,
+                compressedMs,
+                (float) compressed.getUncompressedBytes() / compressed.getCompressedBytes(),
+                compressed.getCompressionNanos() / 1000
+                        / Math.max(1, Math.round(trace.length * (1 - compressedHitRatio))));
+        assertTrue(compressedHitRatio > rawHitRatio);
+    }
+
+    /** A page of a media feed, around 8KB. */
+    private static byte[] makeJsonPage(Random random) {
+        StringBuilder sb = new StringBuilder("{\"pagination\":{\"next_max_id\":\"")
+                .append(random.nextLong()).append("\"},\"meta\":{\"code\":200},\"data\":[");
+        for (int i = 0; i < 10; i++) {
+            long id = Math.abs(random.nextLong());
+            sb.append("{\"attribution\":null,\"tags\":[],\"type\":\"image\",")
+                    .append("\"location\":null,\"comments\":{\"count\":")
+                    .append(random.nextInt(100)).append("},\"filter\":\"Normal\",")
+                    .append("\"created_time\":\"").append(1400000000 + random.nextInt(1000000))
+                    .append("\",\"link\":\"http://instagram.com/p/").append(id).append("/\",")
+                    .append("\"likes\":{\"count\":").append(random.nextInt(1000)).append("},");
+            for (String size : new String[] { "low_resolution", "thumbnail",
+                    "standard_resolution" }) {
+                sb.append("\"").append(size).append("\":{\"url\":\"http://scontent.cdn")
+                        .append(".example.com/hphotos/").append(id).append("_n.jpg\",")
+                        .append("\"width\":306,\"height\":306},");
+            }
+            sb.append("\"caption\":{\"created_time\":\"1400000000\",\"text\":\"")
+                    .append(Long.toHexString(random.nextLong())).append("\",\"from\":{")
+                    .append("\"username\":\"user").append(random.nextInt(50))
+                    .append("\",\"profile_picture\":\"http://images.example.com/profiles/")
+                    .append("profile_").append(random.nextInt(50)).append("_75sq.jpg\",")
+                    .append("\"id\":\"").append(random.nextInt(100000)).append("\",")
+                    .append("\"full_name\":\"\"},\"id\":\"").append(id).append("\"},")
+                    .append("\"user_has_liked\":false,\"id\":\"").append(id).append("\"},");
+        }
+        return sb.append("{}]}").toString().getBytes();
+    }
+
+    /** Reads each page of the trace, putting the ones missing, and returns the hit ratio. */
+    private static float replay(Cache cache, List<byte[]> pages, int[] trace) {
+        int hits = 0;
+        for (int i = 0; i < trace.length; i++) {
+            String key = makeKey(trace[i]);
+            Cache.Entry entry = cache.get(key);
+            if (entry != null && entry.getData() != null) {
+                hits++;
+            } else {
+                entry = makeEntry(i);
+                entry.data = pages.get(trace[i]);
+                entry.ttl = Long.MAX_VALUE;
+                entry.softTtl = Long.MAX_VALUE;
+                cache.put(key, entry);
+            }
+        }
+        return (float) hits / trace.length;
+    }
+
+    /** Twenty sessions, each reading the frequent keys, then scrolling through 300 images. */
+    private static List<String> makeFeedTrace(Random random) {
+        List<String> trace = new ArrayList<String>();
+        int image = 0;
+        for (int session = 0; session < 20; session++) {
+            for (int i = 0; i < 40; i++) {
+                trace.add(makeKey(i));
+            }
+            for (int i = 0; i < 300; i++) {
+                trace.add("https://images.example.com/feed/" + (image++) + ".jpg");
+                if (i % 5 == 0) {
+                    // Skewed towards the first few, like the current user's own avatar.
+                    int frequent = (int) (40 * random.nextFloat() * random.nextFloat());
+                    trace.add(makeKey(frequent));
+                }
+            }
+        }
+        return trace;
+    }
+
+    /** Reads each key of the trace, putting the ones missing, and returns the hit ratio. */
+    private static float replay(DiskBasedCache cache, List<String> trace) {
+        byte[] body = new byte[1024];
+        int hits = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            String key = trace.get(i);
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                Cache.Entry entry = makeEntry(i);
+                entry.data = body;
+                // Fresh, so that eviction doesn't simply take expired entries first.
+                entry.ttl = Long.MAX_VALUE;
+                entry.softTtl = Long.MAX_VALUE;
+                cache.put(key, entry);
+            }
+        }
+        return (float) hits / trace.size();
+    }
+
+    /** Counts the write calls reaching the wrapped stream. */
+    private static class CountingOutputStream extends FilterOutputStream {
+        int calls = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            calls++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            calls++;
+            out.write(buffer, offset, length);
+        }
+    }
+
+    /** A cache counting the write and read calls reaching its entry files. */
+    private static class CountingDiskBasedCache extends DiskBasedCache {
+        int writes = 0;
+        int reads = 0;
+
+        CountingDiskBasedCache(File rootDirectory) {
+            super(rootDirectory, Integer.MAX_VALUE);
+        }
+
+        @Override
+        FileChannel wrapChannel(FileChannel channel) {
+            return new CountingFileChannel(channel, this);
+        }
+    }
+
+    /** Counts the write and read calls reaching the wrapped channel in a cache. */
+    private static class CountingFileChannel extends FileChannel {
+        private final FileChannel mChannel;
+        private final CountingDiskBasedCache mCounts;
+
+        CountingFileChannel(FileChannel channel, CountingDiskBasedCache counts) {
+            mChannel = channel;
+            mCounts = counts;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            synchronized (mCounts) {
+                mCounts.reads++;
+            }
+            return mChannel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            synchronized (mCounts) {
+                mCounts.reads++;
+            }
+            return mChannel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            synchronized (mCounts) {
+                mCounts.reads++;
+            }
+            return mChannel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            synchronized (mCounts) {
+                mCounts.writes++;
+            }
+            return mChannel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            synchronized (mCounts) {
+                mCounts.writes++;
+            }
+            return mChannel.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            synchronized (mCounts) {
+                mCounts.writes++;
+            }
+            return mChannel.write(src, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return mChannel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            mChannel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            mChannel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            mChannel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+                throws IOException {
+            return mChannel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count)
+                throws IOException {
+            return mChannel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return mChannel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return mChannel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return mChannel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    /** Counts the read calls reaching the wrapped stream and the bytes they return. */
+    private static class CountingInputStream extends FilterInputStream {
+        int calls = 0;
+        int bytes = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            calls++;
+            int result = in.read();
+            if (result != -1) {
+                bytes++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            calls++;
+            int result = in.read(buffer, offset, length);
+            if (result != -1) {
+                bytes += result;
+            }
+            return result;
+        }
+    }
+}
@@ -16,17 +16,626 @@
 
 package com.android.volley.toolbox;
 
-import android.test.AndroidTestCase;
-
 import com.android.volley.Cache;
+import com.android.volley.CacheMetrics;
 import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.utils.CacheDirTestCase;
+import com.android.volley.utils.CacheTestUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class DiskBasedCacheTest extends CacheDirTestCase {
+
+    private DiskBasedCache newInitializedCache() {
+        return CacheTestUtils.initialize(new DiskBasedCache(mCacheDir));
+    }
+
+    // Entries written by one instance are found by the next one via the journal.
+    public void testJournalReplay() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        Cache.Entry first = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        Cache.Entry second = CacheTestUtils.makeRandomCacheEntry(new byte[] { 4, 5 });
+        cache.put("first", first);
+        cache.put("second", second);
+        cache.put("removed", CacheTestUtils.makeRandomCacheEntry(new byte[] { 6 }));
+        cache.remove("removed");
+
+        DiskBasedCache reopened = newInitializedCache();
+        assertEquals(first.etag, reopened.get("first").etag);
+        assertEquals(second.etag, reopened.get("second").etag);
+        assertNull(reopened.get("removed"));
+    }
+
+    // Replaying the journal must not open the entry files.
+    public void testJournalReplayDoesNotReadEntryFiles() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 }));
+
+        // Corrupt the entry file; a directory scan would discard it.
+        FileOutputStream fos = new FileOutputStream(cache.getFileForKey("key"));
+        fos.write(new byte[] { 0, 0, 0, 0 });
+        fos.close();
+
+        DiskBasedCache reopened = newInitializedCache();
+        assertTrue(reopened.getFileForKey("key").exists());
+    }
+
+    // A corrupt journal falls back to scanning the entry files.
+    public void testCorruptJournalFallsBackToScan() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        cache.put("key", entry);
+
+        FileOutputStream fos = new FileOutputStream(
+                new File(mCacheDir, CacheJournal.JOURNAL_FILE), true);
+        fos.write(0x7f);
+        fos.close();
+
+        DiskBasedCache reopened = newInitializedCache();
+        assertEquals(entry.etag, reopened.get("key").etag);
+
+        // The rebuilt journal is usable again.
+        DiskBasedCache again = newInitializedCache();
+        assertEquals(entry.etag, again.get("key").etag);
+    }
+
+    // Entry files named by the old key-halves scheme and written in the original format
+    // are picked up, renamed and, once read, rewritten in the current format.
+    public void testMigratesOldFiles() throws Exception {
+        mCacheDir.mkdirs();
+        String key = "http://example.com/old";
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        int half = key.length() / 2;
+        File oldFile = new File(mCacheDir, String.valueOf(key.substring(0, half).hashCode())
+                + String.valueOf(key.substring(half).hashCode()));
+        FileOutputStream fos = new FileOutputStream(oldFile);
+        new CacheHeader(key, entry).writeLegacyHeader(fos);
+        fos.write(entry.data);
+        fos.close();
+
+        DiskBasedCache cache = newInitializedCache();
+        assertFalse(oldFile.exists());
+        File file = cache.getFileForKey(key);
+        assertTrue(file.exists());
+        assertTrue(readFileHeader(file).legacyFormat);
+        Cache.Entry read = cache.get(key);
+        assertEquals(entry.etag, read.etag);
+        CacheTestUtils.assertData(entry.data, read);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!isMigrated(file)) {
+            assertTrue("Timed out waiting for migration", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        CacheTestUtils.assertData(entry.data, cache.get(key));
+        assertEquals(sizeOfEntryFiles(), cache.getTotalSize());
+    }
+
+    // get() leaves the data on disk, so its metadata is usable without reading the body. A
+    // body that no longer matches its checksum is only noticed once loaded, and then dropped.
+    public void testDataIsLoadedLazily() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        Cache.Entry put = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        cache.put("key", put);
+        File file = cache.getFileForKey("key");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 1);
+        raf.write(4);
+        raf.close();
+
+        Cache.Entry entry = cache.get("key");
+        assertNull(entry.data);
+        assertEquals(put.etag, entry.etag);
+        assertFalse(entry.isExpired());
+        assertNull(entry.getData());
+        assertFalse(file.exists());
+        assertEquals(0, cache.getTotalSize());
+    }
+
+    // The header is written even when there is no data to gather with it.
+    public void testEmptyData() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[0]));
+        Cache.Entry entry = cache.get("key");
+        assertNotNull(entry);
+        assertEquals(0, entry.getData().length);
+    }
+
+    // An entry replaced after get() does not load the new data, nor remove it.
+    public void testReplacedEntryIsNotLoaded() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 }));
+        Cache.Entry stale = cache.get("key");
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 4, 5, 6 }));
+
+        assertNull(stale.getData());
+        CacheTestUtils.assertData(new byte[] { 4, 5, 6 }, cache.get("key"));
+    }
+
+    // Entries above the threshold are served from a mapping that survives later writes.
+    public void testMappedReads() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        cache.setMappedReadThreshold(1024);
+        byte[] large = new byte[4096];
+        new Random(1).nextBytes(large);
+        cache.put("large", CacheTestUtils.makeRandomCacheEntry(large));
+        cache.put("small", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 }));
+
+        assertNull(cache.get("small").getDataBuffer());
+        Cache.Entry entry = cache.get("large");
+        assertNull(entry.data);
+        ByteBuffer buffer = entry.getDataBuffer();
+        byte[] mapped = new byte[buffer.remaining()];
+        buffer.get(mapped);
+        assertTrue(Arrays.equals(large, mapped));
+
+        // Replacing and removing the entry does not disturb the existing mapping.
+        cache.put("large", CacheTestUtils.makeRandomCacheEntry(new byte[4096]));
+        cache.remove("large");
+        CacheTestUtils.assertData(large, entry);
+        assertSame(entry.data, entry.getData());
+    }
+
+    // Invalidating and refreshing an entry only rewrites its metadata; the data is not
+    // rewritten, so a corrupted byte planted in it survives both.
+    public void testMetadataIsUpdatedInPlace() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 }));
+        File file = cache.getFileForKey("key");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 1);
+        raf.write(4);
+        raf.close();
+        byte[] before = readFileBytes(file);
+        int headerLength = readFileHeader(file).headerLength;
+
+        cache.invalidate("key", false);
+        Cache.Entry entry = cache.get("key");
+        assertTrue(entry.refreshNeeded());
+        assertFalse(entry.isExpired());
+
+        cache.invalidate("key", true);
+        assertTrue(cache.get("key").isExpired());
+
+        long now = System.currentTimeMillis();
+        cache.updateMetadata("key", now, now + 20000, now + 10000);
+        entry = cache.get("key");
+        assertEquals(now, entry.serverDate);
+        assertEquals(now + 20000, entry.ttl);
+        assertEquals(now + 10000, entry.softTtl);
+
+        byte[] after = readFileBytes(file);
+        assertEquals(before.length, after.length);
+        for (int i = headerLength; i < before.length; i++) {
+            assertEquals(before[i], after[i]);
+        }
+        assertEquals(before.length, cache.getTotalSize());
+
+        // A new instance sees the new TTLs too.
+        cache = newInitializedCache();
+        assertEquals(now + 20000, cache.get("key").ttl);
+    }
+
+    // The stale-if-error TTL is derived from the stored headers and follows the soft TTL.
+    public void testStaleIfErrorTtlIsDerived() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("Cache-Control", "max-age=10, stale-if-error=60");
+        cache.put("key", entry);
+
+        long now = System.currentTimeMillis();
+        cache.updateMetadata("key", now, now + 10000, now + 10000);
+        assertEquals(now + 70000, cache.get("key").staleIfErrorTtl);
+        cache.invalidate("key", true);
+        assertFalse(cache.get("key").isUsableOnError());
+    }
+
+    private static byte[] readFileBytes(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isMigrated(File file) throws Exception {
+        try {
+            return !readFileHeader(file).legacyFormat;
+        } catch (IOException e) {
+            // Caught while being rewritten.
+            return false;
+        }
+    }
+
+    private static CacheHeader readFileHeader(File file) throws Exception {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return CacheHeader.readHeader(fis);
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static void waitForIndex(DiskBasedCache cache) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!cache.isIndexComplete()) {
+            assertTrue("Timed out waiting for index", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    // With incremental initialization, lookups resolve whether or not the key is indexed yet.
+    public void testIncrementalInitialization() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        Cache.Entry kept = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        Cache.Entry replaced = CacheTestUtils.makeRandomCacheEntry(new byte[] { 4 });
+        cache.put("kept", kept);
+        cache.put("removed", CacheTestUtils.makeRandomCacheEntry(new byte[] { 5, 6 }));
+        cache.put("replaced", CacheTestUtils.makeRandomCacheEntry(new byte[] { 7 }));
+
+        DiskBasedCache reopened = new DiskBasedCache(mCacheDir);
+        reopened.setIncrementalInitialization(true);
+        reopened.initialize();
+        assertEquals(kept.etag, reopened.get("kept").etag);
+        reopened.remove("removed");
+        reopened.put("replaced", replaced);
+        assertNull(reopened.get("missing"));
+        waitForIndex(reopened);
+
+        assertEquals(kept.etag, reopened.get("kept").etag);
+        assertEquals(replaced.etag, reopened.get("replaced").etag);
+        assertNull(reopened.get("removed"));
+
+        // The journal written after indexing reflects the changes made meanwhile.
+        DiskBasedCache again = newInitializedCache();
+        assertEquals(replaced.etag, again.get("replaced").etag);
+        assertNull(again.get("removed"));
+    }
 
-public class DiskBasedCacheTest extends AndroidTestCase {
+    // Concurrent puts, gets, removes and evictions keep the size accounting exact.
+    public void testConcurrentAccessKeepsTotalSizeExact() throws Exception {
+        final DiskBasedCache cache = new DiskBasedCache(mCacheDir, 64 * 1024);
+        cache.initialize();
+        final int threadCount = 8;
+        final int opsPerThread = 500;
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < opsPerThread; i++) {
+                            String key = "key-" + random.nextInt(64);
+                            int op = random.nextInt(10);
+                            if (op < 5) {
+                                byte[] data = new byte[random.nextInt(4096)];
+                                random.nextBytes(data);
+                                cache.put(key, CacheTestUtils.makeRandomCacheEntry(data));
+                            } else if (op < 8) {
+                                Cache.Entry entry = cache.get(key);
+                                if (entry != null) {
+                                    // Null if replaced or removed by another thread since.
+                                    entry.getData();
+                                }
+                            } else if (op < 9) {
+                                cache.remove(key);
+                            } else {
+                                cache.invalidate(key, random.nextBoolean());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new AssertionError(failure[0]);
+            }
+        }
+
+        waitForEviction(cache);
+        assertEquals(sizeOfEntryFiles(), cache.getTotalSize());
+
+        // The journal agrees with the live index.
+        DiskBasedCache reopened = newInitializedCache();
+        assertEquals(cache.getTotalSize(), reopened.getTotalSize());
+    }
+
+    // Passing the high water mark evicts in the background; only a put that would exceed the
+    // maximum size evicts on the caller's thread.
+    public void testEviction() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, 10000);
+        cache.initialize();
+        for (int i = 0; i < 9; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[1000]));
+            assertTrue(cache.getTotalSize() <= 10000);
+        }
+        waitForEviction(cache);
+        DiskBasedCache.EvictionStats stats = cache.getLastEvictionStats();
+        assertTrue(stats.background);
+        assertEquals(1, stats.files);
+        assertTrue(stats.bytes > 1000);
+        assertTrue(cache.getTotalSize() < 9000);
+        assertNull(cache.get("key-0"));
+        assertNotNull(cache.get("key-1"));
+
+        cache.put("large", CacheTestUtils.makeRandomCacheEntry(new byte[2000]));
+        stats = cache.getLastEvictionStats();
+        assertFalse(stats.background);
+        assertEquals(2, stats.files);
+        assertNull(cache.get("key-2"));
+        // key-1 was used more recently than key-3.
+        assertNotNull(cache.get("key-1"));
+        assertNull(cache.get("key-3"));
+        assertEquals(sizeOfEntryFiles(), cache.getTotalSize());
+    }
+
+    // Evictions and the bytes written and read are counted in the cache's metrics.
+    public void testMetrics() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, 10000);
+        CacheMetrics metrics = new CacheMetrics();
+        cache.setCacheMetrics(metrics);
+        cache.initialize();
+        for (int i = 0; i < 9; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[1000]));
+        }
+        waitForEviction(cache);
+        CacheMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.evictions);
+        assertTrue(snapshot.bytesWritten > 9000);
+        assertEquals(0, snapshot.bytesRead);
+
+        cache.get("key-1").getData();
+        assertTrue(metrics.snapshot().bytesRead > 1000);
+    }
+
+    // An eviction policy decides the victims, and is told about the entries already cached.
+    public void testEvictionPolicy() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, 10000);
+        cache.initialize();
+        cache.put("first", CacheTestUtils.makeRandomCacheEntry(new byte[3000]));
+        final long victim = DiskBasedCache.hashKey("first");
+        final Set<Long> known = new HashSet<Long>();
+        cache.setEvictionPolicy(new EvictionPolicy() {
+            @Override
+            public void onWrite(long hash, int size) {
+                known.add(hash);
+            }
+
+            @Override
+            public void onAccess(long hash) {
+            }
+
+            @Override
+            public void onRemove(long hash) {
+                known.remove(hash);
+            }
+
+            @Override
+            public long nextVictim() {
+                // The most recently used entry, which LRU would keep.
+                return known.contains(victim) ? victim : 0;
+            }
+
+            @Override
+            public void clear() {
+                known.clear();
+            }
+        });
+        assertTrue(known.contains(victim));
+
+        cache.put("second", CacheTestUtils.makeRandomCacheEntry(new byte[3000]));
+        cache.put("third", CacheTestUtils.makeRandomCacheEntry(new byte[3000]));
+        assertNotNull(cache.get("first"));
+        cache.put("fourth", CacheTestUtils.makeRandomCacheEntry(new byte[3000]));
+
+        // Room for the new entry takes two evictions; once the policy has no more victims, the
+        // least recently used entry goes.
+        assertNull(cache.get("first"));
+        assertFalse(known.contains(victim));
+        assertNull(cache.get("second"));
+        assertNotNull(cache.get("third"));
+        assertEquals(2, known.size());
+    }
+
+    // Expired entries are evicted before live ones, however recently they were used.
+    public void testExpiredEntriesAreEvictedFirst() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, 10000);
+        cache.initialize();
+        cache.put("live", CacheTestUtils.makeRandomCacheEntry(new byte[3000]));
+        cache.put("expired", CacheTestUtils.makeRandomCacheEntry(new byte[3000], true, true));
+        cache.put("invalidated", CacheTestUtils.makeRandomCacheEntry(new byte[3000]));
+        cache.invalidate("invalidated", true);
+        assertNotNull(cache.get("expired"));
+        assertNotNull(cache.get("invalidated"));
+
+        cache.put("new", CacheTestUtils.makeRandomCacheEntry(new byte[3000]));
+        DiskBasedCache.EvictionStats stats = cache.getLastEvictionStats();
+        assertEquals(2, stats.files);
+        assertEquals(2, stats.expiredFiles);
+        assertEquals(stats.bytes, stats.expiredBytes);
+        assertNull(cache.get("expired"));
+        assertNull(cache.get("invalidated"));
+        assertNotNull(cache.get("live"));
+        assertEquals(2, cache.getExpiredFilesReclaimed());
+        assertEquals(stats.expiredBytes, cache.getExpiredBytesReclaimed());
+    }
+
+    // Pinned entries are skipped by eviction, even once expired, until they are unpinned.
+    public void testPinnedEntriesAreNotEvicted() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, 10000);
+        cache.setMaxPinnedBytes(5000);
+        cache.initialize();
+        cache.put("pinned", CacheTestUtils.makeRandomCacheEntry(new byte[2000], true, true));
+        assertTrue(cache.pin("pinned"));
+        assertTrue(cache.isPinned("pinned"));
+        assertTrue(cache.getPinnedBytes() > 2000);
+        for (int i = 0; i < 12; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[1000]));
+        }
+        cache.trimToSize(0);
+        assertNotNull(cache.get("pinned"));
+        assertEquals(cache.getPinnedBytes(), cache.getTotalSize());
+
+        cache.unpin("pinned");
+        assertFalse(cache.isPinned("pinned"));
+        assertEquals(0, cache.getPinnedBytes());
+        cache.put("new", CacheTestUtils.makeRandomCacheEntry(new byte[9000]));
+        assertNull(cache.get("pinned"));
+        assertEquals(1, cache.getLastEvictionStats().expiredFiles);
+    }
+
+    // Pins are also hidden from the eviction policy.
+    public void testPinnedEntriesAreNotEvictedByPolicy() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, 10000);
+        cache.setEvictionPolicy(new TinyLfuEvictionPolicy(10000));
+        cache.initialize();
+        cache.put("pinned", CacheTestUtils.makeRandomCacheEntry(new byte[1000]));
+        assertTrue(cache.pin("pinned"));
+        for (int i = 0; i < 20; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[1000]));
+            cache.get("pinned");
+        }
+        cache.trimToSize(0);
+        assertNotNull(cache.get("pinned"));
+        cache.unpin("pinned");
+        cache.trimToSize(0);
+        assertNull(cache.get("pinned"));
+    }
+
+    public void testPinnedBytesBudget() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        cache.setMaxPinnedBytes(3000);
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(new byte[1000]));
+        cache.put("b", CacheTestUtils.makeRandomCacheEntry(new byte[2000]));
+        assertFalse(cache.pin("missing"));
+        assertTrue(cache.pin("a"));
+        assertTrue(cache.pin("a"));
+        assertFalse(cache.pin("b"));
+        assertFalse(cache.isPinned("b"));
+
+        // Replacing a pinned entry keeps it pinned, unless it no longer fits the budget.
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(new byte[1500]));
+        assertTrue(cache.isPinned("a"));
+        cache.put("a", CacheTestUtils.makeRandomCacheEntry(new byte[4000]));
+        assertFalse(cache.isPinned("a"));
+        assertEquals(0, cache.getPinnedBytes());
+
+        assertTrue(cache.pin("b"));
+        cache.remove("b");
+        assertEquals(0, cache.getPinnedBytes());
+        cache.put("b", CacheTestUtils.makeRandomCacheEntry(new byte[2000]));
+        assertFalse(cache.isPinned("b"));
+    }
+
+    // Pins are journaled, and kept when the journal is compacted.
+    public void testPinsArePersisted() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        cache.put("pinned", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        cache.put("unpinned", CacheTestUtils.makeRandomCacheEntry(new byte[] { 2 }));
+        cache.pin("pinned");
+        cache.pin("unpinned");
+        cache.unpin("unpinned");
+
+        DiskBasedCache reopened = newInitializedCache();
+        assertTrue(reopened.isPinned("pinned"));
+        assertFalse(reopened.isPinned("unpinned"));
+        assertEquals(cache.getPinnedBytes(), reopened.getPinnedBytes());
+
+        long journalLength = new File(mCacheDir, CacheJournal.JOURNAL_FILE).length();
+        for (int i = 0; i < 2000; i++) {
+            reopened.get("unpinned");
+        }
+        reopened.remove("unpinned");
+        assertTrue(new File(mCacheDir, CacheJournal.JOURNAL_FILE).length() < journalLength);
+        assertTrue(newInitializedCache().isPinned("pinned"));
+    }
+
+    // An entry unpinned before the index is built stays unpinned once it is.
+    public void testUnpinWhileIndexing() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        cache.put("pinned", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        cache.put("unpinned", CacheTestUtils.makeRandomCacheEntry(new byte[] { 2 }));
+        cache.pin("pinned");
+        cache.pin("unpinned");
+
+        DiskBasedCache reopened = new DiskBasedCache(mCacheDir);
+        reopened.setIncrementalInitialization(true);
+        // Holding the lock keeps the indexer from finishing.
+        synchronized (reopened) {
+            reopened.initialize();
+            reopened.unpin("unpinned");
+            assertFalse(reopened.isIndexComplete());
+        }
+        waitForIndex(reopened);
+        assertTrue(reopened.isPinned("pinned"));
+        assertFalse(reopened.isPinned("unpinned"));
+        assertFalse(newInitializedCache().isPinned("unpinned"));
+    }
+
+    // The sweep evicts expired entries while there is still room.
+    public void testExpirySweep() throws Exception {
+        DiskBasedCache cache = newInitializedCache();
+        cache.put("live", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 }));
+        cache.put("expired", CacheTestUtils.makeRandomCacheEntry(new byte[] { 4 }, true, true));
+        cache.setExpirySweepInterval(10);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getExpiredFilesReclaimed() == 0) {
+            assertTrue("Timed out waiting for sweep", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        cache.setExpirySweepInterval(0);
+        assertNull(cache.get("expired"));
+        assertNotNull(cache.get("live"));
+        assertTrue(cache.getLastEvictionStats().background);
+        assertEquals(sizeOfEntryFiles(), cache.getTotalSize());
+    }
+
+    private static void waitForEviction(DiskBasedCache cache) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.isEvictionPending()) {
+            assertTrue("Timed out waiting for eviction", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private long sizeOfEntryFiles() {
+        long size = 0;
+        for (File file : mCacheDir.listFiles()) {
+            if (!CacheJournal.isJournalFile(file)) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
 
     // Simple end-to-end serialize/deserialize test.
     public void testCacheHeaderSerialization() throws Exception {
@@ -51,6 +660,26 @@ public class DiskBasedCacheTest extends AndroidTestCase {
         assertEquals(first.softTtl, second.softTtl);
         assertEquals(first.etag, second.etag);
         assertEquals(first.responseHeaders, second.responseHeaders);
+        assertEquals(first.size, second.size);
+        assertEquals(first.bodyCrc, second.bodyCrc);
+        assertEquals(baos.size(), second.headerLength);
+    }
+
+    public void testLegacyCacheHeaderSerialization() throws Exception {
+        Cache.Entry e = CacheTestUtils.makeRandomCacheEntry(null);
+        e.responseHeaders = new HashMap<String, String>();
+        e.responseHeaders.put("fruit", "banana");
+
+        CacheHeader first = new CacheHeader("my-magical-key", e);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        first.writeLegacyHeader(baos);
+        CacheHeader second = CacheHeader.readHeader(new ByteArrayInputStream(baos.toByteArray()));
+
+        assertTrue(second.legacyFormat);
+        assertEquals(first.key, second.key);
+        assertEquals(first.etag, second.etag);
+        assertEquals(first.ttl, second.ttl);
+        assertEquals(first.responseHeaders, second.responseHeaders);
     }
 
     public void testSerializeInt() throws Exception {
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ExpiryQueueTest extends TestCase {
+
+    public void testPollsInTtlOrder() {
+        ExpiryQueue queue = new ExpiryQueue();
+        Random random = new Random(1);
+        long[] ttls = new long[1000];
+        for (int i = 0; i < ttls.length; i++) {
+            ttls[i] = random.nextInt(100);
+            queue.add(ttls[i] * 7 + 1, ttls[i]);
+        }
+        Arrays.sort(ttls);
+        for (long ttl : ttls) {
+            assertEquals(ttl, queue.peekTtl());
+            assertEquals(ttl * 7 + 1, queue.peekHash());
+            queue.poll();
+        }
+        assertEquals(0, queue.size());
+    }
+
+    public void testClear() {
+        ExpiryQueue queue = new ExpiryQueue();
+        queue.add(1, 10);
+        queue.add(2, 5);
+        queue.clear();
+        assertEquals(0, queue.size());
+        queue.add(3, 20);
+        assertEquals(3, queue.peekHash());
+    }
+}
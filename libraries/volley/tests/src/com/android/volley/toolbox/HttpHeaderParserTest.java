@@ -160,6 +160,99 @@ public class HttpHeaderParserTest extends TestCase {
         assertEquals(entry.softTtl, entry.ttl);
     }
 
+    public void testParseCacheHeaders_varyStar() {
+        headers.put("Cache-Control", "max-age=60");
+        headers.put("Vary", "Accept, *");
+
+        assertNull(HttpHeaderParser.parseCacheHeaders(response));
+
+        headers.put("Vary", "Accept");
+        assertNotNull(HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    public void testParseCacheHeaders_staleWhileRevalidate() {
+        long now = System.currentTimeMillis();
+        headers.put("Date", rfc1123Date(now));
+        headers.put("Cache-Control", "max-age=60, stale-while-revalidate=3600");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertNotNull(entry);
+        assertEqualsWithin(now + ONE_MINUTE_MILLIS, entry.softTtl, ONE_MINUTE_MILLIS);
+        assertEqualsWithin(now + ONE_MINUTE_MILLIS + ONE_HOUR_MILLIS, entry.ttl,
+                ONE_MINUTE_MILLIS);
+        assertEquals(entry.softTtl, entry.staleIfErrorTtl);
+    }
+
+    public void testParseCacheHeaders_staleIfError() {
+        long now = System.currentTimeMillis();
+        headers.put("Date", rfc1123Date(now));
+        headers.put("Cache-Control", "max-age=60, stale-if-error=3600");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertNotNull(entry);
+        assertEquals(entry.softTtl, entry.ttl);
+        assertEquals(entry.softTtl + ONE_HOUR_MILLIS, entry.staleIfErrorTtl);
+        assertEquals(ONE_HOUR_MILLIS, HttpHeaderParser.parseStaleIfError(headers));
+    }
+
+    public void testParseCacheHeaders_staleWhileRevalidateAndStaleIfError() {
+        long now = System.currentTimeMillis();
+        headers.put("Date", rfc1123Date(now));
+        headers.put("Cache-Control", "max-age=0, stale-while-revalidate=60, stale-if-error=3600");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertNotNull(entry);
+        assertEqualsWithin(now, entry.softTtl, ONE_MINUTE_MILLIS);
+        assertEquals(entry.softTtl + ONE_MINUTE_MILLIS, entry.ttl);
+        assertEquals(entry.softTtl + ONE_HOUR_MILLIS, entry.staleIfErrorTtl);
+        assertFalse(entry.isExpired());
+        assertTrue(entry.isUsableOnError());
+    }
+
+    public void testParseCacheHeaders_staleDirectivesIgnoredWithMustRevalidate() {
+        long now = System.currentTimeMillis();
+        headers.put("Date", rfc1123Date(now));
+        headers.put("Cache-Control",
+                "max-age=60, must-revalidate, stale-while-revalidate=60, stale-if-error=60");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertNotNull(entry);
+        assertEqualsWithin(now, entry.ttl, ONE_MINUTE_MILLIS);
+        assertEquals(entry.softTtl, entry.ttl);
+        assertEquals(entry.softTtl, entry.staleIfErrorTtl);
+        assertEquals(0, HttpHeaderParser.parseStaleIfError(headers));
+    }
+
+    public void testParseFreshnessLifetime() {
+        assertEquals(0, HttpHeaderParser.parseFreshnessLifetime(headers));
+
+        long now = System.currentTimeMillis();
+        // The server's clock is an hour ahead of ours, which doesn't change the lifetime.
+        headers.put("Date", rfc1123Date(now + ONE_HOUR_MILLIS));
+        headers.put("Expires", rfc1123Date(now + 3 * ONE_HOUR_MILLIS));
+        assertEquals(2 * ONE_HOUR_MILLIS, HttpHeaderParser.parseFreshnessLifetime(headers));
+
+        headers.put("Cache-Control", "public, max-age=60");
+        assertEquals(ONE_MINUTE_MILLIS, HttpHeaderParser.parseFreshnessLifetime(headers));
+
+        headers.put("Cache-Control", "max-age=60, must-revalidate");
+        assertEquals(0, HttpHeaderParser.parseFreshnessLifetime(headers));
+    }
+
+    public void testParseCacheHeaders_invalidStaleDirectives() {
+        headers.put("Cache-Control", "max-age=60, stale-while-revalidate=x, stale-if-error=-5");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertNotNull(entry);
+        assertEquals(entry.softTtl, entry.ttl);
+        assertEquals(entry.softTtl, entry.staleIfErrorTtl);
+    }
+
     private void assertEqualsWithin(long expected, long value, long fudgeFactor) {
         long diff = Math.abs(expected - value);
         assertTrue(diff < fudgeFactor);
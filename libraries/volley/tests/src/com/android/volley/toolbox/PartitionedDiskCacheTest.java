@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.utils.CacheDirTestCase;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.util.List;
+
+public class PartitionedDiskCacheTest extends CacheDirTestCase {
+
+    private PartitionedDiskCache newInitializedCache(int overflowBytes) {
+        PartitionedDiskCache cache = new PartitionedDiskCache(mCacheDir, overflowBytes);
+        cache.addPartition("api", 10000);
+        cache.addPartition("images", 10000);
+        return CacheTestUtils.initialize(cache);
+    }
+
+    private static PartitionedDiskCache.PartitionStats getStats(
+            PartitionedDiskCache cache, String name) {
+        List<PartitionedDiskCache.PartitionStats> stats = cache.getPartitionStats();
+        for (PartitionedDiskCache.PartitionStats partition : stats) {
+            if (partition.name.equals(name)) {
+                return partition;
+            }
+        }
+        fail("No partition " + name);
+        return null;
+    }
+
+    public void testPartitionSelection() throws Exception {
+        PartitionedDiskCache cache = newInitializedCache(4000);
+        cache.put("photo", CacheTestUtils.makeRandomCacheEntry(new byte[100], "image/jpeg"));
+        cache.put("feed", CacheTestUtils.makeRandomCacheEntry(new byte[100], "application/json"));
+        cache.put("api", "avatar", CacheTestUtils.makeRandomCacheEntry(new byte[100], "image/png"));
+        cache.put("logo", CacheTestUtils.makeRandomCacheEntry(new byte[100], "IMAGE/PNG"));
+        assertEquals(2, getStats(cache, "images").puts);
+        assertEquals(2, getStats(cache, "api").puts);
+
+        // Revalidated entries stay where they are, and declaring a partition moves them.
+        cache.put("feed", CacheTestUtils.makeRandomCacheEntry(new byte[100], "image/jpeg"));
+        assertEquals(3, getStats(cache, "api").puts);
+        cache.put("images", "feed",
+                CacheTestUtils.makeRandomCacheEntry(new byte[100], "image/jpeg"));
+        assertEquals(3, getStats(cache, "images").puts);
+        assertNotNull(cache.get("feed"));
+        assertEquals(1, getStats(cache, "images").hits);
+
+        cache.remove("feed");
+        assertNull(cache.get("feed"));
+        assertNotNull(cache.get("avatar"));
+        assertEquals(1, getStats(cache, "api").hits);
+    }
+
+    // A partition filling up can use the overflow pool but never takes another's quota.
+    public void testQuotaProtectsOtherPartitions() throws Exception {
+        PartitionedDiskCache cache = newInitializedCache(4000);
+        for (int i = 0; i < 8; i++) {
+            cache.put("api", "api-" + i,
+                    CacheTestUtils.makeRandomCacheEntry(new byte[1000], "application/json"));
+        }
+        for (int i = 0; i < 40; i++) {
+            cache.put("images", "image-" + i,
+                    CacheTestUtils.makeRandomCacheEntry(new byte[1000], "image/jpeg"));
+        }
+        for (int i = 0; i < 8; i++) {
+            assertNotNull(cache.get("api-" + i));
+        }
+        PartitionedDiskCache.PartitionStats images = getStats(cache, "images");
+        assertTrue(images.sizeBytes > 10000);
+        assertTrue(images.sizeBytes <= 14000);
+        assertTrue(cache.getBorrowedBytes() <= 4000);
+        assertNotNull(cache.get("image-39"));
+        assertNull(cache.get("image-0"));
+    }
+
+    // When the pool runs out, the partition that borrowed the most gives space back.
+    public void testLargestBorrowerGivesBackOverflow() throws Exception {
+        PartitionedDiskCache cache = newInitializedCache(8000);
+        for (int i = 0; i < 15; i++) {
+            cache.put("images", "image-" + i,
+                    CacheTestUtils.makeRandomCacheEntry(new byte[1000], "image/jpeg"));
+        }
+        long borrowed = getStats(cache, "images").borrowedBytes;
+        assertTrue(borrowed > 5000);
+        for (int i = 0; i < 12; i++) {
+            cache.put("api", "api-" + i,
+                    CacheTestUtils.makeRandomCacheEntry(new byte[1000], "application/json"));
+        }
+        // Reclaimed in the background.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getBorrowedBytes() > 8000) {
+            assertTrue("Timed out waiting for reclaim", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        PartitionedDiskCache.PartitionStats images = getStats(cache, "images");
+        PartitionedDiskCache.PartitionStats api = getStats(cache, "api");
+        assertTrue(api.borrowedBytes > 0);
+        assertTrue(images.borrowedBytes < borrowed);
+        assertTrue(images.reclaimedBytes > 0);
+        assertEquals(0, api.reclaimedBytes);
+        assertTrue(images.sizeBytes >= images.quotaBytes);
+        assertTrue(cache.getBorrowedBytes() <= 8000);
+        assertNotNull(cache.get("api-0"));
+    }
+
+    public void testUnknownPartitionUsesFirst() throws Exception {
+        PartitionedDiskCache cache = newInitializedCache(4000);
+        cache.put("videos", "clip",
+                CacheTestUtils.makeRandomCacheEntry(new byte[100], "video/mp4"));
+        assertEquals(1, getStats(cache, "api").puts);
+        assertNotNull(cache.get("clip"));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class QueryCacheKeyNormalizerTest extends TestCase {
+
+    private QueryCacheKeyNormalizer mNormalizer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mNormalizer = new QueryCacheKeyNormalizer("access_token", "client_id");
+    }
+
+    public void testIgnoredParametersAreRemoved() {
+        assertEquals("https://example.com/v1/media?count=5",
+                mNormalizer.normalize("https://example.com/v1/media?count=5&access_token=abc"));
+        assertEquals("https://example.com/v1/media?count=5",
+                mNormalizer.normalize("https://example.com/v1/media?client_id=xyz&count=5"));
+        assertEquals("https://example.com/v1/media",
+                mNormalizer.normalize("https://example.com/v1/media?access_token=abc"));
+    }
+
+    public void testParametersAreSorted() {
+        assertEquals("http://example.com/search?a=1&b=2&c",
+                mNormalizer.normalize("http://example.com/search?c&b=2&&a=1"));
+    }
+
+    public void testSchemeAndHostAreLowerCased() {
+        assertEquals("https://example.com/Path/File?Q=X",
+                mNormalizer.normalize("HTTPS://Example.COM/Path/File?Q=X#Fragment"));
+        assertEquals("http://example.com", mNormalizer.normalize("HTTP://EXAMPLE.COM"));
+        assertEquals("relative/Path", mNormalizer.normalize("relative/Path"));
+    }
+
+    public void testRequestUsesNormalizer() {
+        Request<Void> request = new Request<Void>("http://example.com/?b=1&a=2", null) {
+            @Override
+            protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+                return null;
+            }
+
+            @Override
+            protected void deliverResponse(Void response) {
+            }
+        };
+        assertEquals("http://example.com/?b=1&a=2", request.getCacheKey());
+
+        RequestQueue queue = new RequestQueue(new NoCache(), null, 1, null);
+        queue.setCacheKeyNormalizer(new RequestQueue.CacheKeyNormalizer() {
+            @Override
+            public String normalize(String url) {
+                return "queue";
+            }
+        });
+        request.setRequestQueue(queue);
+        assertEquals("queue", request.getCacheKey());
+
+        request.setCacheKeyNormalizer(mNormalizer);
+        assertEquals("http://example.com/?a=2&b=1", request.getCacheKey());
+    }
+}
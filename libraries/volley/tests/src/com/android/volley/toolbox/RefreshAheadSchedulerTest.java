@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.volley.Cache;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.mock.MockCache;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class RefreshAheadSchedulerTest extends TestCase {
+
+    private MockCache mCache;
+    private List<Request<?>> mAdded;
+    private RefreshAheadScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new MockCache();
+        mAdded = new ArrayList<Request<?>>();
+        RequestQueue queue = new RequestQueue(mCache, null, 1, null) {
+            @Override
+            public <T> Request<T> add(Request<T> request) {
+                mAdded.add(request);
+                return request;
+            }
+        };
+        mScheduler = new RefreshAheadScheduler(queue, 0.1f, 3, 1000);
+    }
+
+    /** Returns an entry with a freshness lifetime of 100 seconds and the given time left. */
+    private static Cache.Entry makeEntry(long secondsLeft) {
+        long now = System.currentTimeMillis();
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 });
+        entry.serverDate = now - (100 - secondsLeft) * 1000;
+        entry.softTtl = now + secondsLeft * 1000;
+        entry.ttl = entry.softTtl;
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("Cache-Control", "max-age=100");
+        return entry;
+    }
+
+    private void use(MockRequest request, int times) {
+        for (int i = 0; i < times; i++) {
+            mScheduler.add(request);
+        }
+        mAdded.clear();
+    }
+
+    public void testFrequentlyUsedEntryIsRevalidatedOnce() {
+        MockRequest request = new MockRequest();
+        use(request, 3);
+        Cache.Entry entry = makeEntry(5);
+        mCache.setEntryToReturn(entry);
+
+        mScheduler.checkNow();
+        assertEquals(1, mAdded.size());
+        Request<?> revalidation = mAdded.get(0);
+        assertEquals(request.getUrl(), revalidation.getUrl());
+        assertEquals(request.getCacheKey(), revalidation.getCacheKey());
+        assertSame(entry, revalidation.getCacheEntry());
+        assertEquals(Request.Priority.LOW, revalidation.getPriority());
+        assertEquals(Request.CachePolicy.NETWORK_ONLY, revalidation.getCachePolicy());
+
+        // Not again for the same version of the entry.
+        mScheduler.checkNow();
+        assertEquals(1, mAdded.size());
+        mCache.setEntryToReturn(makeEntry(4));
+        mScheduler.checkNow();
+        assertEquals(2, mAdded.size());
+    }
+
+    public void testEntryWithTimeLeftIsNotRevalidated() {
+        use(new MockRequest(), 3);
+        mCache.setEntryToReturn(makeEntry(50));
+        mScheduler.checkNow();
+        assertEquals(0, mAdded.size());
+    }
+
+    // The server date is on the server's clock, so it doesn't decide when an entry is due.
+    public void testServerClockSkewIsIgnored() {
+        use(new MockRequest(), 3);
+        Cache.Entry entry = makeEntry(5);
+        entry.serverDate += 60 * 60 * 1000;
+        mCache.setEntryToReturn(entry);
+        mScheduler.checkNow();
+        assertEquals(1, mAdded.size());
+
+        entry = makeEntry(50);
+        entry.serverDate -= 60 * 60 * 1000;
+        mCache.setEntryToReturn(entry);
+        mScheduler.checkNow();
+        assertEquals(1, mAdded.size());
+    }
+
+    public void testRarelyUsedEntryIsNotRevalidated() {
+        use(new MockRequest(), 2);
+        mCache.setEntryToReturn(makeEntry(5));
+        mScheduler.checkNow();
+        assertEquals(0, mAdded.size());
+    }
+
+    public void testUncachedRequestsAreNotTracked() {
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        use(request, 3);
+        mCache.setEntryToReturn(makeEntry(5));
+        mScheduler.checkNow();
+        assertEquals(0, mAdded.size());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.CacheMetrics;
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.Network;
+import com.android.volley.NetworkDispatcher;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.utils.CacheDirTestCase;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class RevalidationRequestTest extends CacheDirTestCase {
+
+    // A 304 refreshes the entry without the cached data being read from disk.
+    public void testNotModifiedDoesNotReadCachedData() throws Exception {
+        DiskBasedCache cache = CacheTestUtils.initialize(new DiskBasedCache(mCacheDir));
+        CacheMetrics metrics = new CacheMetrics();
+        cache.setCacheMetrics(metrics);
+        Cache.Entry stale = CacheTestUtils.makeRandomCacheEntry(new byte[4096], true, true);
+        cache.put("key", stale);
+        Cache.Entry entry = cache.get("key");
+        long headerBytes = metrics.snapshot().bytesRead;
+
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Cache-Control", "max-age=60");
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                return new NetworkResponse(304, null, headers, true, 0);
+            }
+        };
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        BlockingQueue<Request<?>> queue = new LinkedBlockingQueue<Request<?>>();
+        NetworkDispatcher dispatcher = new NetworkDispatcher(queue, network, cache,
+                new ExecutorDelivery(direct), metrics);
+        dispatcher.start();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] notModified = new boolean[1];
+        queue.add(new RevalidationRequest("http://example.com/", "key",
+                Collections.<String, String>emptyMap(), entry,
+                new Response.Listener<Boolean>() {
+                    @Override
+                    public void onResponse(Boolean response) {
+                        notModified[0] = response;
+                        done.countDown();
+                    }
+                }, null));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        dispatcher.quit();
+        dispatcher.join();
+
+        assertTrue(notModified[0]);
+        assertEquals(headerBytes, metrics.snapshot().bytesRead);
+        assertEquals(1, metrics.snapshot().notModified);
+        assertFalse(cache.get("key").isExpired());
+    }
+
+    // A CacheRevalidator run through a RequestQueue refreshes the variant a key resolves to.
+    public void testRevalidatorRefreshesVariant() throws Exception {
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Cache-Control", "max-age=60");
+        headers.put("Vary", "Accept");
+        DiskBasedCache cache = CacheTestUtils.initialize(new DiskBasedCache(mCacheDir));
+        Cache.Entry varyEntry = CacheTestUtils.makeRandomCacheEntry(new byte[0]);
+        varyEntry.ttl = Long.MAX_VALUE;
+        varyEntry.softTtl = Long.MAX_VALUE;
+        varyEntry.responseHeaders = headers;
+        cache.put("http://foo.com/", varyEntry);
+        Cache.Entry variant = CacheTestUtils.makeRandomCacheEntry(new byte[4096], true, true);
+        variant.responseHeaders = headers;
+        String variantKey = "http://foo.com/\naccept:application/json";
+        cache.put(variantKey, variant);
+
+        // The queue's cache finds the entries while it indexes them.
+        cache = new DiskBasedCache(mCacheDir);
+        CacheMetrics metrics = new CacheMetrics();
+        cache.setCacheMetrics(metrics);
+        final Map<String, String> sent = Collections.synchronizedMap(
+                new HashMap<String, String>());
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                sent.putAll(request.getHeaders());
+                return new NetworkResponse(304, null, headers, true, 0);
+            }
+        };
+        RequestQueue queue = new RequestQueue(cache, network, 1);
+        queue.start();
+
+        CacheRevalidator revalidator = new CacheRevalidator(queue);
+        revalidator.setHeaderResolver(new CacheRevalidator.HeaderResolver() {
+            @Override
+            public Map<String, String> getHeaders(String cacheKey) {
+                return Collections.singletonMap("Accept", "application/json");
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(1);
+        final CacheRevalidator.Result[] result = new CacheRevalidator.Result[1];
+        revalidator.revalidate(Arrays.asList("http://foo.com/"),
+                new Response.Listener<CacheRevalidator.Result>() {
+                    @Override
+                    public void onResponse(CacheRevalidator.Result response) {
+                        result[0] = response;
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        queue.stop();
+
+        assertEquals(1, result[0].notModified);
+        assertEquals("application/json", sent.get("Accept"));
+        assertTrue(metrics.snapshot().bytesRead < 4096);
+        assertFalse(cache.get(variantKey).refreshNeeded());
+    }
+}
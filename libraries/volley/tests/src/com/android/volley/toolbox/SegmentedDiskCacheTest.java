@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.utils.CacheDirTestCase;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+public class SegmentedDiskCacheTest extends CacheDirTestCase {
+
+    private SegmentedDiskCache newInitializedCache() {
+        return CacheTestUtils.initialize(new SegmentedDiskCache(mCacheDir, 100000, 4096));
+    }
+
+    public void testPutGetAndRemove() throws Exception {
+        SegmentedDiskCache cache = newInitializedCache();
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        cache.put("key", entry);
+        Cache.Entry hit = cache.get("key");
+        CacheTestUtils.assertData(entry.data, hit);
+        assertEquals(entry.etag, hit.etag);
+        assertEquals(entry.ttl, hit.ttl);
+        assertEquals(entry.responseHeaders, hit.responseHeaders);
+
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 4 }));
+        CacheTestUtils.assertData(new byte[] { 4 }, cache.get("key"));
+        cache.remove("key");
+        assertNull(cache.get("key"));
+        assertNull(cache.get("other"));
+        assertEquals(0, cache.getTotalSize());
+        assertEquals(1, cache.getSegmentCount());
+    }
+
+    // Records appended after the index was saved are found by scanning, and records removed
+    // after it was saved are not served.
+    public void testSavedIndexAndTailScan() throws Exception {
+        SegmentedDiskCache cache = newInitializedCache();
+        cache.put("saved", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        cache.put("removed", CacheTestUtils.makeRandomCacheEntry(new byte[] { 2 }));
+        cache.put("replaced", CacheTestUtils.makeRandomCacheEntry(new byte[] { 3 }));
+        cache.runMaintenance();
+        assertTrue(new File(mCacheDir, "index").exists());
+        cache.remove("removed");
+        cache.put("replaced", CacheTestUtils.makeRandomCacheEntry(new byte[] { 4 }));
+        cache.put("appended", CacheTestUtils.makeRandomCacheEntry(new byte[] { 5 }));
+
+        SegmentedDiskCache reopened = newInitializedCache();
+        CacheTestUtils.assertData(new byte[] { 1 }, reopened.get("saved"));
+        assertNull(reopened.get("removed"));
+        CacheTestUtils.assertData(new byte[] { 4 }, reopened.get("replaced"));
+        CacheTestUtils.assertData(new byte[] { 5 }, reopened.get("appended"));
+        assertEquals(cache.getTotalSize(), reopened.getTotalSize());
+    }
+
+    // Without a saved index all segments are scanned, and an incomplete record at the end of
+    // a segment is dropped.
+    public void testFullScan() throws Exception {
+        SegmentedDiskCache cache = newInitializedCache();
+        for (int i = 0; i < 20; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[500]));
+        }
+        cache.put("key-0", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        cache.remove("key-1");
+        assertTrue(cache.getSegmentCount() > 1);
+        new File(mCacheDir, "index").delete();
+        File last = new File(mCacheDir, "segment-" + (cache.getSegmentCount() - 1));
+        FileOutputStream fos = new FileOutputStream(last, true);
+        fos.write(new byte[] { 1, 18, 20, 32, 100 });
+        fos.close();
+        long length = last.length();
+
+        SegmentedDiskCache reopened = newInitializedCache();
+        CacheTestUtils.assertData(new byte[] { 1 }, reopened.get("key-0"));
+        assertNull(reopened.get("key-1"));
+        for (int i = 2; i < 20; i++) {
+            CacheTestUtils.assertData(new byte[500], reopened.get("key-" + i));
+        }
+        assertEquals(cache.getTotalSize(), reopened.getTotalSize());
+        assertEquals(length - 5, last.length());
+    }
+
+    // Segments that are mostly dead are compacted into the current one and deleted, and
+    // segments without live records are simply deleted.
+    public void testCompaction() throws Exception {
+        SegmentedDiskCache cache = newInitializedCache();
+        for (int i = 0; i < 40; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[400]));
+        }
+        int segments = cache.getSegmentCount();
+        long diskUsage = cache.getDiskUsage();
+        for (int i = 0; i < 40; i++) {
+            if (i % 4 != 0) {
+                cache.remove("key-" + i);
+            }
+        }
+        cache.runMaintenance();
+        assertTrue(cache.getCompactedSegmentCount() >= segments - 1);
+        assertTrue(cache.getSegmentCount() < segments);
+        assertTrue(cache.getDiskUsage() < diskUsage / 2);
+        for (int i = 0; i < 40; i += 4) {
+            CacheTestUtils.assertData(new byte[400], cache.get("key-" + i));
+        }
+
+        // The saved index reflects the compaction.
+        SegmentedDiskCache reopened = newInitializedCache();
+        assertEquals(cache.getTotalSize(), reopened.getTotalSize());
+        for (int i = 0; i < 40; i += 4) {
+            CacheTestUtils.assertData(new byte[400], reopened.get("key-" + i));
+        }
+    }
+
+    public void testEviction() throws Exception {
+        SegmentedDiskCache cache = new SegmentedDiskCache(mCacheDir, 10000, 4096);
+        cache.initialize();
+        for (int i = 0; i < 9; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[1000]));
+        }
+        cache.get("key-0");
+        cache.put("large", CacheTestUtils.makeRandomCacheEntry(new byte[2000]));
+        assertTrue(cache.getTotalSize() <= 10000);
+        assertNotNull(cache.get("key-0"));
+        assertNull(cache.get("key-1"));
+        assertNotNull(cache.get("large"));
+    }
+
+    public void testMetadataUpdates() throws Exception {
+        SegmentedDiskCache cache = newInitializedCache();
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        cache.invalidate("key", false);
+        Cache.Entry entry = cache.get("key");
+        assertTrue(entry.refreshNeeded());
+        assertFalse(entry.isExpired());
+
+        cache.updateMetadata("key", 5, Long.MAX_VALUE, Long.MAX_VALUE);
+        SegmentedDiskCache reopened = newInitializedCache();
+        entry = reopened.get("key");
+        assertEquals(5, entry.serverDate);
+        assertFalse(entry.refreshNeeded());
+        CacheTestUtils.assertData(new byte[] { 1 }, entry);
+    }
+
+    public void testClear() throws Exception {
+        SegmentedDiskCache cache = newInitializedCache();
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        cache.runMaintenance();
+        cache.clear();
+        assertNull(cache.get("key"));
+        assertEquals(0, mCacheDir.listFiles().length);
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 2 }));
+        CacheTestUtils.assertData(new byte[] { 2 }, newInitializedCache().get("key"));
+    }
+}
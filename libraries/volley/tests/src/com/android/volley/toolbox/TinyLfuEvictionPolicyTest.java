@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class TinyLfuEvictionPolicyTest extends TestCase {
+
+    private static final int CAPACITY = 100;
+
+    private TinyLfuEvictionPolicy mPolicy;
+
+    /** The entries a cache using the policy would hold, all of size 1. */
+    private Set<Long> mCached;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPolicy = new TinyLfuEvictionPolicy(CAPACITY, CAPACITY);
+        mCached = new HashSet<Long>();
+    }
+
+    private void write(long hash) {
+        mCached.add(hash);
+        mPolicy.onWrite(hash, 1);
+        while (mCached.size() > CAPACITY) {
+            long victim = mPolicy.nextVictim();
+            assertTrue(mCached.remove(victim));
+            mPolicy.onRemove(victim);
+        }
+    }
+
+    private void read(long hash) {
+        if (mCached.contains(hash)) {
+            mPolicy.onAccess(hash);
+        } else {
+            write(hash);
+        }
+    }
+
+    public void testScanDoesNotFlushFrequentEntries() {
+        for (int round = 0; round < 5; round++) {
+            for (long hash = 1; hash <= 50; hash++) {
+                read(hash);
+            }
+        }
+        // Entries are read once each, five times as many as fit in the cache.
+        for (long hash = 1000; hash < 1500; hash++) {
+            read(hash);
+        }
+        for (long hash = 1; hash <= 50; hash++) {
+            assertTrue(mCached.contains(hash));
+        }
+    }
+
+    public void testNewEntriesAreAdmittedWhileThereIsRoom() {
+        for (long hash = 1; hash <= CAPACITY; hash++) {
+            write(hash);
+        }
+        assertEquals(CAPACITY, mCached.size());
+        for (long hash = 1; hash <= CAPACITY; hash++) {
+            assertTrue(mCached.contains(hash));
+        }
+    }
+
+    public void testInfrequentEntryIsNotAdmitted() {
+        for (long hash = 1; hash <= CAPACITY; hash++) {
+            read(hash);
+            read(hash);
+        }
+        // A one-off entry leaving the window loses admission against the least recently used
+        // entry, which has been read before.
+        write(1000);
+        write(1001);
+        assertFalse(mCached.contains(1000L));
+        assertTrue(mCached.contains(1L));
+    }
+
+    public void testRemovedEntryIsForgotten() {
+        write(1);
+        write(2);
+        mPolicy.onRemove(1);
+        mPolicy.onRemove(2);
+        assertEquals(0, mPolicy.nextVictim());
+    }
+
+    public void testSketchCountsAndAges() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 3; i++) {
+            sketch.increment(42);
+        }
+        assertEquals(3, sketch.frequency(42));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(7);
+        }
+        assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(7));
+
+        // Counts are halved once enough increments were seen.
+        for (long hash = 1000; hash < 2000; hash++) {
+            sketch.increment(hash);
+        }
+        assertTrue(sketch.frequency(7) < FrequencySketch.MAX_FREQUENCY);
+
+        sketch.clear();
+        assertEquals(0, sketch.frequency(42));
+    }
+}
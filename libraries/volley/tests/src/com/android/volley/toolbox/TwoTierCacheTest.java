@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.volley.Cache;
+import com.android.volley.mock.MockCache;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class TwoTierCacheTest extends TestCase {
+
+    private MockCache mDisk;
+    private TwoTierCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDisk = new MockCache();
+        mCache = new TwoTierCache(mDisk, 10);
+    }
+
+    public void testPutIsWrittenThroughAndServedFromMemory() {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        mCache.put("key", entry);
+        assertSame(entry, mDisk.entryPut);
+
+        Cache.Entry hit = mCache.get("key");
+        assertTrue(Arrays.equals(entry.data, hit.data));
+        assertEquals(entry.etag, hit.etag);
+        assertFalse(mDisk.getCalled);
+        assertEquals(1, mCache.getMemoryHitCount());
+        assertEquals(0, mCache.getDiskHitCount());
+    }
+
+    // A put overtaken by another while writing the second tier leaves the newer one in memory.
+    public void testConcurrentPutsKeepTiersConsistent() {
+        final Cache.Entry older = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 });
+        final Cache.Entry newer = CacheTestUtils.makeRandomCacheEntry(new byte[] { 2 });
+        mDisk = new MockCache() {
+            @Override
+            public void put(String key, Entry entry) {
+                super.put(key, entry);
+                if (entry == older) {
+                    mCache.put(key, newer);
+                }
+            }
+        };
+        mCache = new TwoTierCache(mDisk, 10);
+        mCache.put("key", older);
+        assertTrue(Arrays.equals(newer.data, mCache.get("key").data));
+        assertEquals(0, mCache.getDiskHitCount());
+    }
+
+    public void testDiskHitsArePromoted() {
+        mDisk.setEntryToReturn(CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 }));
+        assertNotNull(mCache.get("key"));
+        assertNotNull(mCache.get("key"));
+        assertEquals(1, mCache.getDiskHitCount());
+        assertEquals(1, mCache.getMemoryHitCount());
+
+        mDisk.setEntryToReturn(null);
+        assertNull(mCache.get("other"));
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    public void testImagesSkipMemory() {
+        Cache.Entry image = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 });
+        image.responseHeaders = new HashMap<String, String>();
+        image.responseHeaders.put("Content-Type", "image/jpeg");
+        mCache.put("image", image);
+        mDisk.setEntryToReturn(image);
+        mCache.get("image");
+        mCache.get("image");
+        assertEquals(0, mCache.getMemoryHitCount());
+        assertEquals(2, mCache.getDiskHitCount());
+        assertEquals(0, mCache.getMemoryBytes());
+    }
+
+    public void testTierFilter() {
+        mCache.setTierFilter(new TwoTierCache.TierFilter() {
+            @Override
+            public boolean useMemoryTier(String key, Cache.Entry entry) {
+                return key.startsWith("api/");
+            }
+        });
+        mCache.put("api/feed", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        mCache.put("other", CacheTestUtils.makeRandomCacheEntry(new byte[] { 2 }));
+        assertEquals(1, mCache.getMemoryBytes());
+    }
+
+    public void testMemoryIsBoundedAndEvictsLeastRecentlyUsed() {
+        mCache.put("a", CacheTestUtils.makeRandomCacheEntry(new byte[4]));
+        mCache.put("b", CacheTestUtils.makeRandomCacheEntry(new byte[4]));
+        mCache.get("a");
+        mCache.put("c", CacheTestUtils.makeRandomCacheEntry(new byte[4]));
+        assertEquals(8, mCache.getMemoryBytes());
+        mCache.get("a");
+        mCache.get("c");
+        assertEquals(3, mCache.getMemoryHitCount());
+        assertNull(mCache.get("b"));
+        assertEquals(1, mCache.getMissCount());
+
+        // Larger than the whole memory tier.
+        mCache.put("d", CacheTestUtils.makeRandomCacheEntry(new byte[11]));
+        assertEquals(8, mCache.getMemoryBytes());
+    }
+
+    public void testChangesApplyToBothTiers() {
+        mCache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        mCache.invalidate("key", true);
+        assertTrue(mCache.get("key").isExpired());
+
+        mCache.updateMetadata("key", 1, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertFalse(mCache.get("key").refreshNeeded());
+        assertTrue(mDisk.updateMetadataCalled);
+
+        mCache.remove("key");
+        assertEquals(0, mCache.getMemoryBytes());
+        mCache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        mCache.clear();
+        assertEquals(0, mCache.getMemoryBytes());
+        assertTrue(mDisk.clearCalled);
+    }
+
+    public void testReturnedEntriesDoNotChangeMemory() {
+        mCache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        mCache.get("key").responseHeaders.put("X-Test", "1");
+        mCache.get("key").ttl = 0;
+        Cache.Entry entry = mCache.get("key");
+        assertFalse(entry.responseHeaders.containsKey("X-Test"));
+        assertFalse(entry.isExpired());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.volley.Cache;
+import com.android.volley.mock.MockCache;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+@MediumTest
+public class WriteBehindCacheTest extends TestCase {
+
+    /** A cache whose puts wait until released, recording the keys in write order. */
+    private static class BlockingCache extends MockCache {
+        final CountDownLatch released = new CountDownLatch(1);
+        final List<String> keysWritten = new ArrayList<String>();
+
+        @Override
+        public void put(String key, Entry entry) {
+            try {
+                released.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            synchronized (keysWritten) {
+                keysWritten.add(key);
+            }
+            super.put(key, entry);
+        }
+    }
+
+    public void testPendingEntriesAreReadable() throws Exception {
+        BlockingCache blocking = new BlockingCache();
+        WriteBehindCache cache = new WriteBehindCache(blocking);
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1, 2, 3 }));
+
+        assertFalse(blocking.putCalled);
+        assertEquals(3, cache.getPendingBytes());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, cache.get("key").data));
+
+        cache.invalidate("key", true);
+        assertTrue(cache.get("key").isExpired());
+
+        blocking.released.countDown();
+        cache.flush();
+        assertEquals(0, cache.getPendingBytes());
+        assertTrue(blocking.putCalled);
+        assertEquals("key", blocking.keyPut);
+        assertTrue(blocking.entryPut.isExpired());
+        assertFalse(blocking.getCalled);
+    }
+
+    // Changing the headers of a put or returned entry doesn't change the pending one.
+    public void testPendingEntriesHaveHeadersOfTheirOwn() throws Exception {
+        BlockingCache blocking = new BlockingCache();
+        WriteBehindCache cache = new WriteBehindCache(blocking);
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 });
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("ETag", "a");
+        cache.put("key", entry);
+        entry.responseHeaders.put("ETag", "b");
+        cache.get("key").responseHeaders.put("ETag", "c");
+
+        blocking.released.countDown();
+        cache.flush();
+        assertEquals("a", blocking.entryPut.responseHeaders.get("ETag"));
+    }
+
+    public void testPutsForTheSameKeyAreCoalesced() throws Exception {
+        BlockingCache blocking = new BlockingCache();
+        WriteBehindCache cache = new WriteBehindCache(blocking);
+        cache.put("first", CacheTestUtils.makeRandomCacheEntry(new byte[] { 1 }));
+        cache.put("second", CacheTestUtils.makeRandomCacheEntry(new byte[] { 2 }));
+        cache.put("second", CacheTestUtils.makeRandomCacheEntry(new byte[] { 3, 4 }));
+        assertEquals(3, cache.getPendingBytes());
+
+        blocking.released.countDown();
+        cache.flush();
+        assertEquals(Arrays.asList("first", "second"), blocking.keysWritten);
+        assertTrue(Arrays.equals(new byte[] { 3, 4 }, blocking.entryPut.data));
+    }
+
+    public void testPutWaitsWhenBudgetIsUsedUp() throws Exception {
+        final BlockingCache blocking = new BlockingCache();
+        final WriteBehindCache cache = new WriteBehindCache(blocking, 4);
+        cache.put("first", CacheTestUtils.makeRandomCacheEntry(new byte[3]));
+
+        final CountDownLatch putDone = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                cache.put("second", CacheTestUtils.makeRandomCacheEntry(new byte[3]));
+                putDone.countDown();
+            }
+        }.start();
+
+        assertFalse(putDone.await(100, TimeUnit.MILLISECONDS));
+        blocking.released.countDown();
+        assertTrue(putDone.await(5, TimeUnit.SECONDS));
+        cache.flush();
+        assertEquals(Arrays.asList("first", "second"), blocking.keysWritten);
+    }
+
+    public void testReadsFallThroughWhenNotPending() {
+        MockCache mock = new MockCache();
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+        mock.setEntryToReturn(entry);
+        WriteBehindCache cache = new WriteBehindCache(mock);
+        assertSame(entry, cache.get("key"));
+        assertTrue(mock.getCalled);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.utils;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+/**
+ * A test case for caches stored on disk. Each test gets a directory of its own under the
+ * context's cache directory, named after the test class, which is empty when the test starts
+ * and deleted when it ends.
+ */
+public abstract class CacheDirTestCase extends AndroidTestCase {
+
+    /** The directory for the test's caches. It does not exist until a cache creates it. */
+    protected File mCacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), getClass().getSimpleName());
+        deleteRecursively(mCacheDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mCacheDir);
+        super.tearDown();
+    }
+
+    /** Deletes a file, or a directory and everything in it. */
+    protected static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -4,8 +4,12 @@ package com.android.volley.utils;
 
 import com.android.volley.Cache;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Random;
 
+import junit.framework.Assert;
+
 public class CacheTestUtils {
 
     /**
@@ -37,4 +41,26 @@ public class CacheTestUtils {
     public static Cache.Entry makeRandomCacheEntry(byte[] data) {
         return makeRandomCacheEntry(data, false, false);
     }
+
+    /**
+     * Like {@link #makeRandomCacheEntry(byte[])} but with a Content-Type response header.
+     */
+    public static Cache.Entry makeRandomCacheEntry(byte[] data, String contentType) {
+        Cache.Entry entry = makeRandomCacheEntry(data);
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("Content-Type", contentType);
+        return entry;
+    }
+
+    /** Initializes a cache and returns it. */
+    public static <T extends Cache> T initialize(T cache) {
+        cache.initialize();
+        return cache;
+    }
+
+    /** Asserts that an entry was found and holds the expected data. */
+    public static void assertData(byte[] expected, Cache.Entry entry) {
+        Assert.assertNotNull(entry);
+        Assert.assertTrue(Arrays.equals(expected, entry.getData()));
+    }
 }